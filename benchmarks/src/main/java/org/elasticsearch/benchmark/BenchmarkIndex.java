@@ -0,0 +1,93 @@
+package org.elasticsearch.benchmark;
+
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.SortedNumericDocValuesField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.elasticsearch.similarity.MultistepSimilarity;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * @Classname BenchmarkIndex
+ * @Description 生成 benchmark 使用的内存索引(ByteBuffersDirectory)：
+ * text 字段 {@link #FIELD} 的 term 服从 Zipf 分布(rank 越小越常见)，长度 3 ~ 30；
+ * 数值字段 {@link #POPULARITY_FIELD} 模拟热度，和 ES 中 integer 字段一样使用 SortedNumericDocValues
+ */
+final class BenchmarkIndex implements Closeable {
+
+    static final String FIELD = "name";
+    static final String POPULARITY_FIELD = "read_num";
+
+    private static final int VOCABULARY_SIZE = 50_000;
+    private static final double ZIPF_EXPONENT = 1.07;
+
+    private final Directory directory;
+    private final DirectoryReader reader;
+    final IndexSearcher searcher;
+
+    BenchmarkIndex(int docCount, long seed) throws IOException {
+        directory = new ByteBuffersDirectory();
+        IndexWriterConfig config = new IndexWriterConfig(new WhitespaceAnalyzer());
+        config.setSimilarity(new MultistepSimilarity());
+        config.setRAMBufferSizeMB(256);
+        final double[] cumulative = zipfCumulative();
+        final Random random = new Random(seed);
+        try (IndexWriter writer = new IndexWriter(directory, config)) {
+            StringBuilder text = new StringBuilder();
+            for (int i = 0; i < docCount; i++) {
+                text.setLength(0);
+                int length = 3 + random.nextInt(28);
+                for (int j = 0; j < length; j++) {
+                    text.append(term(sample(cumulative, random))).append(' ');
+                }
+                Document doc = new Document();
+                doc.add(new TextField(FIELD, text.toString(), Field.Store.NO));
+                doc.add(new SortedNumericDocValuesField(POPULARITY_FIELD, random.nextInt(1_000_000)));
+                writer.addDocument(doc);
+            }
+        }
+        reader = DirectoryReader.open(directory);
+        searcher = new IndexSearcher(reader);
+        searcher.setQueryCache(null);
+    }
+
+    /** rank 对应的 term */
+    static String term(int rank) {
+        return "w" + rank;
+    }
+
+    private static double[] zipfCumulative() {
+        double[] cumulative = new double[VOCABULARY_SIZE];
+        double sum = 0;
+        for (int i = 0; i < VOCABULARY_SIZE; i++) {
+            sum += 1 / Math.pow(i + 1, ZIPF_EXPONENT);
+            cumulative[i] = sum;
+        }
+        for (int i = 0; i < VOCABULARY_SIZE; i++) {
+            cumulative[i] /= sum;
+        }
+        return cumulative;
+    }
+
+    private static int sample(double[] cumulative, Random random) {
+        int index = Arrays.binarySearch(cumulative, random.nextDouble());
+        return index >= 0 ? index : Math.min(cumulative.length - 1, -index - 1);
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+        directory.close();
+    }
+}
@@ -0,0 +1,27 @@
+package org.elasticsearch.benchmark;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * @Classname BenchmarkMain
+ * @Description JMH 入口，和 JMH 自带的 Main 参数一致，只是在没有指定 -rf / -rff 时默认把结果以 JSON 格式写入 jmh-result.json，
+ * 方便持续对比性能回归
+ */
+public class BenchmarkMain {
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions cmdOptions = new CommandLineOptions(args);
+        ChainedOptionsBuilder builder = new OptionsBuilder().parent(cmdOptions);
+        if (cmdOptions.getResultFormat().hasValue() == false) {
+            builder.resultFormat(ResultFormatType.JSON);
+        }
+        if (cmdOptions.getResult().hasValue() == false) {
+            builder.result("jmh-result.json");
+        }
+        new Runner(builder.build()).run();
+    }
+}
@@ -0,0 +1,110 @@
+package org.elasticsearch.benchmark;
+
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.BoostQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopScoreDocCollector;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.myterm.MultistepTermsQuery;
+import org.elasticsearch.myterm.TermQuery_V1;
+import org.elasticsearch.similarity.MultistepSimilarity;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @Classname MultistepQueryBenchmark
+ * @Description multistep_score 端到端的查询耗时：
+ * 融合之后的 {@link MultistepTermsQuery} (top-10 / 全量打分 / tiebreak) 以及之前每个 term 一个 {@link TermQuery_V1} 的 BooleanQuery，
+ * 索引默认 100 万 doc，可以通过 -p docCount=... 修改
+ */
+@Fork(1)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class MultistepQueryBenchmark {
+
+    @Param({"1000000"})
+    public int docCount;
+
+    @Param({"2", "8", "16"})
+    public int numTerms;
+
+    @Param({"1.002", "2.718281828459045"})
+    public double base;
+
+    private BenchmarkIndex index;
+    private Query fused;
+    private Query fusedTiebreak;
+    private Query boolean_V1;
+
+    @Setup
+    public void setup() throws IOException {
+        index = new BenchmarkIndex(docCount, 0);
+        // query 中既有高频 term 也有低频 term，最后一个 term 作为同义词
+        Random random = new Random(numTerms);
+        BytesRef[] terms = new BytesRef[numTerms];
+        boolean[] synonyms = new boolean[numTerms];
+        for (int i = 0; i < numTerms; i++) {
+            terms[i] = new BytesRef(BenchmarkIndex.term(random.nextInt(5000)));
+        }
+        synonyms[numTerms - 1] = true;
+        fused = new MultistepTermsQuery.Builder(BenchmarkIndex.FIELD, terms, synonyms, base).build();
+        fusedTiebreak = new MultistepTermsQuery.Builder(BenchmarkIndex.FIELD, terms, synonyms, base)
+                .tiebreakField(BenchmarkIndex.POPULARITY_FIELD)
+                .build();
+
+        BooleanQuery.Builder builder = new BooleanQuery.Builder();
+        for (int i = 0; i < numTerms; i++) {
+            Term term = new Term(BenchmarkIndex.FIELD, terms[i]);
+            if (synonyms[i]) {
+                // 和之前的实现一致，同义词的召回得分贡献为 0
+                builder.add(new BoostQuery(new TermQuery(term), 0f), BooleanClause.Occur.SHOULD);
+            } else {
+                TermQuery_V1 termQuery = new TermQuery_V1(term);
+                termQuery.setSimilarity(new MultistepSimilarity(base));
+                builder.add(termQuery, BooleanClause.Occur.SHOULD);
+            }
+        }
+        boolean_V1 = builder.build();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        index.close();
+    }
+
+    @Benchmark
+    public TopDocs fusedTop10() throws IOException {
+        return search(fused, 1000);
+    }
+
+    @Benchmark
+    public TopDocs fusedAllHits() throws IOException {
+        return search(fused, Integer.MAX_VALUE);
+    }
+
+    @Benchmark
+    public TopDocs fusedTiebreakTop10() throws IOException {
+        return search(fusedTiebreak, 1000);
+    }
+
+    @Benchmark
+    public TopDocs booleanTermQuery_V1Top10() throws IOException {
+        return search(boolean_V1, 1000);
+    }
+
+    private TopDocs search(Query query, int totalHitsThreshold) throws IOException {
+        TopScoreDocCollector collector = TopScoreDocCollector.create(10, totalHitsThreshold);
+        index.searcher.search(query, collector);
+        return collector.topDocs();
+    }
+}
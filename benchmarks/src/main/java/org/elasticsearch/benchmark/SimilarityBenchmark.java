@@ -0,0 +1,98 @@
+package org.elasticsearch.benchmark;
+
+import org.apache.lucene.search.CollectionStatistics;
+import org.apache.lucene.search.TermStatistics;
+import org.apache.lucene.search.similarities.BM25Similarity;
+import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.SmallFloat;
+import org.elasticsearch.similarity.MultistepSimilarity;
+import org.elasticsearch.similarity.TermMyBM25Similarity;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @Classname SimilarityBenchmark
+ * @Description {@link Similarity.SimScorer#score(float, long)} 的吞吐量，每次调用对 {@link #SIZE} 个 (freq, norm) 打分，
+ * MultistepSimilarity 覆盖不同的 base，TermMyBM25Similarity 和 Lucene 的 BM25Similarity 作为对照
+ */
+@Fork(1)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SimilarityBenchmark {
+
+    static final int SIZE = 4096;
+
+    @State(Scope.Benchmark)
+    public static class Inputs {
+        final float[] freqs = new float[SIZE];
+        final long[] norms = new long[SIZE];
+        final CollectionStatistics collectionStats = new CollectionStatistics("name", 1_000_000, 1_000_000, 15_000_000, 12_000_000);
+        final TermStatistics termStats = new TermStatistics(new BytesRef("w100"), 20_000, 30_000);
+
+        @Setup
+        public void setup() {
+            Random random = new Random(0);
+            for (int i = 0; i < SIZE; i++) {
+                // 大部分 doc 中 term 只出现一次
+                freqs[i] = 1 + (random.nextInt(8) == 0 ? random.nextInt(5) : 0);
+                norms[i] = SmallFloat.intToByte4(3 + random.nextInt(28));
+            }
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class MultistepState {
+        @Param({"1.002", "1.5", "2.718281828459045", "10"})
+        public double base;
+
+        Similarity.SimScorer scorer;
+
+        @Setup
+        public void setup(Inputs inputs) {
+            scorer = new MultistepSimilarity(base).scorer(1f, inputs.collectionStats, inputs.termStats);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class BaselineState {
+        Similarity.SimScorer termMyBM25;
+        Similarity.SimScorer bm25;
+
+        @Setup
+        public void setup(Inputs inputs) {
+            termMyBM25 = new TermMyBM25Similarity().scorer(1f, inputs.collectionStats, inputs.termStats);
+            bm25 = new BM25Similarity().scorer(1f, inputs.collectionStats, inputs.termStats);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SIZE)
+    public float multistep(Inputs inputs, MultistepState state) {
+        return scoreAll(state.scorer, inputs);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SIZE)
+    public float termMyBM25(Inputs inputs, BaselineState state) {
+        return scoreAll(state.termMyBM25, inputs);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SIZE)
+    public float luceneBM25(Inputs inputs, BaselineState state) {
+        return scoreAll(state.bm25, inputs);
+    }
+
+    private static float scoreAll(Similarity.SimScorer scorer, Inputs inputs) {
+        float sum = 0;
+        for (int i = 0; i < SIZE; i++) {
+            sum += scorer.score(inputs.freqs[i], inputs.norms[i]);
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,79 @@
+package org.elasticsearch.benchmark;
+
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopScoreDocCollector;
+import org.apache.lucene.search.similarities.BM25Similarity;
+import org.elasticsearch.myterm.TermQuery_V1;
+import org.elasticsearch.similarity.MultistepSimilarity;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @Classname TermQueryBenchmark
+ * @Description {@link TermQuery_V1} 和 Lucene 自带的 {@link TermQuery} 的单 term 查询耗时对比，
+ * termRank 为 term 在 Zipf 分布中的排名，0 为最高频的 term
+ */
+@Fork(1)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+public class TermQueryBenchmark {
+
+    @Param({"1000000"})
+    public int docCount;
+
+    @Param({"0", "100", "10000"})
+    public int termRank;
+
+    private BenchmarkIndex index;
+    private Query termQuery;
+    private Query termQuery_V1BM25;
+    private Query termQuery_V1Multistep;
+
+    @Setup
+    public void setup() throws IOException {
+        index = new BenchmarkIndex(docCount, 0);
+        index.searcher.setSimilarity(new BM25Similarity());
+        Term term = new Term(BenchmarkIndex.FIELD, BenchmarkIndex.term(termRank));
+        termQuery = new TermQuery(term);
+        TermQuery_V1 bm25 = new TermQuery_V1(term);
+        bm25.setSimilarity(new BM25Similarity());
+        termQuery_V1BM25 = bm25;
+        TermQuery_V1 multistep = new TermQuery_V1(term);
+        multistep.setSimilarity(new MultistepSimilarity());
+        termQuery_V1Multistep = multistep;
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        index.close();
+    }
+
+    @Benchmark
+    public TopDocs termQuery() throws IOException {
+        return search(termQuery);
+    }
+
+    @Benchmark
+    public TopDocs termQuery_V1BM25() throws IOException {
+        return search(termQuery_V1BM25);
+    }
+
+    @Benchmark
+    public TopDocs termQuery_V1Multistep() throws IOException {
+        return search(termQuery_V1Multistep);
+    }
+
+    private TopDocs search(Query query) throws IOException {
+        TopScoreDocCollector collector = TopScoreDocCollector.create(10, 1000);
+        index.searcher.search(query, collector);
+        return collector.topDocs();
+    }
+}
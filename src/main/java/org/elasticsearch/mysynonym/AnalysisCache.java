@@ -0,0 +1,119 @@
+package org.elasticsearch.mysynonym;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.index.analysis.AnalyzerComponentsProvider;
+import org.elasticsearch.index.analysis.NamedAnalyzer;
+
+import java.util.concurrent.ExecutionException;
+import java.util.function.Function;
+
+/**
+ * @Classname AnalysisCache
+ * @Description 节点级别的分词结果缓存，key 为 (analyzer 实例, query text)，value 为分词之后的 {@link PositionTerms}。
+ * 重复的查询语句直接复用分词结果，跳过整个 analyzer chain(同义词 analyzer 的开销很大)以及 BytesRef 的深拷贝。
+ * analyzer 按实例比较：每个索引有自己的 analyzer 实例，使用同一个 search analyzer 的多个字段共享缓存条目；
+ * _reload_search_analyzers 不会替换 {@link NamedAnalyzer}，而是替换其中的 analyzer 组件，所以 key 使用组件实例，
+ * reload 之后旧的条目不会再被命中，按照 LRU 或者过期时间淘汰。缓存按照估算的内存大小淘汰(LRU)，条目在写入一段时间之后过期。
+ */
+public final class AnalysisCache {
+
+    public static final Setting<ByteSizeValue> CACHE_SIZE_SETTING =
+            Setting.memorySizeSetting("multistep_score.analysis_cache.size", "1%", Setting.Property.NodeScope);
+    public static final Setting<TimeValue> CACHE_EXPIRE_SETTING =
+            Setting.positiveTimeSetting("multistep_score.analysis_cache.expire", TimeValue.timeValueMinutes(10), Setting.Property.NodeScope);
+
+    /** 每个缓存条目的对象开销估算 */
+    private static final long ENTRY_OVERHEAD = 96;
+
+    private final Cache<Key, PositionTerms> cache;
+
+    public AnalysisCache(Settings settings) {
+        this.cache = CacheBuilder.<Key, PositionTerms>builder()
+                .setMaximumWeight(CACHE_SIZE_SETTING.get(settings).getBytes())
+                .setExpireAfterWrite(CACHE_EXPIRE_SETTING.get(settings))
+                .weigher(AnalysisCache::weight)
+                .build();
+    }
+
+    /**
+     * 获取分词结果，不存在时调用 loader 分词并缓存；analyzer 的分词结果不能依赖字段名
+     */
+    PositionTerms getOrAnalyze(NamedAnalyzer analyzer, String text, Function<String, PositionTerms> loader) {
+        final Key key = new Key(identity(analyzer), text);
+        try {
+            return cache.computeIfAbsent(key, k -> loader.apply(k.text));
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("failed to analyze [" + text + "]", e.getCause());
+        }
+    }
+
+    /**
+     * 决定分词结果的 analyzer 实例：可以 reload 的 analyzer 返回当前的组件，reload 之后是一个新的实例
+     */
+    static Object identity(NamedAnalyzer analyzer) {
+        final Analyzer delegate = analyzer.analyzer();
+        if (delegate instanceof AnalyzerComponentsProvider) {
+            return ((AnalyzerComponentsProvider) delegate).getComponents();
+        }
+        return delegate;
+    }
+
+    private static long weight(Key key, PositionTerms terms) {
+        return ENTRY_OVERHEAD + 2L * key.text.length() + terms.ramBytesUsed();
+    }
+
+    public Cache.CacheStats stats() {
+        return cache.stats();
+    }
+
+    public int count() {
+        return cache.count();
+    }
+
+    /** 缓存占用的估算内存大小 */
+    public long weight() {
+        return cache.weight();
+    }
+
+    public void clear() {
+        cache.invalidateAll();
+    }
+
+    private static final class Key {
+        /** 按实例比较 */
+        final Object analyzer;
+        final String text;
+
+        Key(Object analyzer, String text) {
+            this.analyzer = analyzer;
+            this.text = text;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            Key key = (Key) o;
+            return analyzer == key.analyzer &&
+                    text.equals(key.text);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(analyzer) + text.hashCode();
+        }
+    }
+}
@@ -0,0 +1,476 @@
+package org.elasticsearch.mysynonym;
+
+import org.apache.lucene.search.Query;
+import org.elasticsearch.common.ParseField;
+import org.elasticsearch.common.ParsingException;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.regex.Regex;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.index.query.AbstractQueryBuilder;
+import org.elasticsearch.index.query.Operator;
+import org.elasticsearch.index.query.QueryShardContext;
+import org.elasticsearch.index.query.QueryShardException;
+import org.elasticsearch.myterm.MultiFieldMultistepQuery;
+import org.elasticsearch.plugin.NodeComponents;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.function.Supplier;
+
+/**
+ * @Classname MultiMultistepScoreBuilder
+ * @Description 多字段的 multistep_score：fields 使用 multi_match 的 "field^boost" 写法，bases 中可以给每个字段单独指定 base，
+ * combine 为 max(取得分最高的字段，默认)或者 sum(所有字段的得分相加)，其余参数和 multistep_score 一样，对每个字段生效。
+ */
+public class MultiMultistepScoreBuilder extends AbstractQueryBuilder<MultiMultistepScoreBuilder> {
+
+    public static final String NAME = "multi_multistep_score";
+
+    public static final ParseField QUERY_FIELD = new ParseField("query");
+    public static final ParseField FIELDS_FIELD = new ParseField("fields");
+    public static final ParseField BASES_FIELD = new ParseField("bases");
+    public static final ParseField COMBINE_FIELD = new ParseField("combine");
+
+    public static final MultiFieldMultistepQuery.Combine DEFAULT_COMBINE = MultiFieldMultistepQuery.Combine.MAX;
+
+    private final Object value;
+    // 字段和它的 boost
+    private final Map<String, Float> fieldsBoosts;
+    // 单独指定了 base 的字段
+    private final Map<String, Double> fieldsBases = new TreeMap<>();
+    private MultiFieldMultistepQuery.Combine combine = DEFAULT_COMBINE;
+    private String analyzer;
+    // 没有单独指定 base 的字段使用这个 base
+    private Double base;
+    private MultistepScoreQuery.ZeroTermsQuery zeroTermsQuery = MultistepScoreQuery.DEFAULT_ZERO_TERMS_QUERY;
+    private Operator operator = MultistepScoreBuilder.DEFAULT_OPERATOR;
+    private String minimumShouldMatch;
+    private Float cutoffFrequency;
+    private boolean concurrent;
+    // 节点级别共享的组件(缓存、指标和并行搜索)，由插件在注册 reader 和 parser 时传入，不参与序列化和 equals
+    private Supplier<NodeComponents> components;
+
+    public MultiMultistepScoreBuilder(Object value, Map<String, Float> fieldsBoosts) {
+        if (value == null) {
+            throw new IllegalArgumentException("[" + NAME + "] requires query value");
+        }
+        if (fieldsBoosts == null || fieldsBoosts.isEmpty()) {
+            throw new IllegalArgumentException("[" + NAME + "] requires fields");
+        }
+        for (String field : fieldsBoosts.keySet()) {
+            if (Regex.isSimpleMatchPattern(field)) {
+                throw new IllegalArgumentException("[" + NAME + "] does not support field patterns, but got [" + field + "]");
+            }
+        }
+        this.value = value;
+        this.fieldsBoosts = new TreeMap<>(fieldsBoosts);
+    }
+
+    /**
+     * read from stream
+     * @param in
+     * @throws IOException
+     */
+    public MultiMultistepScoreBuilder(StreamInput in) throws IOException {
+        super(in);
+        value = in.readGenericValue();
+        fieldsBoosts = new TreeMap<>(in.readMap(StreamInput::readString, StreamInput::readFloat));
+        fieldsBases.putAll(in.readMap(StreamInput::readString, StreamInput::readDouble));
+        combine = MultiFieldMultistepQuery.Combine.fromString(in.readString());
+        zeroTermsQuery = MultistepScoreQuery.ZeroTermsQuery.readFromStream(in);
+        // optional fields
+        analyzer = in.readOptionalString();
+        base = in.readOptionalDouble();
+        operator = Operator.readFromStream(in);
+        minimumShouldMatch = in.readOptionalString();
+        cutoffFrequency = in.readOptionalFloat();
+        concurrent = in.readBoolean();
+    }
+
+    /**
+     * write to stream
+     * @param out
+     * @throws IOException
+     */
+    @Override
+    protected void doWriteTo(StreamOutput out) throws IOException {
+        out.writeGenericValue(value);
+        out.writeMap(fieldsBoosts, StreamOutput::writeString, StreamOutput::writeFloat);
+        out.writeMap(fieldsBases, StreamOutput::writeString, StreamOutput::writeDouble);
+        out.writeString(combine.toString());
+        zeroTermsQuery.writeTo(out);
+        // optional fields
+        out.writeOptionalString(analyzer);
+        out.writeOptionalDouble(base);
+        operator.writeTo(out);
+        out.writeOptionalString(minimumShouldMatch);
+        out.writeOptionalFloat(cutoffFrequency);
+        out.writeBoolean(concurrent);
+    }
+
+    public Object value() {
+        return this.value;
+    }
+
+    public Map<String, Float> fields() {
+        return this.fieldsBoosts;
+    }
+
+    /** 给字段单独指定 base */
+    public MultiMultistepScoreBuilder fieldBase(String field, double base) {
+        this.fieldsBases.put(field, base);
+        return this;
+    }
+
+    public Map<String, Double> fieldBases() {
+        return this.fieldsBases;
+    }
+
+    public MultiMultistepScoreBuilder combine(MultiFieldMultistepQuery.Combine combine) {
+        if (combine == null) {
+            throw new IllegalArgumentException("[" + NAME + "] requires combine to be non-null");
+        }
+        this.combine = combine;
+        return this;
+    }
+
+    public MultiFieldMultistepQuery.Combine combine() {
+        return this.combine;
+    }
+
+    public MultiMultistepScoreBuilder zeroTermsQuery(MultistepScoreQuery.ZeroTermsQuery zeroTermsQuery) {
+        if (zeroTermsQuery == null) {
+            throw new IllegalArgumentException("[" + NAME + "] requires zeroTermsQuery to be non-null");
+        }
+        this.zeroTermsQuery = zeroTermsQuery;
+        return this;
+    }
+
+    public MultistepScoreQuery.ZeroTermsQuery zeroTermsQuery() {
+        return this.zeroTermsQuery;
+    }
+
+    public MultiMultistepScoreBuilder analyzer(String analyzer) {
+        this.analyzer = analyzer;
+        return this;
+    }
+
+    public String analyzer() {
+        return this.analyzer;
+    }
+
+    public MultiMultistepScoreBuilder base(double base) {
+        this.base = base;
+        return this;
+    }
+
+    public Double base() {
+        return this.base;
+    }
+
+    public MultiMultistepScoreBuilder operator(Operator operator) {
+        if (operator == null) {
+            throw new IllegalArgumentException("[" + NAME + "] requires operator to be non-null");
+        }
+        this.operator = operator;
+        return this;
+    }
+
+    public Operator operator() {
+        return this.operator;
+    }
+
+    public MultiMultistepScoreBuilder minimumShouldMatch(String minimumShouldMatch) {
+        this.minimumShouldMatch = minimumShouldMatch;
+        return this;
+    }
+
+    public String minimumShouldMatch() {
+        return this.minimumShouldMatch;
+    }
+
+    public MultiMultistepScoreBuilder cutoffFrequency(float cutoff) {
+        this.cutoffFrequency = cutoff;
+        return this;
+    }
+
+    public Float cutoffFrequency() {
+        return this.cutoffFrequency;
+    }
+
+    public MultiMultistepScoreBuilder concurrent(boolean concurrent) {
+        this.concurrent = concurrent;
+        return this;
+    }
+
+    public boolean concurrent() {
+        return this.concurrent;
+    }
+
+    /**
+     * 获取节点级别共享组件的 supplier，在 toQuery 时才调用；没有设置或者返回 null 时不使用缓存、指标和并行搜索
+     */
+    public MultiMultistepScoreBuilder components(Supplier<NodeComponents> components) {
+        this.components = components;
+        return this;
+    }
+
+    @Override
+    protected void doXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject(NAME);
+        builder.field(QUERY_FIELD.getPreferredName(), value);
+        builder.startArray(FIELDS_FIELD.getPreferredName());
+        for (Map.Entry<String, Float> field : fieldsBoosts.entrySet()) {
+            builder.value(field.getKey() + "^" + field.getValue());
+        }
+        builder.endArray();
+        if (fieldsBases.isEmpty() == false) {
+            builder.field(BASES_FIELD.getPreferredName(), fieldsBases);
+        }
+        builder.field(COMBINE_FIELD.getPreferredName(), combine.toString());
+        builder.field(MultistepScoreBuilder.OPERATOR_FIELD.getPreferredName(), operator.toString());
+        if (minimumShouldMatch != null) {
+            builder.field(MultistepScoreBuilder.MINIMUM_SHOULD_MATCH_FIELD.getPreferredName(), minimumShouldMatch);
+        }
+        if (cutoffFrequency != null) {
+            builder.field(MultistepScoreBuilder.CUTOFF_FREQUENCY_FIELD.getPreferredName(), cutoffFrequency);
+        }
+        if (concurrent) {
+            builder.field(MultistepScoreBuilder.CONCURRENT_FIELD.getPreferredName(), true);
+        }
+        if (analyzer != null) {
+            builder.field(MultistepScoreBuilder.ANALYZER_FIELD.getPreferredName(), analyzer);
+        }
+        if (base != null) {
+            builder.field(MultistepScoreBuilder.BASE_FIELD.getPreferredName(), base);
+        }
+        builder.field(MultistepScoreBuilder.ZERO_TERMS_QUERY_FIELD.getPreferredName(), zeroTermsQuery.toString());
+        printBoostAndQueryName(builder);
+        builder.endObject();
+    }
+
+    @Override
+    protected Query doToQuery(QueryShardContext context) throws IOException {
+        // validate context specific fields
+        if (analyzer != null && context.getIndexAnalyzers().get(analyzer) == null) {
+            throw new QueryShardException(context, "[" + NAME + "] analyzer [" + analyzer + "] not found");
+        }
+
+        MultistepScoreQuery multistepScoreQuery = new MultistepScoreQuery(context);
+        if (analyzer != null) {
+            multistepScoreQuery.setAnalyzer(analyzer);
+        }
+        if (base != null) {
+            checkBase(base);
+            multistepScoreQuery.setBase(base);
+        }
+        for (Map.Entry<String, Double> fieldBase : fieldsBases.entrySet()) {
+            if (fieldsBoosts.containsKey(fieldBase.getKey()) == false) {
+                throw new IllegalArgumentException("[" + NAME + "] bases contains field [" + fieldBase.getKey()
+                        + "] which is not in fields");
+            }
+            checkBase(fieldBase.getValue());
+        }
+        for (Map.Entry<String, Float> field : fieldsBoosts.entrySet()) {
+            if (field.getValue() < 0 || Float.isFinite(field.getValue()) == false) {
+                throw new IllegalArgumentException("[" + NAME + "] requires boost of field [" + field.getKey()
+                        + "] must be a non-negative number, but got " + field.getValue());
+            }
+        }
+        multistepScoreQuery.setZeroTermsQuery(zeroTermsQuery);
+        multistepScoreQuery.setOccur(operator.toBooleanClauseOccur());
+        multistepScoreQuery.setMinimumShouldMatch(minimumShouldMatch);
+        if (cutoffFrequency != null) {
+            if (cutoffFrequency <= 0 || Float.isFinite(cutoffFrequency) == false) {
+                throw new IllegalArgumentException("[" + NAME + "] requires cutoff_frequency must be a positive number, but got "
+                        + cutoffFrequency);
+            }
+            multistepScoreQuery.setCutoffFrequency(cutoffFrequency);
+        }
+        NodeComponents components = this.components == null ? null : this.components.get();
+        if (components != null) {
+            multistepScoreQuery.setTermCache(components.termStepCache());
+            multistepScoreQuery.setAnalysisCache(components.analysisCache());
+            multistepScoreQuery.setResultCache(components.resultCache());
+            multistepScoreQuery.setMetrics(components.metrics());
+            if (concurrent) {
+                multistepScoreQuery.setConcurrentSearch(components.concurrentSearch());
+            }
+        }
+        return multistepScoreQuery.parseFields(fieldsBoosts, fieldsBases, value, combine);
+    }
+
+    private static void checkBase(double base) {
+        if (base <= 1) {
+            throw new IllegalArgumentException("[" + NAME + "] requires base must bigger than 1, but got " + base);
+        }
+    }
+
+    @Override
+    protected boolean doEquals(MultiMultistepScoreBuilder other) {
+        return Objects.equals(value, other.value) &&
+                Objects.equals(fieldsBoosts, other.fieldsBoosts) &&
+                Objects.equals(fieldsBases, other.fieldsBases) &&
+                Objects.equals(combine, other.combine) &&
+                Objects.equals(analyzer, other.analyzer) &&
+                Objects.equals(zeroTermsQuery, other.zeroTermsQuery) &&
+                Objects.equals(base, other.base) &&
+                Objects.equals(operator, other.operator) &&
+                Objects.equals(minimumShouldMatch, other.minimumShouldMatch) &&
+                Objects.equals(cutoffFrequency, other.cutoffFrequency) &&
+                concurrent == other.concurrent;
+    }
+
+    @Override
+    protected int doHashCode() {
+        return Objects.hash(value, fieldsBoosts, fieldsBases, combine, analyzer, zeroTermsQuery, base, operator, minimumShouldMatch,
+                cutoffFrequency, concurrent);
+    }
+
+    @Override
+    public String getWriteableName() {
+        return NAME;
+    }
+
+    public static MultiMultistepScoreBuilder fromXContent(XContentParser parser) throws IOException {
+        Object value = null;
+        Map<String, Float> fieldsBoosts = new TreeMap<>();
+        Map<String, Double> fieldsBases = new TreeMap<>();
+        MultiFieldMultistepQuery.Combine combine = DEFAULT_COMBINE;
+        float boost = AbstractQueryBuilder.DEFAULT_BOOST;
+        Double base = null;
+        String analyzer = null;
+        Operator operator = MultistepScoreBuilder.DEFAULT_OPERATOR;
+        String minimumShouldMatch = null;
+        Float cutoffFrequency = null;
+        boolean concurrent = false;
+        MultistepScoreQuery.ZeroTermsQuery zeroTermsQuery = MultistepScoreQuery.DEFAULT_ZERO_TERMS_QUERY;
+        String queryName = null;
+        String currentFieldName = null;
+        XContentParser.Token token;
+        while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+            if (token == XContentParser.Token.FIELD_NAME) {
+                currentFieldName = parser.currentName();
+            } else if (FIELDS_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
+                if (token == XContentParser.Token.START_ARRAY) {
+                    while (parser.nextToken() != XContentParser.Token.END_ARRAY) {
+                        parseFieldAndBoost(parser, fieldsBoosts);
+                    }
+                } else if (token.isValue()) {
+                    parseFieldAndBoost(parser, fieldsBoosts);
+                } else {
+                    throw new ParsingException(parser.getTokenLocation(),
+                            "[" + NAME + "] query does not support [" + currentFieldName + "]");
+                }
+            } else if (token == XContentParser.Token.START_OBJECT) {
+                if (BASES_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
+                    while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+                        if (token == XContentParser.Token.FIELD_NAME) {
+                            currentFieldName = parser.currentName();
+                        } else if (token.isValue()) {
+                            fieldsBases.put(currentFieldName, parser.doubleValue());
+                        } else {
+                            throw new ParsingException(parser.getTokenLocation(),
+                                    "[" + NAME + "] unknown token [" + token + "] after [" + currentFieldName + "]");
+                        }
+                    }
+                } else {
+                    throw new ParsingException(parser.getTokenLocation(),
+                            "[" + NAME + "] query does not support [" + currentFieldName + "]");
+                }
+            } else if (token.isValue()) {
+                if (QUERY_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
+                    value = parser.objectText();
+                } else if (COMBINE_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
+                    try {
+                        combine = MultiFieldMultistepQuery.Combine.fromString(parser.text());
+                    } catch (IllegalArgumentException e) {
+                        throw new ParsingException(parser.getTokenLocation(), "[" + NAME + "] " + e.getMessage());
+                    }
+                } else if (MultistepScoreBuilder.ANALYZER_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
+                    analyzer = parser.text();
+                } else if (AbstractQueryBuilder.BOOST_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
+                    boost = parser.floatValue();
+                } else if (MultistepScoreBuilder.BASE_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
+                    base = parser.doubleValue();
+                } else if (MultistepScoreBuilder.OPERATOR_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
+                    operator = Operator.fromString(parser.text());
+                } else if (MultistepScoreBuilder.MINIMUM_SHOULD_MATCH_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
+                    minimumShouldMatch = parser.textOrNull();
+                } else if (MultistepScoreBuilder.CUTOFF_FREQUENCY_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
+                    cutoffFrequency = parser.floatValue();
+                } else if (MultistepScoreBuilder.CONCURRENT_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
+                    concurrent = parser.booleanValue();
+                } else if (MultistepScoreBuilder.ZERO_TERMS_QUERY_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
+                    String zeroTermsValue = parser.text();
+                    if ("none".equalsIgnoreCase(zeroTermsValue)) {
+                        zeroTermsQuery = MultistepScoreQuery.ZeroTermsQuery.NONE;
+                    } else if ("all".equalsIgnoreCase(zeroTermsValue)) {
+                        zeroTermsQuery = MultistepScoreQuery.ZeroTermsQuery.ALL;
+                    } else {
+                        throw new ParsingException(parser.getTokenLocation(),
+                                "Unsupported zero_terms_query value [" + zeroTermsValue + "]");
+                    }
+                } else if (AbstractQueryBuilder.NAME_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
+                    queryName = parser.text();
+                } else {
+                    throw new ParsingException(parser.getTokenLocation(),
+                            "[" + NAME + "] query does not support [" + currentFieldName + "]");
+                }
+            } else {
+                throw new ParsingException(parser.getTokenLocation(),
+                        "[" + NAME + "] unknown token [" + token + "] after [" + currentFieldName + "]");
+            }
+        }
+        if (value == null) {
+            throw new ParsingException(parser.getTokenLocation(), "No text specified for text query");
+        }
+        if (fieldsBoosts.isEmpty()) {
+            throw new ParsingException(parser.getTokenLocation(), "[" + NAME + "] requires fields");
+        }
+        MultiMultistepScoreBuilder builder = new MultiMultistepScoreBuilder(value, fieldsBoosts);
+        for (Map.Entry<String, Double> fieldBase : fieldsBases.entrySet()) {
+            builder.fieldBase(fieldBase.getKey(), fieldBase.getValue());
+        }
+        builder.combine(combine);
+        builder.analyzer(analyzer);
+        builder.operator(operator);
+        builder.minimumShouldMatch(minimumShouldMatch);
+        builder.zeroTermsQuery(zeroTermsQuery);
+        builder.concurrent(concurrent);
+        builder.queryName(queryName);
+        builder.boost(boost);
+        if (base != null) {
+            builder.base(base);
+        }
+        if (cutoffFrequency != null) {
+            builder.cutoffFrequency(cutoffFrequency);
+        }
+        return builder;
+    }
+
+    /** 和 multi_match 一样解析 "field^boost" */
+    private static void parseFieldAndBoost(XContentParser parser, Map<String, Float> fieldsBoosts) throws IOException {
+        String fField = parser.text();
+        float fBoost = AbstractQueryBuilder.DEFAULT_BOOST;
+        int boostIndex = fField.indexOf('^');
+        if (boostIndex != -1) {
+            fBoost = Float.parseFloat(fField.substring(boostIndex + 1));
+            fField = fField.substring(0, boostIndex);
+        }
+        if (Strings.isEmpty(fField)) {
+            throw new ParsingException(parser.getTokenLocation(), "[" + NAME + "] requires non-empty field names");
+        }
+        if (Regex.isSimpleMatchPattern(fField)) {
+            // 每个字段单独分词并在 scorer 中组合，不展开通配符，避免静默地匹配不到任何字段
+            throw new ParsingException(parser.getTokenLocation(), "[" + NAME + "] does not support field patterns, but got ["
+                    + fField + "]");
+        }
+        fieldsBoosts.put(fField, fBoost);
+    }
+}
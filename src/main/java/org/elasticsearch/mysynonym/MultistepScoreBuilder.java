@@ -7,12 +7,21 @@ import org.elasticsearch.common.io.stream.StreamInput;
 import org.elasticsearch.common.io.stream.StreamOutput;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.index.mapper.MappedFieldType;
+import org.elasticsearch.index.mapper.NumberFieldMapper;
 import org.elasticsearch.index.query.AbstractQueryBuilder;
+import org.elasticsearch.index.query.Operator;
 import org.elasticsearch.index.query.QueryShardContext;
 import org.elasticsearch.index.query.QueryShardException;
+import org.elasticsearch.myterm.StepCursor;
+import org.elasticsearch.plugin.NodeComponents;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.Objects;
+import java.util.Set;
+import java.util.function.Supplier;
 
 /**
  * @Classname MultistepScoreBuilder
@@ -29,6 +38,18 @@ public class MultistepScoreBuilder extends AbstractQueryBuilder<MultistepScoreBu
     public static final ParseField ANALYZER_FIELD = new ParseField("analyzer");
     public static final ParseField BASE_FIELD = new ParseField("base");
     public static final ParseField ZERO_TERMS_QUERY_FIELD = new ParseField("zero_terms_query");
+    public static final ParseField TIEBREAK_FIELD_FIELD = new ParseField("tiebreak_field");
+    public static final ParseField OPERATOR_FIELD = new ParseField("operator");
+    public static final ParseField MINIMUM_SHOULD_MATCH_FIELD = new ParseField("minimum_should_match");
+    public static final ParseField CUTOFF_FREQUENCY_FIELD = new ParseField("cutoff_frequency");
+    public static final ParseField CONCURRENT_FIELD = new ParseField("concurrent");
+    public static final ParseField STEP_CURSOR_FIELD = new ParseField("step_cursor");
+
+    /** The default mode terms are combined in a match query */
+    public static final Operator DEFAULT_OPERATOR = Operator.OR;
+
+    /** tiebreak_field 支持的数值类型，浮点类型的 doc values 不是原始数值，不支持 */
+    private static final Set<String> TIEBREAK_FIELD_TYPES = new HashSet<>(Arrays.asList("long", "integer", "short", "byte"));
 
     private final String fieldName;
     private final Object value;
@@ -36,7 +57,20 @@ public class MultistepScoreBuilder extends AbstractQueryBuilder<MultistepScoreBu
     // 这里使用 base 是否为 null 判断， 是否有参数传递进来
     private Double base;
     protected MultistepScoreQuery.ZeroTermsQuery zeroTermsQuery = MultistepScoreQuery.DEFAULT_ZERO_TERMS_QUERY;
-
+    // 热度字段，相关度阶梯一样时按照该字段降序排列，直接打包到 score 中
+    private String tiebreakField;
+    // and 时所有 position 都需要命中，由最稀疏的 position 驱动
+    private Operator operator = DEFAULT_OPERATOR;
+    // 至少需要命中的 position 数
+    private String minimumShouldMatch;
+    // 高频 position 的阈值，高频 position 只给低频 position 召回的 doc 加分
+    private Float cutoffFrequency;
+    // 大 shard 上并行搜索 segment
+    private boolean concurrent;
+    // 逐个阶梯导出全部结果时的游标
+    private StepCursor stepCursor;
+    // 节点级别共享的组件(缓存、指标和并行搜索)，由插件在注册 reader 和 parser 时传入，不参与序列化和 equals
+    private Supplier<NodeComponents> components;
 
     /**
      * Constructs a new match query.
@@ -65,6 +99,12 @@ public class MultistepScoreBuilder extends AbstractQueryBuilder<MultistepScoreBu
         // optional fields
         analyzer = in.readOptionalString();
         base = in.readOptionalDouble();
+        tiebreakField = in.readOptionalString();
+        operator = Operator.readFromStream(in);
+        minimumShouldMatch = in.readOptionalString();
+        cutoffFrequency = in.readOptionalFloat();
+        concurrent = in.readBoolean();
+        stepCursor = in.readOptionalWriteable(StepCursor::new);
     }
 
     /**
@@ -79,7 +119,13 @@ public class MultistepScoreBuilder extends AbstractQueryBuilder<MultistepScoreBu
         zeroTermsQuery.writeTo(out);
         // optional fields
         out.writeOptionalString(analyzer);
-        out.writeDouble(base);
+        out.writeOptionalDouble(base);
+        out.writeOptionalString(tiebreakField);
+        operator.writeTo(out);
+        out.writeOptionalString(minimumShouldMatch);
+        out.writeOptionalFloat(cutoffFrequency);
+        out.writeBoolean(concurrent);
+        out.writeOptionalWriteable(stepCursor);
     }
 
     /** Returns the field name used in this query. */
@@ -127,17 +173,115 @@ public class MultistepScoreBuilder extends AbstractQueryBuilder<MultistepScoreBu
         return base;
     }
 
+    public MultistepScoreBuilder tiebreakField(String tiebreakField) {
+        this.tiebreakField = tiebreakField;
+        return this;
+    }
+
+    /** Get the tiebreak field, if previously set, otherwise {@code null} */
+    public String tiebreakField() {
+        return this.tiebreakField;
+    }
+
+    /** Sets the operator to use when using a boolean query. Defaults to {@code OR}. */
+    public MultistepScoreBuilder operator(Operator operator) {
+        if (operator == null) {
+            throw new IllegalArgumentException("[" + NAME + "] requires operator to be non-null");
+        }
+        this.operator = operator;
+        return this;
+    }
+
+    /** Returns the operator to use in a boolean query.*/
+    public Operator operator() {
+        return this.operator;
+    }
+
+    /** Sets optional minimumShouldMatch value to apply to the query positions */
+    public MultistepScoreBuilder minimumShouldMatch(String minimumShouldMatch) {
+        this.minimumShouldMatch = minimumShouldMatch;
+        return this;
+    }
+
+    /** Gets the minimumShouldMatch value */
+    public String minimumShouldMatch() {
+        return this.minimumShouldMatch;
+    }
+
+    /**
+     * Set a cutoff value in [0..1] (or absolute number &gt;=1) representing the
+     * maximum threshold of a terms document frequency to be considered a low
+     * frequency term.
+     */
+    public MultistepScoreBuilder cutoffFrequency(float cutoff) {
+        this.cutoffFrequency = cutoff;
+        return this;
+    }
+
+    /** Gets the optional cutoff value, can be {@code null} if not set previously */
+    public Float cutoffFrequency() {
+        return this.cutoffFrequency;
+    }
+
+    /**
+     * 在专用线程池中并行搜索大 shard 的 segment，只对 top-k 查询生效
+     */
+    public MultistepScoreBuilder concurrent(boolean concurrent) {
+        this.concurrent = concurrent;
+        return this;
+    }
+
+    public boolean concurrent() {
+        return this.concurrent;
+    }
+
+    /**
+     * 按 (阶梯得分降序, field 降序, _id 升序) 导出全部结果时的游标，见 {@link StepCursor}
+     */
+    public MultistepScoreBuilder stepCursor(StepCursor stepCursor) {
+        this.stepCursor = stepCursor;
+        return this;
+    }
+
+    public StepCursor stepCursor() {
+        return this.stepCursor;
+    }
+
+    /**
+     * 获取节点级别共享组件的 supplier，在 toQuery 时才调用；没有设置或者返回 null 时不使用缓存、指标和并行搜索
+     */
+    public MultistepScoreBuilder components(Supplier<NodeComponents> components) {
+        this.components = components;
+        return this;
+    }
+
     @Override
     protected void doXContent(XContentBuilder builder, Params params) throws IOException {
         builder.startObject(NAME);
         builder.startObject(fieldName);
         builder.field(QUERY_FIELD.getPreferredName(), value);
+        builder.field(OPERATOR_FIELD.getPreferredName(), operator.toString());
+        if (minimumShouldMatch != null) {
+            builder.field(MINIMUM_SHOULD_MATCH_FIELD.getPreferredName(), minimumShouldMatch);
+        }
+        if (cutoffFrequency != null) {
+            builder.field(CUTOFF_FREQUENCY_FIELD.getPreferredName(), cutoffFrequency);
+        }
+        if (concurrent) {
+            builder.field(CONCURRENT_FIELD.getPreferredName(), true);
+        }
+        if (stepCursor != null) {
+            builder.field(STEP_CURSOR_FIELD.getPreferredName(), stepCursor);
+        }
         if (analyzer != null) {
             builder.field(ANALYZER_FIELD.getPreferredName(), analyzer);
         }
         if (base != null) {
             builder.field(BASE_FIELD.getPreferredName(), base);
         }
+        if (tiebreakField != null) {
+            builder.field(TIEBREAK_FIELD_FIELD.getPreferredName(), tiebreakField);
+        }
         builder.field(ZERO_TERMS_QUERY_FIELD.getPreferredName(), zeroTermsQuery.toString());
         printBoostAndQueryName(builder);
         builder.endObject();
@@ -161,22 +305,84 @@ public class MultistepScoreBuilder extends AbstractQueryBuilder<MultistepScoreBu
             }
             multistepScoreQuery.setBase(base);
         }
+        if (tiebreakField != null) {
+            checkIntegralField(context, TIEBREAK_FIELD_FIELD.getPreferredName(), tiebreakField);
+            if (boost() != AbstractQueryBuilder.DEFAULT_BOOST) {
+                // 打包之后的 score 只能用于比较大小，乘以 boost 之后不再是 (阶梯得分, 热度) 的编码
+                throw new QueryShardException(context, "[" + NAME + "] tiebreak_field can not be combined with boost ["
+                        + boost() + "], the packed score is only comparable as is");
+            }
+            multistepScoreQuery.setTiebreakField(tiebreakField);
+        }
+        if (stepCursor != null) {
+            if (tiebreakField != null) {
+                throw new QueryShardException(context, "[" + NAME + "] step_cursor can not be combined with tiebreak_field");
+            }
+            if (boost() != AbstractQueryBuilder.DEFAULT_BOOST) {
+                // 游标中的 step 就是上一页的 _score
+                throw new QueryShardException(context, "[" + NAME + "] step_cursor can not be combined with boost [" + boost() + "]");
+            }
+            if (stepCursor.isBelow() == false) {
+                checkIntegralField(context, STEP_CURSOR_FIELD.getPreferredName() + ".field", stepCursor.getField());
+            }
+            multistepScoreQuery.setStepCursor(stepCursor);
+        }
         multistepScoreQuery.setZeroTermsQuery(zeroTermsQuery);
+        multistepScoreQuery.setOccur(operator.toBooleanClauseOccur());
+        multistepScoreQuery.setMinimumShouldMatch(minimumShouldMatch);
+        if (cutoffFrequency != null) {
+            if (cutoffFrequency <= 0 || Float.isFinite(cutoffFrequency) == false) {
+                throw new IllegalArgumentException("[" + NAME + "] requires cutoff_frequency must be a positive number, but got "
+                        + cutoffFrequency);
+            }
+            multistepScoreQuery.setCutoffFrequency(cutoffFrequency);
+        }
+        NodeComponents components = this.components == null ? null : this.components.get();
+        if (components != null) {
+            multistepScoreQuery.setTermCache(components.termStepCache());
+            multistepScoreQuery.setAnalysisCache(components.analysisCache());
+            multistepScoreQuery.setResultCache(components.resultCache());
+            multistepScoreQuery.setMetrics(components.metrics());
+            if (concurrent && stepCursor == null) {
+                multistepScoreQuery.setConcurrentSearch(components.concurrentSearch());
+            }
+        }
         return multistepScoreQuery.parse(fieldName, value);
     }
 
+    /** 排序用的字段需要是有 doc values 的整数字段 */
+    private static void checkIntegralField(QueryShardContext context, String param, String field) {
+        MappedFieldType fieldType = context.fieldMapper(field);
+        if (fieldType == null) {
+            throw new QueryShardException(context, "[" + NAME + "] " + param + " [" + field + "] is not mapped");
+        }
+        if (fieldType instanceof NumberFieldMapper.NumberFieldType == false
+                || TIEBREAK_FIELD_TYPES.contains(fieldType.typeName()) == false
+                || fieldType.hasDocValues() == false) {
+            throw new QueryShardException(context, "[" + NAME + "] " + param + " [" + field
+                    + "] must be an integral numeric field with doc values, but got [" + fieldType.typeName() + "]");
+        }
+    }
+
     @Override
     protected boolean doEquals(MultistepScoreBuilder other) {
         return Objects.equals(fieldName, other.fieldName) &&
                 Objects.equals(value, other.value) &&
                 Objects.equals(analyzer, other.analyzer) &&
                 Objects.equals(zeroTermsQuery, other.zeroTermsQuery) &&
-                Objects.equals(base, other.base);
+                Objects.equals(base, other.base) &&
+                Objects.equals(tiebreakField, other.tiebreakField) &&
+                Objects.equals(operator, other.operator) &&
+                Objects.equals(minimumShouldMatch, other.minimumShouldMatch) &&
+                Objects.equals(cutoffFrequency, other.cutoffFrequency) &&
+                concurrent == other.concurrent &&
+                Objects.equals(stepCursor, other.stepCursor);
     }
 
     @Override
     protected int doHashCode() {
-        return Objects.hash(fieldName, value, analyzer, zeroTermsQuery, base);
+        return Objects.hash(fieldName, value, analyzer, zeroTermsQuery, base, tiebreakField, operator, minimumShouldMatch, cutoffFrequency,
+                concurrent, stepCursor);
     }
 
     @Override
@@ -190,6 +396,12 @@ public class MultistepScoreBuilder extends AbstractQueryBuilder<MultistepScoreBu
         float boost = AbstractQueryBuilder.DEFAULT_BOOST;
         Double base = null;
         String analyzer = null;
+        String tiebreakField = null;
+        Operator operator = MultistepScoreBuilder.DEFAULT_OPERATOR;
+        String minimumShouldMatch = null;
+        Float cutoffFrequency = null;
+        boolean concurrent = false;
+        StepCursor stepCursor = null;
         MultistepScoreQuery.ZeroTermsQuery zeroTermsQuery = MultistepScoreQuery.DEFAULT_ZERO_TERMS_QUERY;
         String queryName = null;
         String currentFieldName = null;
@@ -203,6 +415,9 @@ public class MultistepScoreBuilder extends AbstractQueryBuilder<MultistepScoreBu
                 while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
                     if (token == XContentParser.Token.FIELD_NAME) {
                         currentFieldName = parser.currentName();
+                    } else if (token == XContentParser.Token.START_OBJECT
+                            && STEP_CURSOR_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
+                        stepCursor = StepCursor.fromXContent(parser);
                     } else if (token.isValue()) {
                         if (QUERY_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
                             value = parser.objectText();
@@ -212,6 +427,16 @@ public class MultistepScoreBuilder extends AbstractQueryBuilder<MultistepScoreBu
                             boost = parser.floatValue();
                         } else if (BASE_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
                             base = parser.doubleValue();
+                        } else if (TIEBREAK_FIELD_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
+                            tiebreakField = parser.text();
+                        } else if (OPERATOR_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
+                            operator = Operator.fromString(parser.text());
+                        } else if (MINIMUM_SHOULD_MATCH_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
+                            minimumShouldMatch = parser.textOrNull();
+                        } else if (CUTOFF_FREQUENCY_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
+                            cutoffFrequency = parser.floatValue();
+                        } else if (CONCURRENT_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
+                            concurrent = parser.booleanValue();
                         } else if (ZERO_TERMS_QUERY_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
                             String zeroTermsValue = parser.text();
                             if ("none".equalsIgnoreCase(zeroTermsValue)) {
@@ -244,12 +469,20 @@ public class MultistepScoreBuilder extends AbstractQueryBuilder<MultistepScoreBu
         }
         MultistepScoreBuilder multistepScoreBuilder = new MultistepScoreBuilder(fieldName, value);
         multistepScoreBuilder.analyzer(analyzer);
+        multistepScoreBuilder.tiebreakField(tiebreakField);
+        multistepScoreBuilder.operator(operator);
+        multistepScoreBuilder.minimumShouldMatch(minimumShouldMatch);
         multistepScoreBuilder.zeroTermsQuery(zeroTermsQuery);
         multistepScoreBuilder.queryName(queryName);
         multistepScoreBuilder.boost(boost);
+        multistepScoreBuilder.concurrent(concurrent);
+        multistepScoreBuilder.stepCursor(stepCursor);
         if (base != null) {
             multistepScoreBuilder.base(base);
         }
+        if (cutoffFrequency != null) {
+            multistepScoreBuilder.cutoffFrequency(cutoffFrequency);
+        }
         return multistepScoreBuilder;
     }
 }
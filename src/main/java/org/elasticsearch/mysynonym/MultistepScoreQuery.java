@@ -1,27 +1,34 @@
 package org.elasticsearch.mysynonym;
 
 import org.apache.lucene.analysis.Analyzer;
-import org.apache.lucene.analysis.CachingTokenFilter;
 import org.apache.lucene.analysis.TokenStream;
-import org.apache.lucene.analysis.tokenattributes.PackedTokenAttributeImpl;
 import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
-import org.apache.lucene.analysis.tokenattributes.PositionLengthAttribute;
 import org.apache.lucene.analysis.tokenattributes.TermToBytesRefAttribute;
-import org.apache.lucene.index.Term;
+import org.apache.lucene.analysis.tokenattributes.TypeAttribute;
 import org.apache.lucene.search.*;
 import org.elasticsearch.ElasticsearchException;
 import org.elasticsearch.common.io.stream.StreamInput;
 import org.elasticsearch.common.io.stream.StreamOutput;
 import org.elasticsearch.common.io.stream.Writeable;
 import org.elasticsearch.common.lucene.search.Queries;
+import org.elasticsearch.index.analysis.NamedAnalyzer;
 import org.elasticsearch.index.mapper.MappedFieldType;
 import org.elasticsearch.index.query.QueryShardContext;
-import org.elasticsearch.myterm.TermQuery_V1;
-import org.elasticsearch.similarity.MultistepSimilarity;
+import org.elasticsearch.myterm.ConcurrentLeafSearch;
+import org.elasticsearch.myterm.MultiFieldMultistepQuery;
+import org.elasticsearch.myterm.MultistepMetrics;
+import org.elasticsearch.myterm.MultistepTermsQuery;
+import org.elasticsearch.myterm.StepBucketQuery;
+import org.elasticsearch.myterm.StepCursor;
+import org.elasticsearch.myterm.TermStepCache;
+import org.elasticsearch.myterm.TopDocsCache;
+import org.elasticsearch.similarity.StepTfTokenFilterFactory;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
 
 import static org.elasticsearch.common.lucene.search.Queries.newUnmappedFieldQuery;
 
@@ -84,6 +91,76 @@ public class MultistepScoreQuery {
         this.base = base;
     }
 
+    // 热度字段，不为 null 时 score 中打包了热度
+    private String tiebreakField;
+
+    public String getTiebreakField() {
+        return tiebreakField;
+    }
+
+    public void setTiebreakField(String tiebreakField) {
+        this.tiebreakField = tiebreakField;
+    }
+
+    // 至少需要命中的 position 数，支持 match query 的 minimum_should_match 写法，为 null 时不限制
+    private String minimumShouldMatch;
+
+    public void setMinimumShouldMatch(String minimumShouldMatch) {
+        this.minimumShouldMatch = minimumShouldMatch;
+    }
+
+    // 高频 position 的阈值，和 match query 的 cutoff_frequency 一样，小于 1 时为占文档总数的比例，为 null 时不区分高低频
+    private Float cutoffFrequency;
+
+    public void setCutoffFrequency(Float cutoffFrequency) {
+        this.cutoffFrequency = cutoffFrequency;
+    }
+
+    // 字段在索引时是否已经写入了阶梯 tf，在 parse 时根据 index analyzer 判断
+    private boolean precomputedTf;
+
+    // 节点级别的分词结果缓存，可以为 null
+    private AnalysisCache analysisCache;
+
+    public void setAnalysisCache(AnalysisCache analysisCache) {
+        this.analysisCache = analysisCache;
+    }
+
+    // 节点级别的 term 缓存，可以为 null
+    private TermStepCache termCache;
+
+    public void setTermCache(TermStepCache termCache) {
+        this.termCache = termCache;
+    }
+
+    // 节点级别的 top-N 结果缓存，可以为 null
+    private TopDocsCache resultCache;
+
+    public void setResultCache(TopDocsCache resultCache) {
+        this.resultCache = resultCache;
+    }
+
+    // 节点级别的运行指标，可以为 null
+    private MultistepMetrics metrics;
+
+    public void setMetrics(MultistepMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    // 节点级别的并行 segment 搜索，为 null 时串行搜索
+    private ConcurrentLeafSearch concurrentSearch;
+
+    public void setConcurrentSearch(ConcurrentLeafSearch concurrentSearch) {
+        this.concurrentSearch = concurrentSearch;
+    }
+
+    // 逐个阶梯导出时的游标，为 null 时是普通的查询
+    private StepCursor stepCursor;
+
+    public void setStepCursor(StepCursor stepCursor) {
+        this.stepCursor = stepCursor;
+    }
+
     public MultistepScoreQuery(QueryShardContext context) {
         this.context = context;
     }
@@ -119,94 +196,198 @@ public class MultistepScoreQuery {
             this.analyzer = analyzer;
         }
 
+        checkSearchAnalyzer(fieldName, this.analyzer);
+        this.precomputedTf = StepTfTokenFilterFactory.appliesTo(fieldType.indexAnalyzer());
         return parseInternal(fieldName, fieldType, value.toString());
     }
 
+    /**
+     * multistep_tf 把每个 term 合并为一个 token，并且改写了 term frequency，不能用于查询分词；
+     * 没有指定 search_analyzer 时字段的 search analyzer 就是 index analyzer
+     */
+    private static void checkSearchAnalyzer(String fieldName, Analyzer analyzer) {
+        if (StepTfTokenFilterFactory.appliesTo(analyzer)) {
+            throw new IllegalArgumentException("[" + StepTfTokenFilterFactory.NAME + "] can not be used to analyze the query on field ["
+                    + fieldName + "], set a [search_analyzer] without it");
+        }
+    }
+
     protected final Query parseInternal(String fieldName, MappedFieldType fieldType, String queryText) throws IOException {
-        final Query query;
+        final PositionTerms positionTerms = analyze(analyzer, fieldName, queryText);
+        if (positionTerms.isEmpty()) {
+            return zeroTermsQuery();
+        }
+        final MultistepTermsQuery query = analyzeList(fieldName, positionTerms, base, precomputedTf);
+        return stepCursor == null ? query : new StepBucketQuery(query, stepCursor);
+    }
+
+    /**
+     * 多个字段组合成一个 {@link MultiFieldMultistepQuery}，每个字段一个 {@link MultistepTermsQuery}，
+     * 使用相同 search analyzer 的字段只分词一次，没有 term 或者没有 mapping 的字段不参与查询
+     *
+     * @param fieldBoosts 字段和它的 boost
+     * @param fieldBases  字段单独指定的 base，没有指定的字段使用 query 的 base
+     */
+    public Query parseFields(Map<String, Float> fieldBoosts, Map<String, Double> fieldBases, Object value,
+                             MultiFieldMultistepQuery.Combine combine) throws IOException {
+        final String queryText = value.toString();
+        final Map<Analyzer, PositionTerms> analyzed = new IdentityHashMap<>();
+        final List<MultistepTermsQuery> queries = new ArrayList<>(fieldBoosts.size());
+        final List<Float> boosts = new ArrayList<>(fieldBoosts.size());
+        boolean mapped = false;
+        for (Map.Entry<String, Float> field : fieldBoosts.entrySet()) {
+            final String fieldName = field.getKey();
+            final MappedFieldType fieldType = context.fieldMapper(fieldName);
+            if (fieldType == null) {
+                continue;
+            }
+            mapped = true;
+            final Analyzer fieldAnalyzer = getAnalyzer(fieldType);
+            checkSearchAnalyzer(fieldName, fieldAnalyzer);
+            PositionTerms positionTerms = analyzed.get(fieldAnalyzer);
+            if (positionTerms == null) {
+                positionTerms = analyze(fieldAnalyzer, fieldName, queryText);
+                analyzed.put(fieldAnalyzer, positionTerms);
+            }
+            if (positionTerms.isEmpty()) {
+                continue;
+            }
+            final Double fieldBase = fieldBases.get(fieldName);
+            queries.add(analyzeList(fieldName, positionTerms, fieldBase == null ? base : fieldBase,
+                    StepTfTokenFilterFactory.appliesTo(fieldType.indexAnalyzer())));
+            boosts.add(field.getValue());
+        }
+        if (mapped == false) {
+            return newUnmappedFieldQuery(String.join(",", fieldBoosts.keySet()));
+        }
+        if (queries.isEmpty()) {
+            return zeroTermsQuery();
+        }
+        final float[] boostArray = new float[boosts.size()];
+        for (int i = 0; i < boostArray.length; i++) {
+            boostArray[i] = boosts.get(i);
+        }
+        MultiFieldMultistepQuery query = new MultiFieldMultistepQuery(queries.toArray(new MultistepTermsQuery[0]), boostArray, combine);
+        query.setResultCache(resultCache);
+        query.setMetrics(metrics);
+        query.setConcurrentSearch(concurrentSearch);
+        return query;
+    }
+
+    /**
+     * 分词(包括分词缓存的查找)并记录耗时，分词结果只和 analyzer 以及 query text 有关，可以在字段之间复用
+     */
+    private PositionTerms analyze(Analyzer analyzer, String fieldName, String queryText) {
+        final long start = metrics == null ? 0L : System.nanoTime();
+        final PositionTerms positionTerms;
+        if (analysisCache != null && analyzer instanceof NamedAnalyzer) {
+            // 相同的 (analyzer, query text) 直接复用分词结果，使用同一个 analyzer 的字段之间也可以复用
+            positionTerms = analysisCache.getOrAnalyze((NamedAnalyzer) analyzer, queryText,
+                    text -> analyzeText(analyzer, fieldName, text));
+        } else {
+            positionTerms = analyzeText(analyzer, fieldName, queryText);
+        }
+        if (metrics != null) {
+            recordAnalysis(System.nanoTime() - start, positionTerms);
+        }
+        return positionTerms;
+    }
+
+    private void recordAnalysis(long nanos, PositionTerms positionTerms) {
+        int synonymTokens = 0;
+        int positions = 0;
+        for (int i = 0; i < positionTerms.size(); i++) {
+            if (positionTerms.isSynonym(i)) {
+                synonymTokens++;
+            }
+            if (i == 0 || positionTerms.position(i) != positionTerms.position(i - 1)) {
+                positions++;
+            }
+        }
+        metrics.onAnalysis(nanos, positionTerms.size(), synonymTokens, positions);
+    }
+
+    private PositionTerms analyzeText(Analyzer analyzer, String fieldName, String queryText) {
         // Use the analyzer to get all the tokens, and then build an appropriate
         // query based on the analysis chain.
         try (TokenStream source = analyzer.tokenStream(fieldName, queryText)) {
-            query = createFieldQuery(source, fieldType, fieldName);
+            return analyzeTerms(source);
         } catch (IOException e) {
             throw new RuntimeException("Error analyzing query text", e);
         }
-        return query == null ? zeroTermsQuery() : query;
     }
 
-    private Query createFieldQuery(TokenStream source, MappedFieldType fieldType, String field) {
+    private PositionTerms analyzeTerms(TokenStream stream) {
 
-        // 收集每一个 position 上的 term (如果有同义词 ，会有多个 term)
-        List<TermType> positionTerms = new ArrayList<>();
-        // Build an appropriate query based on the analysis chain.
-        try (CachingTokenFilter stream = new CachingTokenFilter(source)) {
+        // 收集每一个 position 上的 term (如果有同义词 ，会有多个 term)，使用当前线程复用的缓冲区
+        PositionTerms.Builder positionTerms = PositionTerms.builder();
+        // token stream 只遍历一次，不需要 CachingTokenFilter 缓存每个 token 的属性
+        try {
 
             TermToBytesRefAttribute termAtt = stream.getAttribute(TermToBytesRefAttribute.class);
             PositionIncrementAttribute posIncAtt = stream.addAttribute(PositionIncrementAttribute.class);
-            PositionLengthAttribute posLenAtt = stream.addAttribute(PositionLengthAttribute.class);
+            TypeAttribute typeAtt = stream.addAttribute(TypeAttribute.class);
 
             if (termAtt == null) {
-                return null;
+                return PositionTerms.EMPTY;
             }
 
-            // phase 1: read through the stream and assess the situation:
-            // counting the number of tokens/positions and marking if we have any synonyms.
-
-
             stream.reset();
             // 执行 stream.incrementToken() 会产生一个 term
-            // TODO 检查 stop 词的情况
+            // position increment 为 0 的 term(同义词等)和前一个 term 在同一个 position 上，停用词被删除时 increment 大于 1
+            int position = -1;
             while (stream.incrementToken()) {
-                int positionIncrement = posIncAtt.getPositionIncrement();
+                position += Math.max(0, posIncAtt.getPositionIncrement());
                 // 分词出下一个 term
-                PackedTokenAttributeImpl t = ((PackedTokenAttributeImpl) termAtt);
-                String type = t.type();
-                positionTerms.add(new TermType(field, type, t.getBytesRef()));
-            }
-
-            // phase 2: based on token count, presence of synonyms, and options
-            // formulate a single term, boolean, or phrase.
-            if (positionTerms.size() == 0) {
-                return null;
-            } else {
-                return analyzeList(positionTerms);
+                positionTerms.add(termAtt.getBytesRef(), typeAtt.type(), Math.max(0, position));
             }
+            stream.end();
+            return positionTerms.build();
         } catch (IOException e) {
             throw new RuntimeException("Error analyzing query text", e);
         }
     }
 
-    private Query analyzeList(List<TermType> positionTerms) {
-        if (positionTerms.size() == 1) {
-            TermType termType = positionTerms.get(0);
-            return newTermQuery(termType);
-        } else {
-            return newBooleanQuery(positionTerms);
-        }
-    }
-
-    private Query newTermQuery(TermType termType){
-        TermQuery_V1 query = new TermQuery_V1(new Term(termType.getField(), termType.getBytes()));
-        query.setSimilarity(new MultistepSimilarity(base));
-        return query;
+    /**
+     * 所有 position 上的 term 合并成一个 {@link MultistepTermsQuery}，在同一个 scorer 中计算阶梯得分，
+     * 同一个 position 上的原始 term 合并打分，同义词只参与召回，得分贡献为 0。
+     * 分词结果中没有字段，多字段查询时分词结果在字段之间复用
+     */
+    private MultistepTermsQuery analyzeList(String field, PositionTerms positionTerms, double base, boolean precomputedTf) {
+        final int[] positions = positionTerms.positions();
+        return new MultistepTermsQuery.Builder(field, positionTerms.terms(), positionTerms.synonyms(), base)
+                .positions(positions)
+                .tiebreakField(tiebreakField)
+                .minShouldMatch(minShouldMatch(positions))
+                .cutoffFrequency(cutoffFrequency == null ? 0f : cutoffFrequency)
+                .precomputedTf(precomputedTf)
+                .termCache(termCache)
+                .resultCache(resultCache)
+                .metrics(metrics)
+                .concurrentSearch(concurrentSearch)
+                .build();
     }
 
 
-    private Query newBooleanQuery(List<TermType> positionTerms) {
-        BooleanQuery.Builder q = new BooleanQuery.Builder();
-        for (TermType t : positionTerms){
-            if ("SYNONYM".equals(t.getType())) {
-                // 同义词的召回得分贡献为 0
-                TermQuery termQuery = new TermQuery(new Term(t.getField(), t.getBytes()));
-                q.add(new BoostQuery(termQuery, 0f), BooleanClause.Occur.SHOULD);
-            } else {
-                q.add(newTermQuery(t), BooleanClause.Occur.SHOULD);
+    /**
+     * 按照 position 的个数计算 minimum_should_match，operator 为 and 时需要命中所有 position
+     */
+    private int minShouldMatch(int[] positions) {
+        int positionCount = 0;
+        for (int i = 0; i < positions.length; i++) {
+            if (i == 0 || positions[i] != positions[i - 1]) {
+                positionCount++;
             }
         }
-        return q.build();
+        if (occur == BooleanClause.Occur.MUST) {
+            return positionCount;
+        }
+        if (minimumShouldMatch == null) {
+            return 0;
+        }
+        return Queries.calculateMinShouldMatch(positionCount, minimumShouldMatch);
     }
 
-
     protected Analyzer getAnalyzer(MappedFieldType fieldType) {
         if (analyzer == null) {
             return context.getSearchAnalyzer(fieldType);
@@ -0,0 +1,158 @@
+package org.elasticsearch.mysynonym;
+
+import org.apache.lucene.analysis.synonym.SynonymGraphFilter;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.RamUsageEstimator;
+
+import java.util.Arrays;
+
+/**
+ * @Classname PositionTerms
+ * @Description 分词之后的 position term 列表，不再为每个 token 分配一个对象(字段引用、type 字符串和深拷贝的 BytesRef)：
+ * 所有 term 的字节放在一个 byte[] 中，position 为 int[]，token 类型为 byte[]，每次分词只分配固定的几个数组。
+ * 分词时的可增长缓冲区按线程复用，{@link Builder#build()} 只复制实际使用的部分。
+ * 实例不可修改，可以放进 {@link AnalysisCache}，也可以被多个 query 共享，返回的数组都不能修改。
+ */
+final class PositionTerms {
+
+    /** 普通 term */
+    static final byte WORD = 0;
+    /** 同义词，只召回不打分 */
+    static final byte SYNONYM = 1;
+
+    static final PositionTerms EMPTY = new PositionTerms(BytesRef.EMPTY_BYTES, new int[1], new int[0], new byte[0], 0);
+
+    private static final long BASE_RAM_BYTES_USED = RamUsageEstimator.shallowSizeOfInstance(PositionTerms.class);
+
+    /** 复用的缓冲区超过这个大小之后不再保留，避免一次很长的查询让线程一直持有大数组 */
+    private static final int MAX_RETAINED_BYTES = 64 * 1024;
+    private static final int MAX_RETAINED_TERMS = 4096;
+
+    private static final ThreadLocal<Builder> BUILDERS = ThreadLocal.withInitial(Builder::new);
+
+    private final byte[] bytes;
+    /** 第 i 个 term 的字节为 [offsets[i], offsets[i + 1]) */
+    private final int[] offsets;
+    private final int[] positions;
+    private final byte[] types;
+    private final int size;
+
+    private PositionTerms(byte[] bytes, int[] offsets, int[] positions, byte[] types, int size) {
+        this.bytes = bytes;
+        this.offsets = offsets;
+        this.positions = positions;
+        this.types = types;
+        this.size = size;
+    }
+
+    /**
+     * 当前线程复用的 builder，使用之前已经清空；同一个线程上一次 build 之前不能再次获取
+     */
+    static Builder builder() {
+        final Builder builder = BUILDERS.get();
+        builder.clear();
+        return builder;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    int position(int index) {
+        return positions[index];
+    }
+
+    boolean isSynonym(int index) {
+        return types[index] == SYNONYM;
+    }
+
+    /** 和 term 一一对应的 position，非递减 */
+    int[] positions() {
+        return positions;
+    }
+
+    /**
+     * 所有 term，共享同一个 byte[]，不会复制字节
+     */
+    BytesRef[] terms() {
+        final BytesRef[] terms = new BytesRef[size];
+        for (int i = 0; i < size; i++) {
+            terms[i] = new BytesRef(bytes, offsets[i], offsets[i + 1] - offsets[i]);
+        }
+        return terms;
+    }
+
+    /** 和 term 一一对应，true 表示是同义词 */
+    boolean[] synonyms() {
+        final boolean[] synonyms = new boolean[size];
+        for (int i = 0; i < size; i++) {
+            synonyms[i] = types[i] == SYNONYM;
+        }
+        return synonyms;
+    }
+
+    long ramBytesUsed() {
+        return BASE_RAM_BYTES_USED + RamUsageEstimator.sizeOf(bytes) + RamUsageEstimator.sizeOf(offsets)
+                + RamUsageEstimator.sizeOf(positions) + RamUsageEstimator.sizeOf(types);
+    }
+
+    /**
+     * 分词时逐个追加 term，可增长的数组在同一个线程的多次分词之间复用
+     */
+    static final class Builder {
+        private byte[] bytes = new byte[256];
+        private int[] offsets = new int[17];
+        private int[] positions = new int[16];
+        private byte[] types = new byte[16];
+        private int size;
+
+        private Builder() {}
+
+        private void clear() {
+            if (bytes.length > MAX_RETAINED_BYTES) {
+                bytes = new byte[256];
+            }
+            if (positions.length > MAX_RETAINED_TERMS) {
+                offsets = new int[17];
+                positions = new int[16];
+                types = new byte[16];
+            }
+            size = 0;
+        }
+
+        /**
+         * @param term     term 的字节，会被复制到共享的 byte[] 中，调用之后可以被修改
+         * @param type     token 的类型(TypeAttribute)
+         * @param position term 所在的 position
+         */
+        void add(BytesRef term, String type, int position) {
+            // 三个数组按各自的元素大小扩容，长度不一定一致，分别检查
+            positions = ArrayUtil.grow(positions, size + 1);
+            types = ArrayUtil.grow(types, size + 1);
+            offsets = ArrayUtil.grow(offsets, size + 2);
+            final int offset = offsets[size];
+            bytes = ArrayUtil.grow(bytes, offset + term.length);
+            System.arraycopy(term.bytes, term.offset, bytes, offset, term.length);
+            offsets[size + 1] = offset + term.length;
+            positions[size] = position;
+            types[size] = SynonymGraphFilter.TYPE_SYNONYM.equals(type) ? SYNONYM : WORD;
+            size++;
+        }
+
+        /**
+         * 复制实际使用的部分，builder 可以继续复用
+         */
+        PositionTerms build() {
+            if (size == 0) {
+                return EMPTY;
+            }
+            return new PositionTerms(Arrays.copyOf(bytes, offsets[size]), Arrays.copyOf(offsets, size + 1),
+                    Arrays.copyOf(positions, size), Arrays.copyOf(types, size), size);
+        }
+    }
+}
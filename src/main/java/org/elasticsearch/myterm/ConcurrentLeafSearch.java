@@ -0,0 +1,245 @@
+package org.elasticsearch.myterm;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.CollectionTerminatedException;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.FilterCollector;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.LeafCollector;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.ScoreMode;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopScoreDocCollector;
+import org.apache.lucene.search.TotalHits;
+import org.apache.lucene.search.Weight;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.threadpool.ExecutorBuilder;
+import org.elasticsearch.threadpool.FixedExecutorBuilder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+/**
+ * @Classname ConcurrentLeafSearch
+ * @Description multistep_score 在大 shard 上的并行 segment 搜索(查询中指定 "concurrent": true 时生效)。
+ * ES 7.3 在一个 shard 内串行遍历 segment，query 无法改变 collector 的执行方式，所以 weight 在第一次收集(bulkScorer)时把 segment
+ * 按顺序切分为连续的 slice，在专用的有界线程池中并行收集每个 slice 的前 K 个结果，合并之后由 {@link TopDocsCache} 的 cached weight
+ * 直接交给搜索的 collector，不再遍历 postings；explain、profile、rescore 只使用 scorer，不会触发并行收集。
+ * 每个 slice 都通过 searcher 收集，ES 的 ContextIndexSearcher 在每个 slice 中检查搜索超时和取消。
+ * 合并时按照 (score 降序, doc id 升序) 排序，和串行搜索时 collector 的 tie-break 一致，tiebreak 模式下 score 中已经打包了热度，同样适用。
+ * K 由请求决定({@link SearchWindow#hits()})：至少是 from + size，并且比 track_total_hits 多一个，collector 看到 K 个 doc 时
+ * 会像串行搜索一样把 total hits 标记为 GREATER_THAN_OR_EQUAL_TO，所以结果和 total hits 都和串行搜索一致。
+ * 只对 {@link SearchWindow} 中的顶层 query 生效，K 超过 top_n 时串行搜索；线程池队列满时 slice 在当前线程中执行。
+ */
+public final class ConcurrentLeafSearch {
+
+    public static final String THREAD_POOL_NAME = "multistep_score";
+
+    public static final Setting<Integer> TOP_N_SETTING =
+            Setting.intSetting("multistep_score.concurrent.top_n", 100, 1, 100_000, Setting.Property.NodeScope);
+    /** shard 的 doc 数小于这个值时仍然串行搜索 */
+    public static final Setting<Integer> MIN_DOCS_SETTING =
+            Setting.intSetting("multistep_score.concurrent.min_docs", 1_000_000, 0, Setting.Property.NodeScope);
+
+    /** 和 Lucene IndexSearcher 的默认切分一样，小 segment 合并成一个 slice */
+    private static final int MAX_DOCS_PER_SLICE = 250_000;
+    private static final int MAX_SEGMENTS_PER_SLICE = 5;
+
+    private final Executor executor;
+    private final int topN;
+    private final int minDocs;
+
+    public ConcurrentLeafSearch(Settings settings, Executor executor) {
+        this.executor = executor;
+        this.topN = TOP_N_SETTING.get(settings);
+        this.minDocs = MIN_DOCS_SETTING.get(settings);
+    }
+
+    /** 大小为可用处理器数的一半，队列有界 */
+    public static ExecutorBuilder<?> executorBuilder(Settings settings) {
+        return new FixedExecutorBuilder(settings, THREAD_POOL_NAME, Math.max(1, EsExecutors.numberOfProcessors(settings) / 2), 1000,
+                "thread_pool." + THREAD_POOL_NAME);
+    }
+
+    public int topN() {
+        return topN;
+    }
+
+    /** reader 足够大，并且可以切分出多个 slice */
+    boolean applies(IndexReader reader) {
+        return reader.maxDoc() >= minDocs && slices(reader.leaves()).size() > 1;
+    }
+
+    /**
+     * query 是 {@link SearchWindow} 中的顶层 query、reader 足够大并且窗口不超过 top_n 时，包装为第一次收集时并行收集的 weight，
+     * 只对这个 searcher 的 reader 生效；否则返回 inner
+     */
+    Weight wrap(IndexSearcher searcher, Query query, Weight inner, ScoreMode scoreMode) {
+        final SearchWindow window = scoreMode == ScoreMode.TOP_SCORES ? SearchWindow.of(query) : null;
+        if (window == null || window.hits() > topN || applies(searcher.getIndexReader()) == false) {
+            return inner;
+        }
+        return TopDocsCache.collectOnce(searcher, query, inner, this, window.hits());
+    }
+
+    /**
+     * 按照 doc id 的顺序把 segment 切分为连续的 slice
+     */
+    static List<List<LeafReaderContext>> slices(List<LeafReaderContext> leaves) {
+        List<List<LeafReaderContext>> slices = new ArrayList<>();
+        List<LeafReaderContext> current = new ArrayList<>();
+        long docs = 0;
+        for (LeafReaderContext ctx : leaves) {
+            current.add(ctx);
+            docs += ctx.reader().maxDoc();
+            if (docs >= MAX_DOCS_PER_SLICE || current.size() >= MAX_SEGMENTS_PER_SLICE) {
+                slices.add(current);
+                current = new ArrayList<>();
+                docs = 0;
+            }
+        }
+        if (current.isEmpty() == false) {
+            slices.add(current);
+        }
+        return slices;
+    }
+
+    /**
+     * 并行收集每个 slice 的 top-N 再合并，第一个 slice 在当前线程中执行。
+     * 每个 slice 的 total hits 准确统计到 N，超过时为 GREATER_THAN_OR_EQUAL_TO，合并后的 total hits 是各个 slice 之和。
+     * 一个 slice 超时或者被取消时，其他 slice 在下一次检查时同样结束，等所有 slice 结束之后再抛出第一个异常
+     */
+    TopDocs search(IndexSearcher searcher, Weight weight, int topN) throws IOException {
+        final List<List<LeafReaderContext>> slices = slices(searcher.getIndexReader().leaves());
+        final List<FutureTask<TopDocs>> tasks = new ArrayList<>(slices.size());
+        for (List<LeafReaderContext> slice : slices) {
+            tasks.add(new FutureTask<>(() -> collect(searcher, slice, weight, topN)));
+        }
+        for (int i = 1; i < tasks.size(); i++) {
+            try {
+                executor.execute(tasks.get(i));
+            } catch (EsRejectedExecutionException e) {
+                tasks.get(i).run();
+            }
+        }
+        tasks.get(0).run();
+        final TopDocs[] results = new TopDocs[tasks.size()];
+        Throwable failure = null;
+        for (int i = 0; i < tasks.size(); i++) {
+            try {
+                results[i] = tasks.get(i).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("interrupted while collecting [" + weight.getQuery() + "]", e);
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause();
+                }
+            }
+        }
+        if (failure instanceof IOException) {
+            throw (IOException) failure;
+        }
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        }
+        if (failure != null) {
+            throw new IllegalStateException("failed to collect [" + weight.getQuery() + "]", failure);
+        }
+        return merge(results, topN);
+    }
+
+    /**
+     * 通过 searcher 在 leaves 上收集 top-N，ES 的 searcher 会给 weight 的 bulk scorer 加上超时和取消检查
+     */
+    static TopDocs collect(IndexSearcher searcher, List<LeafReaderContext> leaves, Weight weight, int topN) throws IOException {
+        TopScoreDocCollector collector = TopScoreDocCollector.create(topN, topN);
+        searcher.search(new WeightQuery(weight), new SliceCollector(collector, leaves));
+        return collector.topDocs();
+    }
+
+    /** 按照 (score 降序, doc id 升序) 合并 */
+    private static TopDocs merge(TopDocs[] results, int topN) {
+        long totalHits = 0;
+        TotalHits.Relation relation = TotalHits.Relation.EQUAL_TO;
+        int size = 0;
+        for (TopDocs topDocs : results) {
+            totalHits += topDocs.totalHits.value;
+            if (topDocs.totalHits.relation == TotalHits.Relation.GREATER_THAN_OR_EQUAL_TO) {
+                relation = TotalHits.Relation.GREATER_THAN_OR_EQUAL_TO;
+            }
+            size += topDocs.scoreDocs.length;
+        }
+        final ScoreDoc[] all = new ScoreDoc[size];
+        int upto = 0;
+        for (TopDocs topDocs : results) {
+            System.arraycopy(topDocs.scoreDocs, 0, all, upto, topDocs.scoreDocs.length);
+            upto += topDocs.scoreDocs.length;
+        }
+        Arrays.sort(all, (a, b) -> a.score != b.score ? Float.compare(b.score, a.score) : Integer.compare(a.doc, b.doc));
+        return new TopDocs(new TotalHits(totalHits, relation), Arrays.copyOf(all, Math.min(topN, all.length)));
+    }
+
+    /**
+     * 直接返回已经创建好的 weight，slice 不需要重新计算统计信息
+     */
+    private static final class WeightQuery extends Query {
+        private final Weight weight;
+
+        WeightQuery(Weight weight) {
+            this.weight = weight;
+        }
+
+        @Override
+        public Weight createWeight(IndexSearcher searcher, ScoreMode scoreMode, float boost) {
+            return weight;
+        }
+
+        @Override
+        public String toString(String field) {
+            return weight.getQuery().toString(field);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return sameClassAs(other) && weight == ((WeightQuery) other).weight;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * classHash() + System.identityHashCode(weight);
+        }
+    }
+
+    /**
+     * 只收集一个 slice 中的 segment，其他 segment 由 searcher 跳过
+     */
+    private static final class SliceCollector extends FilterCollector {
+        private final int minOrd;
+        private final int maxOrd;
+
+        SliceCollector(Collector in, List<LeafReaderContext> slice) {
+            super(in);
+            this.minOrd = slice.get(0).ord;
+            this.maxOrd = slice.get(slice.size() - 1).ord;
+        }
+
+        @Override
+        public LeafCollector getLeafCollector(LeafReaderContext context) throws IOException {
+            if (context.ord < minOrd || context.ord > maxOrd) {
+                throw new CollectionTerminatedException();
+            }
+            return super.getLeafCollector(context);
+        }
+    }
+}
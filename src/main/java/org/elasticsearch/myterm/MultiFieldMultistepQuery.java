@@ -0,0 +1,320 @@
+package org.elasticsearch.myterm;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.*;
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.RamUsageEstimator;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * @Classname MultiFieldMultistepQuery
+ * @Description 多字段的阶梯打分 query：每个字段一个 {@link MultistepTermsQuery}(各自的 base)，乘以字段的 boost 之后在一个
+ * {@link MultiFieldMultistepScorer} 中组合，MAX 取得分最高的字段，SUM 把所有字段的得分相加。
+ * 替代 bool 中放多个 multistep_score 的写法：查询文本按照 analyzer 只分词一次，整个 query 只有一个 weight，
+ * 结果缓存和并行 segment 搜索也只作用一次。热度打包的 score 不能取最大值或相加，所以字段上不能设置 tiebreakField。
+ */
+public class MultiFieldMultistepQuery extends Query implements Accountable {
+
+    private static final long BASE_RAM_BYTES_USED = RamUsageEstimator.shallowSizeOfInstance(MultiFieldMultistepQuery.class);
+
+    /** 整数得分模式下字段 boost 的上限，保证字段 boost 乘以整数阶梯不会溢出 long */
+    private static final int MAX_INTEGER_BOOST = 1 << 16;
+
+    /** 多个字段得分的组合方式 */
+    public enum Combine {
+        MAX, SUM;
+
+        public static Combine fromString(String combine) {
+            for (Combine value : values()) {
+                if (value.name().equalsIgnoreCase(combine)) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("unknown combine [" + combine + "], must be one of [max, sum]");
+        }
+
+        @Override
+        public String toString() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    private final MultistepTermsQuery[] queries;
+    /** 和 queries 一一对应的字段 boost */
+    private final float[] boosts;
+    private final Combine combine;
+    /** 节点级别的 top-N 结果缓存，不参与 query 的 equals/hashCode */
+    private TopDocsCache resultCache;
+    /** 节点级别的运行指标，不参与 query 的 equals/hashCode */
+    private MultistepMetrics metrics;
+    /** 节点级别的并行 segment 搜索，为 null 时串行搜索，不参与 query 的 equals/hashCode */
+    private ConcurrentLeafSearch concurrentSearch;
+
+    /**
+     * @param queries 每个字段的阶梯打分 query，不能设置 tiebreakField
+     * @param boosts  和 queries 一一对应的字段 boost
+     * @param combine 多个字段得分的组合方式
+     */
+    public MultiFieldMultistepQuery(MultistepTermsQuery[] queries, float[] boosts, Combine combine) {
+        if (queries.length != boosts.length) {
+            throw new IllegalArgumentException("queries and boosts must have the same length");
+        }
+        for (MultistepTermsQuery query : queries) {
+            if (query.getTiebreakField() != null) {
+                throw new IllegalArgumentException("tiebreak_field is not supported when combining fields, but got [" + query + "]");
+            }
+        }
+        this.queries = queries;
+        this.boosts = boosts;
+        this.combine = Objects.requireNonNull(combine);
+    }
+
+    public MultistepTermsQuery[] getQueries() {
+        return queries;
+    }
+
+    public Combine getCombine() {
+        return combine;
+    }
+
+    public void setResultCache(TopDocsCache resultCache) {
+        this.resultCache = resultCache;
+    }
+
+    public void setMetrics(MultistepMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public void setConcurrentSearch(ConcurrentLeafSearch concurrentSearch) {
+        this.concurrentSearch = concurrentSearch;
+    }
+
+    final class MultiFieldWeight extends Weight {
+        private final MultistepTermsQuery.MultistepWeight[] weights;
+        /** 所有字段的整数阶梯权重依次拼接 */
+        private final int[] stepWeights;
+        /** 字段 boost 都是正整数时为整数形式的字段 boost，得分按整数累加，否则为 null */
+        private final int[] multipliers;
+        private final float boost;
+
+        MultiFieldWeight(IndexSearcher searcher, ScoreMode scoreMode, float boost) throws IOException {
+            super(MultiFieldMultistepQuery.this);
+            this.boost = boost;
+            this.multipliers = integerBoosts(boosts);
+            this.weights = new MultistepTermsQuery.MultistepWeight[queries.length];
+            int length = 0;
+            for (int i = 0; i < queries.length; i++) {
+                weights[i] = queries[i].createMultistepWeight(searcher, scoreMode, boost * boosts[i]);
+                length += weights[i].positionWeights().length;
+            }
+            this.stepWeights = new int[length];
+            for (int i = 0, upto = 0; i < weights.length; i++) {
+                final int[] positionWeights = weights[i].positionWeights();
+                System.arraycopy(positionWeights, 0, stepWeights, upto, positionWeights.length);
+                upto += positionWeights.length;
+            }
+        }
+
+        @Override
+        public void extractTerms(Set<Term> set) {
+            for (Weight weight : weights) {
+                weight.extractTerms(set);
+            }
+        }
+
+        @Override
+        public Scorer scorer(LeafReaderContext context) throws IOException {
+            final List<MultistepScorer> scorers = new ArrayList<>(weights.length);
+            final int[] fields = new int[weights.length];
+            for (int i = 0; i < weights.length; i++) {
+                final Scorer scorer = weights[i].scorer(context);
+                if (scorer != null) {
+                    fields[scorers.size()] = i;
+                    scorers.add((MultistepScorer) scorer);
+                }
+            }
+            return combined(scorers, fields);
+        }
+
+        /**
+         * @param fields scorers 中每个 scorer 对应的字段下标
+         */
+        private Scorer combined(List<MultistepScorer> scorers, int[] fields) {
+            if (scorers.isEmpty()) {
+                return null;
+            }
+            if (multipliers == null) {
+                // 只有一个字段命中时不需要 disjunction
+                return scorers.size() == 1 ? scorers.get(0) : new MultiFieldMultistepScorer(this, scorers.toArray(new MultistepScorer[0]), combine);
+            }
+            if (scorers.size() == 1 && multipliers[fields[0]] == 1) {
+                // 字段 boost 为 1 时 scorer 自己的得分和整数得分乘以 query boost 完全一致
+                return scorers.get(0);
+            }
+            final int[] fieldMultipliers = new int[scorers.size()];
+            for (int i = 0; i < fieldMultipliers.length; i++) {
+                fieldMultipliers[i] = multipliers[fields[i]];
+            }
+            return new MultiFieldMultistepScorer(this, scorers.toArray(new MultistepScorer[0]), combine, fieldMultipliers, boost);
+        }
+
+        @Override
+        public BulkScorer bulkScorer(LeafReaderContext context) throws IOException {
+            if (metrics == null) {
+                final Scorer scorer = scorer(context);
+                return scorer == null ? null : new DefaultBulkScorer(scorer);
+            }
+            final List<MultistepScorer> scorers = new ArrayList<>(weights.length);
+            final List<StepHistograms.Histogram> histograms = new ArrayList<>(weights.length);
+            final int[] fields = new int[weights.length];
+            for (int i = 0; i < weights.length; i++) {
+                final Scorer scorer = weights[i].scorer(context);
+                if (scorer != null) {
+                    fields[scorers.size()] = i;
+                    scorers.add((MultistepScorer) scorer);
+                    histograms.add(weights[i].stepHistogram(context, (MultistepScorer) scorer));
+                }
+            }
+            final Scorer scorer = combined(scorers, fields);
+            if (scorer == null) {
+                return null;
+            }
+            return new MultistepTermsQuery.MeasuredBulkScorer(new DefaultBulkScorer(scorer), scorers.toArray(new MultistepScorer[0]),
+                    metrics, histograms.toArray(new StepHistograms.Histogram[0]));
+        }
+
+        @Override
+        public boolean isCacheable(LeafReaderContext ctx) {
+            return true;
+        }
+
+        @Override
+        public Explanation explain(LeafReaderContext context, int doc) throws IOException {
+            List<Explanation> subs = new ArrayList<>();
+            float score = 0f;
+            for (Weight weight : weights) {
+                Explanation explanation = weight.explain(context, doc);
+                if (explanation.isMatch()) {
+                    subs.add(explanation);
+                    final float subScore = explanation.getValue().floatValue();
+                    score = combine == Combine.SUM ? score + subScore : Math.max(score, subScore);
+                }
+            }
+            if (subs.isEmpty()) {
+                return Explanation.noMatch("no matching field");
+            }
+            if (multipliers != null) {
+                // 整数得分模式下和 MultiFieldMultistepScorer 一样按整数组合，和搜索时的 float 换算完全一致
+                score = boost * explainStep(context, doc);
+            }
+            return Explanation.match(score, combine == Combine.SUM ? "sum of:" : "max of:", subs);
+        }
+
+        /**
+         * 整数得分模式下 doc 的整数得分。weight 可能被多个线程同时 explain，所以每次在本地创建每个字段的 scorer，
+         * 直接 advance 到 doc(通过 skip list 跳转)，而不是从 segment 开头迭代组合后的 scorer
+         */
+        private long explainStep(LeafReaderContext context, int doc) throws IOException {
+            long step = 0;
+            for (int i = 0; i < weights.length; i++) {
+                final MultistepScorer scorer = (MultistepScorer) weights[i].scorer(context);
+                if (scorer == null) {
+                    continue;
+                }
+                if (scorer.iterator().advance(doc) == doc) {
+                    final long fieldStep = (long) multipliers[i] * scorer.step();
+                    step = combine == Combine.SUM ? step + fieldStep : Math.max(step, fieldStep);
+                }
+            }
+            return step;
+        }
+
+        @Override
+        public String toString() {
+            return "weight(" + MultiFieldMultistepQuery.this + ")";
+        }
+    }
+
+    /**
+     * 字段 boost 都是不超过 {@link #MAX_INTEGER_BOOST} 的正整数时返回整数形式，否则返回 null
+     */
+    private static int[] integerBoosts(float[] boosts) {
+        final int[] multipliers = new int[boosts.length];
+        for (int i = 0; i < boosts.length; i++) {
+            final float boost = boosts[i];
+            if (boost < 1f || boost > MAX_INTEGER_BOOST || boost != (int) boost) {
+                return null;
+            }
+            multipliers[i] = (int) boost;
+        }
+        return multipliers;
+    }
+
+    @Override
+    public Weight createWeight(IndexSearcher searcher, ScoreMode scoreMode, float boost) throws IOException {
+        final MultiFieldWeight weight = new MultiFieldWeight(searcher, scoreMode, boost);
+        if (resultCache != null) {
+            return resultCache.wrap(searcher, this, weight, weight.stepWeights, scoreMode, boost, concurrentSearch);
+        }
+        if (concurrentSearch != null) {
+            return concurrentSearch.wrap(searcher, this, weight, scoreMode);
+        }
+        return weight;
+    }
+
+    @Override
+    public void visit(QueryVisitor visitor) {
+        QueryVisitor v = visitor.getSubVisitor(BooleanClause.Occur.SHOULD, this);
+        for (MultistepTermsQuery query : queries) {
+            query.visit(v);
+        }
+    }
+
+    @Override
+    public String toString(String field) {
+        StringBuilder buffer = new StringBuilder("multi_multistep_score(").append(combine).append(": ");
+        for (int i = 0; i < queries.length; i++) {
+            if (i != 0) {
+                buffer.append(" | ");
+            }
+            buffer.append(queries[i].toString(field));
+            if (boosts[i] != 1f) {
+                buffer.append("^").append(boosts[i]);
+            }
+        }
+        return buffer.append(")").toString();
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return sameClassAs(other) && equalsTo(getClass().cast(other));
+    }
+
+    private boolean equalsTo(MultiFieldMultistepQuery other) {
+        return Arrays.equals(queries, other.queries) &&
+                Arrays.equals(boosts, other.boosts) &&
+                combine == other.combine;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * classHash() + Objects.hash(Arrays.hashCode(queries), Arrays.hashCode(boosts), combine);
+    }
+
+    @Override
+    public long ramBytesUsed() {
+        long ramBytesUsed = BASE_RAM_BYTES_USED + RamUsageEstimator.shallowSizeOf(queries) + RamUsageEstimator.sizeOf(boosts);
+        for (MultistepTermsQuery query : queries) {
+            ramBytesUsed += query.ramBytesUsed();
+        }
+        return ramBytesUsed;
+    }
+}
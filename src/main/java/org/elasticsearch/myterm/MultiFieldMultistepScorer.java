@@ -0,0 +1,168 @@
+package org.elasticsearch.myterm;
+
+import org.apache.lucene.search.DisiPriorityQueue;
+import org.apache.lucene.search.DisiWrapper;
+import org.apache.lucene.search.DisjunctionDISIApproximation;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Weight;
+
+import java.io.IOException;
+
+/**
+ * @Classname MultiFieldMultistepScorer
+ * @Description {@link MultiFieldMultistepQuery} 的 scorer：每个字段一个 {@link MultistepScorer}，字段数量很少，
+ * 用 {@link DisiPriorityQueue} 做 disjunction，当前 doc 上所有字段的得分取最大值或者相加。
+ * MAX 时一个 doc 有竞争力当且仅当至少一个字段的得分有竞争力，所以 min competitive score 直接传给每个字段，
+ * 每个字段仍然按照 block-max 跳过没有竞争力的 doc；SUM 时单个字段的得分无法给出下界，不传递 min competitive score。
+ *
+ * 字段 boost 都是正整数时(multipliers 不为 null)，得分按整数计算：每个字段的整数阶梯乘以字段 boost 之后用 long 取最大值或者相加，
+ * 只在最后乘一次 query boost 转成 float，字段很多时不会有 float 相加的舍入误差；最大得分同样是精确的整数，
+ * min competitive score 先换算成整数下界，再按字段 boost 换算成每个字段的最低阶梯。
+ */
+final class MultiFieldMultistepScorer extends Scorer {
+
+    private final MultistepScorer[] scorers;
+    /** 和 scorers 一一对应的整数字段 boost，为 null 时按 float 组合各个字段的 score */
+    private final int[] multipliers;
+    /** 整数得分模式下的 query boost */
+    private final float boost;
+    private final DisiPriorityQueue subScorers;
+    private final DocIdSetIterator approximation;
+    private final MultiFieldMultistepQuery.Combine combine;
+
+    MultiFieldMultistepScorer(Weight weight, MultistepScorer[] scorers, MultiFieldMultistepQuery.Combine combine) {
+        this(weight, scorers, combine, null, 1f);
+    }
+
+    /**
+     * @param multipliers 和 scorers 一一对应的正整数字段 boost，为 null 时使用 scorer 自己的 float 得分
+     * @param boost       整数得分模式下的 query boost，scorer 中的 boost 不再生效
+     */
+    MultiFieldMultistepScorer(Weight weight, MultistepScorer[] scorers, MultiFieldMultistepQuery.Combine combine,
+                              int[] multipliers, float boost) {
+        super(weight);
+        this.scorers = scorers;
+        this.combine = combine;
+        this.multipliers = multipliers;
+        this.boost = boost;
+        this.subScorers = new DisiPriorityQueue(scorers.length);
+        for (int i = 0; i < scorers.length; i++) {
+            subScorers.add(new FieldWrapper(scorers[i], multipliers == null ? 0 : multipliers[i]));
+        }
+        this.approximation = new DisjunctionDISIApproximation(subScorers);
+    }
+
+    /** 带字段整数 boost 的 {@link DisiWrapper} */
+    private static final class FieldWrapper extends DisiWrapper {
+        final int multiplier;
+
+        FieldWrapper(MultistepScorer scorer, int multiplier) {
+            super(scorer);
+            this.multiplier = multiplier;
+        }
+    }
+
+    @Override
+    public int docID() {
+        return approximation.docID();
+    }
+
+    @Override
+    public DocIdSetIterator iterator() {
+        return approximation;
+    }
+
+    @Override
+    public float score() throws IOException {
+        if (multipliers != null) {
+            return boost * step();
+        }
+        float score = 0f;
+        for (DisiWrapper w = subScorers.topList(); w != null; w = w.next) {
+            final float subScore = w.scorer.score();
+            score = combine == MultiFieldMultistepQuery.Combine.SUM ? score + subScore : Math.max(score, subScore);
+        }
+        return score;
+    }
+
+    /** 整数得分模式下当前 doc 的整数得分 */
+    private long step() throws IOException {
+        long step = 0;
+        for (DisiWrapper w = subScorers.topList(); w != null; w = w.next) {
+            // 调用 score() 以便记录打分的 doc 数和阶梯分布，得分本身取整数阶梯
+            w.scorer.score();
+            final long subStep = (long) ((FieldWrapper) w).multiplier * ((MultistepScorer) w.scorer).step();
+            step = combine == MultiFieldMultistepQuery.Combine.SUM ? step + subStep : Math.max(step, subStep);
+        }
+        return step;
+    }
+
+    @Override
+    public int advanceShallow(int target) throws IOException {
+        int upTo = DocIdSetIterator.NO_MORE_DOCS;
+        for (MultistepScorer scorer : scorers) {
+            if (scorer.docID() <= target) {
+                upTo = Math.min(upTo, scorer.advanceShallow(target));
+            }
+        }
+        return upTo;
+    }
+
+    @Override
+    public float getMaxScore(int upTo) throws IOException {
+        if (multipliers != null) {
+            final long maxStep = maxStep(upTo);
+            return maxStep == Long.MAX_VALUE ? Float.MAX_VALUE : boost * maxStep;
+        }
+        float maxScore = 0f;
+        for (MultistepScorer scorer : scorers) {
+            if (scorer.docID() <= upTo) {
+                final float subMax = scorer.getMaxScore(upTo);
+                maxScore = combine == MultiFieldMultistepQuery.Combine.SUM ? maxScore + subMax : Math.max(maxScore, subMax);
+            }
+        }
+        return maxScore;
+    }
+
+    /** 整数得分模式下 [docID, upTo] 范围内的精确最大得分，无法给出时返回 {@link Long#MAX_VALUE} */
+    private long maxStep(int upTo) throws IOException {
+        long maxStep = 0;
+        for (int i = 0; i < scorers.length; i++) {
+            if (scorers[i].docID() <= upTo) {
+                final long subMax = scorers[i].maxStep(upTo);
+                if (subMax == Long.MAX_VALUE) {
+                    return Long.MAX_VALUE;
+                }
+                final long fieldMax = multipliers[i] * subMax;
+                maxStep = combine == MultiFieldMultistepQuery.Combine.SUM ? maxStep + fieldMax : Math.max(maxStep, fieldMax);
+            }
+        }
+        return maxStep;
+    }
+
+    @Override
+    public void setMinCompetitiveScore(float minScore) throws IOException {
+        if (combine != MultiFieldMultistepQuery.Combine.MAX) {
+            return;
+        }
+        if (multipliers == null) {
+            for (MultistepScorer scorer : scorers) {
+                scorer.setMinCompetitiveScore(minScore);
+            }
+            return;
+        }
+        if (boost <= 0) {
+            return;
+        }
+        // 得分不小于 minScore 的最小整数得分，字段 i 的阶梯至少为 ceil(minStep / multipliers[i])
+        final long minStep = MultistepScorer.minStep(minScore, boost);
+        for (int i = 0; i < scorers.length; i++) {
+            final long fieldMinStep = (minStep + multipliers[i] - 1) / multipliers[i];
+            scorers[i].setMinStep((int) Math.min(Integer.MAX_VALUE, fieldMinStep));
+        }
+    }
+
+    @Override
+    public String toString() { return "scorer(" + weight + ")[" + super.toString() + "]"; }
+}
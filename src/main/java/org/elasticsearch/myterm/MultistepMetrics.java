@@ -0,0 +1,311 @@
+package org.elasticsearch.myterm;
+
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Writeable;
+import org.elasticsearch.common.xcontent.ToXContentFragment;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @Classname MultistepMetrics
+ * @Description 节点级别的 multistep_score 运行指标：每个阶段(分词、TermStates 构造、打分)的耗时分布，以及 token、同义词、position、
+ * 打分 doc 数、跳过的 postings block 数等计数。所有计数都是 {@link LongAdder}(分段累加)，多个搜索线程同时写入时没有竞争；
+ * scorer 内部的计数先累加在普通字段上，每次 bulk score 结束时才写入一次，打分循环中没有额外的同步开销。
+ * 耗时分布使用以 2 为底的对数分桶，只记录数量级，不保存原始值。
+ */
+public final class MultistepMetrics {
+
+    private final LongAdder queries = new LongAdder();
+    private final LongAdder tokens = new LongAdder();
+    private final LongAdder synonymTokens = new LongAdder();
+    private final LongAdder positions = new LongAdder();
+    private final LongAdder weights = new LongAdder();
+    private final LongAdder termStatesCacheHits = new LongAdder();
+    private final LongAdder segmentsScored = new LongAdder();
+    private final LongAdder docsScored = new LongAdder();
+    private final LongAdder blocksSkipped = new LongAdder();
+    private final Histogram tokensPerQuery = new Histogram();
+    private final Histogram analysisNanos = new Histogram();
+    private final Histogram termStatesNanos = new Histogram();
+    private final Histogram scoringNanos = new Histogram();
+    @Nullable
+    private final StepHistograms stepHistograms;
+
+    public MultistepMetrics() {
+        this(null);
+    }
+
+    /**
+     * @param stepHistograms 每个 shard 的阶梯得分分布，为 null 时不统计
+     */
+    public MultistepMetrics(@Nullable StepHistograms stepHistograms) {
+        this.stepHistograms = stepHistograms;
+    }
+
+    /** 每个 shard 的阶梯得分分布，没有启用时返回 null */
+    @Nullable
+    public StepHistograms stepHistograms() {
+        return stepHistograms;
+    }
+
+    /**
+     * 一次 query 的分词阶段(包括分词缓存的查找)
+     *
+     * @param positions 分词之后的 position 数，也就是打分循环中的 clause 数
+     */
+    public void onAnalysis(long nanos, int tokens, int synonymTokens, int positions) {
+        queries.increment();
+        this.tokens.add(tokens);
+        this.synonymTokens.add(synonymTokens);
+        this.positions.add(positions);
+        tokensPerQuery.record(tokens);
+        analysisNanos.record(nanos);
+    }
+
+    /** 一次 createWeight 中所有 term 的 TermStates 构造 */
+    void onWeight(long nanos, int cacheHits) {
+        weights.increment();
+        termStatesCacheHits.add(cacheHits);
+        termStatesNanos.record(nanos);
+    }
+
+    /** 一个 segment 上的一次 bulk score，耗时中包括 collector 的时间 */
+    void onScoring(long nanos, long docsScored, long blocksSkipped) {
+        segmentsScored.increment();
+        this.docsScored.add(docsScored);
+        this.blocksSkipped.add(blocksSkipped);
+        scoringNanos.record(nanos);
+    }
+
+    public Stats stats() {
+        return new Stats(queries.sum(), tokens.sum(), synonymTokens.sum(), positions.sum(), weights.sum(), termStatesCacheHits.sum(),
+                segmentsScored.sum(), docsScored.sum(), blocksSkipped.sum(), tokensPerQuery.stats(), analysisNanos.stats(),
+                termStatesNanos.stats(), scoringNanos.stats());
+    }
+
+    /**
+     * 以 2 为底的对数分桶：第 0 个桶为小于等于 0 的值，第 b 个桶为 [2^(b-1), 2^b)
+     */
+    public static final class Histogram {
+        static final int BUCKETS = 64;
+
+        private final LongAdder[] buckets = new LongAdder[BUCKETS];
+        private final LongAdder sum = new LongAdder();
+
+        public Histogram() {
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        public void record(long value) {
+            buckets[value <= 0 ? 0 : BUCKETS - Long.numberOfLeadingZeros(value)].increment();
+            sum.add(value);
+        }
+
+        public HistogramStats stats() {
+            final long[] counts = new long[BUCKETS];
+            long count = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = buckets[i].sum();
+                count += counts[i];
+            }
+            return new HistogramStats(count, sum.sum(), counts);
+        }
+    }
+
+    /**
+     * {@link Histogram} 的快照，百分位数为所在桶的上界
+     */
+    public static final class HistogramStats implements Writeable, ToXContentFragment {
+        private final long count;
+        private final long sum;
+        private final long[] counts;
+
+        HistogramStats(long count, long sum, long[] counts) {
+            this.count = count;
+            this.sum = sum;
+            this.counts = counts;
+        }
+
+        public HistogramStats(StreamInput in) throws IOException {
+            count = in.readVLong();
+            sum = in.readLong();
+            counts = new long[in.readVInt()];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = in.readVLong();
+            }
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            out.writeVLong(count);
+            out.writeLong(sum);
+            out.writeVInt(counts.length);
+            for (long c : counts) {
+                out.writeVLong(c);
+            }
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getSum() {
+            return sum;
+        }
+
+        /** 第 q 分位所在桶的上界(不包含) */
+        public long percentile(double q) {
+            final long rank = (long) Math.ceil(q * count);
+            long seen = 0;
+            for (int b = 0; b < counts.length; b++) {
+                seen += counts[b];
+                if (seen >= rank && counts[b] > 0) {
+                    return upperBound(b);
+                }
+            }
+            return 0;
+        }
+
+        private static long upperBound(int bucket) {
+            return bucket == 0 ? 0 : bucket >= Histogram.BUCKETS - 1 ? Long.MAX_VALUE : 1L << bucket;
+        }
+
+        @Override
+        public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+            builder.field("count", count);
+            builder.field("sum", sum);
+            builder.field("avg", count == 0 ? 0 : (double) sum / count);
+            builder.field("p50", percentile(0.5));
+            builder.field("p99", percentile(0.99));
+            builder.startArray("buckets");
+            for (int b = 0; b < counts.length; b++) {
+                if (counts[b] == 0) {
+                    continue;
+                }
+                builder.startObject();
+                builder.field("from", b == 0 ? 0 : 1L << (b - 1));
+                builder.field("to", upperBound(b));
+                builder.field("count", counts[b]);
+                builder.endObject();
+            }
+            builder.endArray();
+            return builder;
+        }
+    }
+
+    /**
+     * {@link MultistepMetrics} 的快照
+     */
+    public static final class Stats implements Writeable, ToXContentFragment {
+        private final long queries;
+        private final long tokens;
+        private final long synonymTokens;
+        private final long positions;
+        private final long weights;
+        private final long termStatesCacheHits;
+        private final long segmentsScored;
+        private final long docsScored;
+        private final long blocksSkipped;
+        private final HistogramStats tokensPerQuery;
+        private final HistogramStats analysisNanos;
+        private final HistogramStats termStatesNanos;
+        private final HistogramStats scoringNanos;
+
+        Stats(long queries, long tokens, long synonymTokens, long positions, long weights, long termStatesCacheHits,
+              long segmentsScored, long docsScored, long blocksSkipped, HistogramStats tokensPerQuery, HistogramStats analysisNanos,
+              HistogramStats termStatesNanos, HistogramStats scoringNanos) {
+            this.queries = queries;
+            this.tokens = tokens;
+            this.synonymTokens = synonymTokens;
+            this.positions = positions;
+            this.weights = weights;
+            this.termStatesCacheHits = termStatesCacheHits;
+            this.segmentsScored = segmentsScored;
+            this.docsScored = docsScored;
+            this.blocksSkipped = blocksSkipped;
+            this.tokensPerQuery = tokensPerQuery;
+            this.analysisNanos = analysisNanos;
+            this.termStatesNanos = termStatesNanos;
+            this.scoringNanos = scoringNanos;
+        }
+
+        public Stats(StreamInput in) throws IOException {
+            queries = in.readVLong();
+            tokens = in.readVLong();
+            synonymTokens = in.readVLong();
+            positions = in.readVLong();
+            weights = in.readVLong();
+            termStatesCacheHits = in.readVLong();
+            segmentsScored = in.readVLong();
+            docsScored = in.readVLong();
+            blocksSkipped = in.readVLong();
+            tokensPerQuery = new HistogramStats(in);
+            analysisNanos = new HistogramStats(in);
+            termStatesNanos = new HistogramStats(in);
+            scoringNanos = new HistogramStats(in);
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            out.writeVLong(queries);
+            out.writeVLong(tokens);
+            out.writeVLong(synonymTokens);
+            out.writeVLong(positions);
+            out.writeVLong(weights);
+            out.writeVLong(termStatesCacheHits);
+            out.writeVLong(segmentsScored);
+            out.writeVLong(docsScored);
+            out.writeVLong(blocksSkipped);
+            tokensPerQuery.writeTo(out);
+            analysisNanos.writeTo(out);
+            termStatesNanos.writeTo(out);
+            scoringNanos.writeTo(out);
+        }
+
+        public long getQueries() {
+            return queries;
+        }
+
+        public long getDocsScored() {
+            return docsScored;
+        }
+
+        public long getBlocksSkipped() {
+            return blocksSkipped;
+        }
+
+        @Override
+        public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+            builder.field("queries", queries);
+            builder.field("tokens", tokens);
+            builder.field("synonym_tokens", synonymTokens);
+            builder.field("positions", positions);
+            builder.field("weights", weights);
+            builder.field("term_states_cache_hits", termStatesCacheHits);
+            builder.field("segments_scored", segmentsScored);
+            builder.field("docs_scored", docsScored);
+            builder.field("blocks_skipped", blocksSkipped);
+            builder.startObject("tokens_per_query");
+            tokensPerQuery.toXContent(builder, params);
+            builder.endObject();
+            builder.startObject("phases");
+            builder.startObject("analysis_nanos");
+            analysisNanos.toXContent(builder, params);
+            builder.endObject();
+            builder.startObject("term_states_nanos");
+            termStatesNanos.toXContent(builder, params);
+            builder.endObject();
+            builder.startObject("scoring_nanos");
+            scoringNanos.toXContent(builder, params);
+            builder.endObject();
+            builder.endObject();
+            return builder;
+        }
+    }
+}
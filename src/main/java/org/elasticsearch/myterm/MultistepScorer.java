@@ -0,0 +1,808 @@
+package org.elasticsearch.myterm;
+
+import org.apache.lucene.index.Impact;
+import org.apache.lucene.index.Impacts;
+import org.apache.lucene.index.ImpactsEnum;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.SortedNumericDocValues;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Weight;
+import org.elasticsearch.similarity.MultistepSimilarity;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * @Classname MultistepScorer
+ * @Description {@link MultistepTermsQuery} 的 scorer，在一个 disjunction 循环中计算所有 term 的整数阶梯得分。
+ * query 的 term 数量通常在 20 以内，这里没有使用堆，而是直接线性扫描所有 postings 的当前 doc，
+ * 这样 nextDoc 和 score 都只是对几个 int 数组的顺序遍历。
+ *
+ * postings 的每一项对应一个 position(同一个 position 上的多个原始 term 已经合并为 {@link PositionPostingsEnum})。
+ * 在 TOP_SCORES 模式下(传入了 impacts)，每个 position 在每个 impact block 上的最大得分是整数
+ * (weight * max(stepTf(freq, norm)))，单个 term 时是精确值，合并的 position 上是上界，collector 设置 min competitive score 之后走 block-max MaxScore 的逻辑：
+ * <ul>
+ *   <li>整个 window(所有 term 当前 block 的交集)的最大得分之和都达不到 min competitive step 时，直接跳过这个 window，不解码 postings</li>
+ *   <li>window 内把 term 按 block 最大得分排序，最大得分之和达不到 min competitive step 的 term 为 non-essential，
+ *   只由 essential term 产生候选 doc，non-essential term 只在候选 doc 上 advance</li>
+ *   <li>剩余 postings 的最大得分都达不到 min competitive step 时(top-k 已经达到可能的最高阶梯)，直接结束</li>
+ * </ul>
+ *
+ * 同义词由单独的 {@link SynonymIterator} 召回，得分恒为 0，不读取 freq，也不参与打分循环；
+ * min competitive step 大于 0 之后只有同义词命中的 doc 不可能有竞争力，同义词 iterator 不再 advance。
+ *
+ * 设置了 minimum_should_match(至少命中 m 个 position，原始 term 或者同义词命中都算)时，
+ * 命中的 doc 一定命中了 cost 最小的 (P - m + 1) 个 position 中的至少一个(P 为 segment 中存在的 position 数)，
+ * 所以只由这些 lead position 产生候选 doc，再检查其余 position；m = P(operator and)时就是从最稀疏的 position 开始的 conjunction。
+ * 设置了 cutoff_frequency 时，高频 position 排在低频 position 之后，lead 只从低频 position 中选取：
+ * 高频 position 不再产生候选 doc，只在低频 position 命中的 doc 上 advance 并计算得分。
+ *
+ * 指定了 tiebreak 字段时，score 是 {@link StepTiebreak} 打包的 (阶梯得分, 热度)，boost 必须为 1(由 query builder 校验)。
+ * 如果 segment 按照 tiebreak 字段降序做了 index sorting，同一个阶梯内的 doc 已经按热度从高到低排列，
+ * 那么当前 doc 的热度低于 min competitive score 中的热度之后，这个阶梯后续的 doc 都不可能再进入 top-k，
+ * min competitive step 直接加一，由 block-max 的逻辑跳过整个阶梯(相当于每个阶梯在每个 segment 中只收集 k 个 doc)。
+ */
+final class MultistepScorer extends Scorer {
+    private final PostingsEnum[] postings;
+    /** TOP_SCORES 模式下和 postings 是同一组对象，否则为 null */
+    private final ImpactsEnum[] impacts;
+    /** 每个 postings 当前所在的 doc，避免每次都调用 postings.docID() */
+    private final int[] docs;
+    private final int[] weights;
+    /** 同义词的只召回 disjunction，没有同义词时为 null */
+    private final DocIdSetIterator synonyms;
+    /** 至少需要命中的 position 数，小于等于 1 时不生效 */
+    private final int minShouldMatch;
+    /** 是否由 lead position 产生候选 doc(设置了 minimum_should_match 或者 cutoff_frequency) */
+    private final boolean leading;
+    /** 每个 position 在 postings 中的下标，没有原始 term 时为 -1；低频 position 在前，各自按照 cost 从小到大排列 */
+    private final int[] positionPostings;
+    /** 每个 position 的同义词 iterator，可以为 null，和 positionPostings 一一对应 */
+    private final DocIdSetIterator[] positionSynonyms;
+    /** 前 leadCount 个 position 为 lead，命中的 doc 一定命中了至少一个 lead position */
+    private final int leadCount;
+    private final NumericDocValues norms;
+    /** 预先计算好的 tf 除数表 */
+    private final MultistepSimilarity.StepTf stepTf;
+    private final float boost;
+    /** 热度字段的 doc values，没有指定 tiebreak 字段时为 null */
+    private final SortedNumericDocValues tiebreak;
+    /** segment 是否按照 tiebreak 字段降序排列 */
+    private final boolean sortedByTiebreak;
+    private final long cost;
+    private final DocIdSetIterator iterator;
+    private int doc = -1;
+
+    /** 得分小于这个整数阶梯的 doc 不具备竞争力，0 表示还没有设置 min competitive score */
+    private int minStep = 0;
+    /** 得分大于这个整数阶梯的 doc 不返回，只由 {@link #setMaxStep(int)} 设置 */
+    private int stepUpperBound = Integer.MAX_VALUE;
+    /** tiebreak 模式下，阶梯等于 minStep 时热度编码小于 minCode 的 doc 没有竞争力 */
+    private int minCode = 0;
+    /** 是否设置过 min competitive score */
+    private boolean competitive;
+    /** 当前 window 的最后一个 doc(包含) */
+    private int windowEnd = -1;
+    /** 当前 window 内每个 term 的最大整数得分 */
+    private final long[] blockMax;
+    /** 按 blockMax 从小到大排序的 term 下标，order[0, firstEssential) 为 non-essential term */
+    private final int[] order;
+    private int firstEssential;
+    private long nonEssentialMax;
+    private long essentialMax;
+    /** advanceCompetitive 时已经算出的精确得分 */
+    private int scoredDoc = -1;
+    private int scoredStep;
+    /** 剩余的 postings 已经不可能超过 top-k 中的最低阶梯 */
+    private boolean exhausted;
+    private int popularityDoc = -1;
+    private int popularityCode;
+    /** 指标计数，由 bulk scorer 在每次 score 结束时取走 */
+    private long docsScored;
+    private long blocksSkipped;
+    /** 本地的阶梯得分分布计数，没有调用 {@link #recordSteps()} 时为 null */
+    private int[] stepCounts;
+    private int stepCount;
+    private long stepSum;
+
+    /**
+     * 构造 {@link MultistepScorer} 的参数，postings、整数权重、tf 表和 boost 是必需的，其余参数都有默认值：
+     * 没有 impacts(不做 block-max 跳过)，没有同义词，不限制 minimum_should_match，不区分高低频，没有 norm 和 tiebreak 字段
+     */
+    static final class Builder {
+        private final PostingsEnum[] postings;
+        private final int[] weights;
+        private final MultistepSimilarity.StepTf stepTf;
+        private final float boost;
+        private ImpactsEnum[] impacts;
+        private DocIdSetIterator synonyms;
+        private int minShouldMatch;
+        private int[] positionPostings;
+        private DocIdSetIterator[] positionSynonyms;
+        private boolean[] positionHigh;
+        private NumericDocValues norms;
+        private SortedNumericDocValues tiebreak;
+        private boolean sortedByTiebreak;
+
+        /**
+         * @param postings 每个 position 合并之后的 postings
+         * @param weights  和 postings 一一对应的整数阶梯权重
+         */
+        Builder(PostingsEnum[] postings, int[] weights, MultistepSimilarity.StepTf stepTf, float boost) {
+            this.postings = postings;
+            this.weights = weights;
+            this.stepTf = stepTf;
+            this.boost = boost;
+        }
+
+        /** TOP_SCORES 模式下和 postings 是同一组对象 */
+        Builder impacts(ImpactsEnum[] impacts) {
+            this.impacts = impacts;
+            return this;
+        }
+
+        /** 同义词的只召回 disjunction */
+        Builder synonyms(DocIdSetIterator synonyms) {
+            this.synonyms = synonyms;
+            return this;
+        }
+
+        /**
+         * @param minShouldMatch    至少需要命中的 position 数
+         * @param positionPostings  segment 中存在的每个 position 在 postings 中的下标，没有原始 term 时为 -1
+         * @param positionSynonyms  和 positionPostings 一一对应的同义词 iterator，synonyms 为它们的并集
+         * @param positionHigh      和 positionPostings 一一对应，true 表示高于 cutoff_frequency 的 position，为 null 时不区分高低频，
+         *                          不为 null 时至少要有一个低频 position
+         */
+        Builder positions(int minShouldMatch, int[] positionPostings, DocIdSetIterator[] positionSynonyms, boolean[] positionHigh) {
+            this.minShouldMatch = minShouldMatch;
+            this.positionPostings = positionPostings;
+            this.positionSynonyms = positionSynonyms;
+            this.positionHigh = positionHigh;
+            return this;
+        }
+
+        Builder norms(NumericDocValues norms) {
+            this.norms = norms;
+            return this;
+        }
+
+        /**
+         * @param tiebreak         热度字段的 doc values
+         * @param sortedByTiebreak segment 是否按照 tiebreak 字段降序排列(缺失值在最后)
+         */
+        Builder tiebreak(SortedNumericDocValues tiebreak, boolean sortedByTiebreak) {
+            this.tiebreak = tiebreak;
+            this.sortedByTiebreak = sortedByTiebreak;
+            return this;
+        }
+
+        MultistepScorer build(Weight weight) {
+            if ((minShouldMatch > 1 || positionHigh != null) && positionPostings == null) {
+                throw new IllegalArgumentException("minimum_should_match and cutoff_frequency require position postings");
+            }
+            return new MultistepScorer(weight, this);
+        }
+    }
+
+    private MultistepScorer(Weight weight, Builder builder) {
+        super(weight);
+        final PostingsEnum[] postings = builder.postings;
+        final int minShouldMatch = builder.minShouldMatch;
+        final int[] positionPostings = builder.positionPostings;
+        final DocIdSetIterator[] positionSynonyms = builder.positionSynonyms;
+        final boolean[] positionHigh = builder.positionHigh;
+        final DocIdSetIterator synonyms = builder.synonyms;
+        final SortedNumericDocValues tiebreak = builder.tiebreak;
+        this.minShouldMatch = minShouldMatch;
+        this.leading = minShouldMatch > 1 || positionHigh != null;
+        if (leading) {
+            // 低频 position 在前，再按照 cost 从小到大排序，最稀疏的 position 作为 lead
+            final long[] costs = new long[positionPostings.length];
+            final Integer[] order = new Integer[positionPostings.length];
+            int lowCount = 0;
+            for (int p = 0; p < costs.length; p++) {
+                costs[p] = (positionPostings[p] >= 0 ? postings[positionPostings[p]].cost() : 0)
+                        + (positionSynonyms[p] != null ? positionSynonyms[p].cost() : 0);
+                order[p] = p;
+                if (positionHigh == null || positionHigh[p] == false) {
+                    lowCount++;
+                }
+            }
+            Arrays.sort(order, (a, b) -> {
+                if (positionHigh != null && positionHigh[a] != positionHigh[b]) {
+                    return positionHigh[a] ? 1 : -1;
+                }
+                return Long.compare(costs[a], costs[b]);
+            });
+            this.positionPostings = new int[order.length];
+            this.positionSynonyms = new DocIdSetIterator[order.length];
+            for (int p = 0; p < order.length; p++) {
+                this.positionPostings[p] = positionPostings[order[p]];
+                this.positionSynonyms[p] = positionSynonyms[order[p]];
+            }
+            // 任意 (P - m + 1) 个 position 中都至少命中一个，同时必须命中一个低频 position
+            this.leadCount = Math.min(order.length - Math.max(1, minShouldMatch) + 1, lowCount);
+        } else {
+            this.positionPostings = null;
+            this.positionSynonyms = null;
+            this.leadCount = 0;
+        }
+        this.postings = postings;
+        this.impacts = builder.impacts;
+        this.weights = builder.weights;
+        this.synonyms = synonyms;
+        this.norms = builder.norms;
+        this.stepTf = builder.stepTf;
+        this.boost = builder.boost;
+        this.tiebreak = tiebreak;
+        this.sortedByTiebreak = tiebreak != null && builder.sortedByTiebreak;
+        this.docs = new int[postings.length];
+        Arrays.fill(docs, -1);
+        this.blockMax = new long[postings.length];
+        this.order = new int[postings.length];
+        long cost = 0;
+        if (leading) {
+            // 命中的 doc 一定在 lead position 中
+            for (int p = 0; p < leadCount; p++) {
+                cost += (this.positionPostings[p] >= 0 ? postings[this.positionPostings[p]].cost() : 0)
+                        + (this.positionSynonyms[p] != null ? this.positionSynonyms[p].cost() : 0);
+            }
+        } else {
+            cost = synonyms == null ? 0 : synonyms.cost();
+            for (PostingsEnum p : postings) {
+                cost += p.cost();
+            }
+        }
+        this.cost = cost;
+        this.iterator = new DocIdSetIterator() {
+            @Override
+            public int docID() {
+                return doc;
+            }
+
+            @Override
+            public int nextDoc() throws IOException {
+                if (competitive) {
+                    return advanceCompetitive(doc + 1);
+                }
+                return leading ? nextMatch(doc + 1) : doNextDoc();
+            }
+
+            @Override
+            public int advance(int target) throws IOException {
+                if (competitive) {
+                    return advanceCompetitive(target);
+                }
+                return leading ? nextMatch(target) : doAdvance(target);
+            }
+
+            @Override
+            public long cost() {
+                return MultistepScorer.this.cost;
+            }
+        };
+    }
+
+    private int doNextDoc() throws IOException {
+        int min = DocIdSetIterator.NO_MORE_DOCS;
+        for (int i = 0; i < postings.length; i++) {
+            int d = docs[i];
+            if (d == doc) {
+                d = docs[i] = postings[i].nextDoc();
+            }
+            if (d < min) {
+                min = d;
+            }
+        }
+        if (synonyms != null) {
+            int d = synonyms.docID();
+            if (d == doc) {
+                d = synonyms.nextDoc();
+            }
+            min = Math.min(min, d);
+        }
+        return doc = min;
+    }
+
+    private int doAdvance(int target) throws IOException {
+        int min = DocIdSetIterator.NO_MORE_DOCS;
+        for (int i = 0; i < postings.length; i++) {
+            int d = docs[i];
+            if (d < target) {
+                d = docs[i] = postings[i].advance(target);
+            }
+            if (d < min) {
+                min = d;
+            }
+        }
+        if (synonyms != null) {
+            min = Math.min(min, advanceSynonyms(target));
+        }
+        return doc = min;
+    }
+
+    private int advanceSynonyms(int target) throws IOException {
+        // lead 模式下同义词 iterator 也会在 positionDoc 中被 advance，不缓存 doc
+        final int d = synonyms.docID();
+        return d < target ? synonyms.advance(target) : d;
+    }
+
+    /** 第 p 个 position 上不小于 target 的第一个 doc */
+    private int positionDoc(int p, int target) throws IOException {
+        int d = DocIdSetIterator.NO_MORE_DOCS;
+        final int i = positionPostings[p];
+        if (i >= 0) {
+            d = docs[i];
+            if (d < target) {
+                d = docs[i] = postings[i].advance(target);
+            }
+        }
+        final DocIdSetIterator synonym = positionSynonyms[p];
+        if (synonym != null && d != target) {
+            int sd = synonym.docID();
+            if (sd < target) {
+                sd = synonym.advance(target);
+            }
+            d = Math.min(d, sd);
+        }
+        return d;
+    }
+
+    /** lead position 中不小于 target 的第一个 doc */
+    private int leadDoc(int target) throws IOException {
+        int min = DocIdSetIterator.NO_MORE_DOCS;
+        for (int p = 0; p < leadCount; p++) {
+            min = Math.min(min, positionDoc(p, target));
+        }
+        return min;
+    }
+
+    /** candidate 是否命中了至少一个 lead position，并且至少命中了 minShouldMatch 个 position */
+    private boolean matchesPositions(int candidate) throws IOException {
+        final int required = Math.max(1, minShouldMatch);
+        int matched = 0;
+        boolean leadMatched = false;
+        for (int p = 0; p < positionPostings.length; p++) {
+            if (positionDoc(p, candidate) == candidate) {
+                leadMatched |= p < leadCount;
+                if (++matched >= required && leadMatched) {
+                    return true;
+                }
+            } else if ((p == leadCount - 1 && leadMatched == false) || matched + positionPostings.length - p - 1 < required) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private int nextMatch(int target) throws IOException {
+        while (true) {
+            final int candidate = leadDoc(target);
+            if (candidate == DocIdSetIterator.NO_MORE_DOCS || matchesPositions(candidate)) {
+                return doc = candidate;
+            }
+            target = candidate + 1;
+        }
+    }
+
+    /**
+     * block-max MaxScore: 只返回得分不小于 {@link #minStep} 的 doc
+     */
+    private int advanceCompetitive(int target) throws IOException {
+        while (true) {
+            if (exhausted || target == DocIdSetIterator.NO_MORE_DOCS) {
+                return doc = DocIdSetIterator.NO_MORE_DOCS;
+            }
+            if (leading) {
+                // 命中的 doc 一定在 lead position 中
+                target = leadDoc(target);
+                if (target == DocIdSetIterator.NO_MORE_DOCS) {
+                    return doc = DocIdSetIterator.NO_MORE_DOCS;
+                }
+            }
+            if (target > windowEnd) {
+                updateWindow(target);
+                if (nonEssentialMax + essentialMax < minStep) {
+                    // 整个 window 都没有竞争力
+                    blocksSkipped++;
+                    if (windowEnd == DocIdSetIterator.NO_MORE_DOCS) {
+                        return doc = DocIdSetIterator.NO_MORE_DOCS;
+                    }
+                    target = windowEnd + 1;
+                    continue;
+                }
+            }
+
+            int candidate = DocIdSetIterator.NO_MORE_DOCS;
+            for (int k = firstEssential; k < order.length; k++) {
+                final int i = order[k];
+                int d = docs[i];
+                if (d < target) {
+                    d = docs[i] = postings[i].advance(target);
+                }
+                if (d < candidate) {
+                    candidate = d;
+                }
+            }
+            if (synonyms != null && minStep <= 0) {
+                // 只有 min competitive step 为 0 时，只命中同义词(得分为 0)的 doc 才可能有竞争力
+                candidate = Math.min(candidate, advanceSynonyms(target));
+            }
+            if (candidate == DocIdSetIterator.NO_MORE_DOCS || candidate > windowEnd) {
+                if (windowEnd == DocIdSetIterator.NO_MORE_DOCS) {
+                    return doc = DocIdSetIterator.NO_MORE_DOCS;
+                }
+                // 下一个 window 中 non-essential term 可能变成 essential，不能直接跳到 candidate
+                target = windowEnd + 1;
+                continue;
+            }
+
+            final long norm = norm(candidate);
+            int step = 0;
+            for (int k = firstEssential; k < order.length; k++) {
+                final int i = order[k];
+                if (docs[i] == candidate) {
+                    step += weights[i] * stepTf.tf(postings[i].freq(), norm);
+                }
+            }
+            if (step + nonEssentialMax < minStep || step > stepUpperBound) {
+                target = candidate + 1;
+                continue;
+            }
+            for (int k = 0; k < firstEssential; k++) {
+                final int i = order[k];
+                int d = docs[i];
+                if (d < candidate) {
+                    d = docs[i] = postings[i].advance(candidate);
+                }
+                if (d == candidate) {
+                    step += weights[i] * stepTf.tf(postings[i].freq(), norm);
+                }
+            }
+            if (step < minStep || step > stepUpperBound) {
+                target = candidate + 1;
+                continue;
+            }
+            if (step == minStep && tiebreak != null && popularityCode(candidate) < minCode) {
+                if (sortedByTiebreak) {
+                    // 后续 doc 的热度不会更高，阶梯 minStep 已经收集完毕
+                    raiseMinStep(candidate + 1);
+                }
+                target = candidate + 1;
+                continue;
+            }
+            if (leading && matchesPositions(candidate) == false) {
+                target = candidate + 1;
+                continue;
+            }
+            scoredDoc = candidate;
+            scoredStep = step;
+            return doc = candidate;
+        }
+    }
+
+    /**
+     * 把所有 term 的 impacts 移动到 target 所在的 block，计算 window 的范围、每个 term 在 window 内的最大得分，
+     * 以及 essential / non-essential 的划分
+     */
+    private void updateWindow(int target) throws IOException {
+        int end = DocIdSetIterator.NO_MORE_DOCS;
+        for (int i = 0; i < impacts.length; i++) {
+            if (docs[i] == DocIdSetIterator.NO_MORE_DOCS) {
+                // 已经遍历完的 postings 不会再有得分，它的 impacts 不一定是 0
+                blockMax[i] = 0;
+                continue;
+            }
+            end = Math.min(end, shallowAdvance(i, target));
+            blockMax[i] = maxStep(i, impacts[i].getImpacts().getImpacts(0));
+        }
+        windowEnd = end;
+
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        // term 数量很少，插入排序即可
+        for (int i = 1; i < order.length; i++) {
+            final int v = order[i];
+            int j = i - 1;
+            while (j >= 0 && blockMax[order[j]] > blockMax[v]) {
+                order[j + 1] = order[j];
+                j--;
+            }
+            order[j + 1] = v;
+        }
+        long sum = 0;
+        int k = 0;
+        while (k < order.length && sum + blockMax[order[k]] < minStep) {
+            sum += blockMax[order[k]];
+            k++;
+        }
+        firstEssential = k;
+        nonEssentialMax = sum;
+        long essential = 0;
+        for (; k < order.length; k++) {
+            essential += blockMax[order[k]];
+        }
+        essentialMax = essential;
+    }
+
+    /**
+     * 把第 i 个 impacts 移动到 target 所在的 block，返回这个 block 的最后一个 doc。
+     * postings 可能已经 advance 到 target 之后，advanceShallow 的 target 不能小于它当前的 doc；
+     * 它在 target 和当前 doc 之间没有命中，所以不影响上界
+     */
+    private int shallowAdvance(int i, int target) throws IOException {
+        impacts[i].advanceShallow(Math.max(target, docs[i]));
+        return impacts[i].getImpacts().getDocIdUpTo(0);
+    }
+
+    /** 一个 impact block 内的精确最大整数得分，stepTf 对 freq 单调不减，对 norm 单调不增 */
+    private long maxStep(int term, List<Impact> blockImpacts) {
+        long max = 0;
+        for (Impact impact : blockImpacts) {
+            max = Math.max(max, (long) weights[term] * stepTf.tf(impact.freq, impact.norm));
+        }
+        return max;
+    }
+
+    /**
+     * 所有 term 在 [docID, upTo] 范围内的最大得分之和，如果有 term 的 impacts 无法覆盖 upTo 则返回 {@link Long#MAX_VALUE}
+     */
+    private long maxStepUpTo(int upTo) throws IOException {
+        long sum = 0;
+        for (int i = 0; i < impacts.length; i++) {
+            if (docs[i] == DocIdSetIterator.NO_MORE_DOCS) {
+                continue;
+            }
+            Impacts imp = impacts[i].getImpacts();
+            int level = -1;
+            for (int l = 0; l < imp.numLevels(); l++) {
+                if (imp.getDocIdUpTo(l) >= upTo) {
+                    level = l;
+                    break;
+                }
+            }
+            if (level == -1) {
+                return Long.MAX_VALUE;
+            }
+            sum += maxStep(i, imp.getImpacts(level));
+        }
+        return sum;
+    }
+
+    private long norm(int target) throws IOException {
+        if (norms == null) {
+            return 1L;
+        }
+        return norms.advanceExact(target) ? norms.longValue() : 0L;
+    }
+
+    @Override
+    public int docID() {
+        return doc;
+    }
+
+    @Override
+    public DocIdSetIterator iterator() {
+        return iterator;
+    }
+
+    @Override
+    public float score() throws IOException {
+        assert doc != DocIdSetIterator.NO_MORE_DOCS;
+        docsScored++;
+        final int step = step();
+        if (stepCounts != null) {
+            stepCounts[StepHistograms.bucket(step)]++;
+            stepCount++;
+            stepSum += step;
+        }
+        if (tiebreak != null) {
+            return StepTiebreak.pack(step, popularityCode(doc));
+        }
+        return boost * step;
+    }
+
+    /** 当前 doc 的整数阶梯得分，同一个 doc 只计算一次 */
+    int step() throws IOException {
+        if (scoredDoc != doc) {
+            scoredStep = stepScore();
+            scoredDoc = doc;
+        }
+        return scoredStep;
+    }
+
+    /**
+     * 直接设置最低的整数阶梯，阶梯更低的 doc 由 block-max 跳过，和 min competitive score 取较大值；没有 impacts 时不生效
+     */
+    void setMinStep(int step) throws IOException {
+        if (impacts == null || step <= minStep) {
+            return;
+        }
+        competitive = true;
+        minStep = step;
+        minCode = 0;
+        updateExhausted(doc);
+    }
+
+    /**
+     * 得分高于 step 的 doc 不再返回，essential term 的得分已经超过 step 时不再 advance non-essential term；
+     * 和 {@link #setMinStep(int)} 一样只在有 impacts 时生效。block-max 只有上界，所以不能按这个阶梯跳过 block
+     */
+    void setMaxStep(int step) {
+        if (impacts == null || step >= stepUpperBound) {
+            return;
+        }
+        competitive = true;
+        stepUpperBound = step;
+    }
+
+    /**
+     * [docID, upTo] 范围内的精确整数最大得分，不乘 boost；没有 impacts 或者 impacts 无法覆盖 upTo 时返回 {@link Long#MAX_VALUE}
+     */
+    long maxStep(int upTo) throws IOException {
+        return impacts == null ? Long.MAX_VALUE : maxStepUpTo(upTo);
+    }
+
+    /** 返回并清零打分的 doc 数 */
+    long drainDocsScored() {
+        final long scored = docsScored;
+        docsScored = 0;
+        return scored;
+    }
+
+    /** 开始统计阶梯得分分布 */
+    void recordSteps() {
+        stepCounts = new int[StepHistograms.BUCKETS];
+    }
+
+    /** 把本地的阶梯得分分布合并到 histogram 中并清零 */
+    void drainSteps(StepHistograms.Histogram histogram) {
+        if (stepCount == 0) {
+            return;
+        }
+        histogram.add(stepCounts, stepSum);
+        Arrays.fill(stepCounts, 0);
+        stepCount = 0;
+        stepSum = 0;
+    }
+
+    /** 返回并清零整个跳过的 window(impact block) 数 */
+    long drainBlocksSkipped() {
+        final long skipped = blocksSkipped;
+        blocksSkipped = 0;
+        return skipped;
+    }
+
+    /** 多值字段取最大值，和 ES 中 desc 排序的默认 mode 一致 */
+    private int popularityCode(int target) throws IOException {
+        if (popularityDoc == target) {
+            return popularityCode;
+        }
+        int code = 0;
+        if (tiebreak.advanceExact(target)) {
+            long max = Long.MIN_VALUE;
+            for (int i = tiebreak.docValueCount(); i > 0; i--) {
+                max = Math.max(max, tiebreak.nextValue());
+            }
+            code = StepTiebreak.encodePopularity(max);
+        }
+        popularityDoc = target;
+        return popularityCode = code;
+    }
+
+    private int stepScore() throws IOException {
+        // norm 对所有 term 都一样，只在第一次需要时读取
+        boolean normRead = false;
+        long norm = 0L;
+        int score = 0;
+        for (int i = 0; i < postings.length; i++) {
+            if (leading && docs[i] < doc) {
+                // position 检查时可能提前结束，高频 position 也不产生候选 doc，没有 advance 到当前 doc
+                docs[i] = postings[i].advance(doc);
+            }
+            if (docs[i] == doc && weights[i] != 0) {
+                if (normRead == false) {
+                    norm = norm(doc);
+                    normRead = true;
+                }
+                score += weights[i] * stepTf.tf(postings[i].freq(), norm);
+            }
+        }
+        return score;
+    }
+
+    @Override
+    public int advanceShallow(int target) throws IOException {
+        if (impacts == null) {
+            return super.advanceShallow(target);
+        }
+        int upTo = DocIdSetIterator.NO_MORE_DOCS;
+        for (int i = 0; i < impacts.length; i++) {
+            if (docs[i] != DocIdSetIterator.NO_MORE_DOCS) {
+                upTo = Math.min(upTo, shallowAdvance(i, target));
+            }
+        }
+        return upTo;
+    }
+
+    @Override
+    public float getMaxScore(int upTo) throws IOException {
+        if (impacts == null) {
+            // tf 没有上限，这里无法给出更紧的上界
+            return Float.MAX_VALUE;
+        }
+        final long max = maxStepUpTo(upTo);
+        if (max == Long.MAX_VALUE) {
+            return Float.MAX_VALUE;
+        }
+        return tiebreak != null ? StepTiebreak.pack(max, StepTiebreak.MAX_POPULARITY_CODE) : boost * max;
+    }
+
+    @Override
+    public void setMinCompetitiveScore(float minScore) throws IOException {
+        if (impacts == null || (tiebreak == null && boost <= 0)) {
+            return;
+        }
+        final long step;
+        final int code;
+        if (tiebreak != null) {
+            // 阶梯得分小于 minScore 中阶梯的 doc 一定没有竞争力
+            step = StepTiebreak.step(minScore);
+            code = StepTiebreak.popularityCode(minScore);
+        } else {
+            step = minStep(minScore, boost);
+            code = 0;
+        }
+        if (step < minStep || (step == minStep && code <= minCode)) {
+            return;
+        }
+        competitive = true;
+        minStep = (int) Math.min(Integer.MAX_VALUE, step);
+        minCode = code;
+        if (sortedByTiebreak && doc != -1 && doc != DocIdSetIterator.NO_MORE_DOCS && popularityCode(doc) < minCode) {
+            // 当前 doc 的热度是后续所有 doc 热度的上界
+            raiseMinStep(doc);
+        } else {
+            updateExhausted(doc);
+        }
+    }
+
+    private void raiseMinStep(int target) throws IOException {
+        if (minStep == Integer.MAX_VALUE) {
+            exhausted = true;
+            return;
+        }
+        minStep++;
+        minCode = 0;
+        updateExhausted(target);
+    }
+
+    private void updateExhausted(int target) throws IOException {
+        // 强制在下次 advance 的时候重新划分 essential term
+        windowEnd = -1;
+        if (target != DocIdSetIterator.NO_MORE_DOCS) {
+            advanceShallow(Math.max(target, 0));
+            exhausted = maxStepUpTo(DocIdSetIterator.NO_MORE_DOCS - 1) < minStep;
+        }
+    }
+
+    /** 满足 boost * step >= minScore 的最小整数 step，和 score() 中的 float 计算保持一致 */
+    static long minStep(float minScore, float boost) {
+        long step = (long) Math.ceil(minScore / boost);
+        while (step > 0 && boost * (step - 1) >= minScore) {
+            step--;
+        }
+        while (boost * step < minScore) {
+            step++;
+        }
+        return step;
+    }
+
+    @Override
+    public String toString() { return "scorer(" + weight + ")[" + super.toString() + "]"; }
+}
@@ -0,0 +1,760 @@
+package org.elasticsearch.myterm;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.*;
+import org.apache.lucene.search.similarities.Similarity;
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.index.shard.ShardUtils;
+import org.elasticsearch.similarity.MultistepSimilarity;
+import org.elasticsearch.similarity.SimilarityRegistry;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * @Classname MultistepTermsQuery
+ * @Description 融合的阶梯打分 query：一次性接收所有 position 上的 term，在一个 disjunction 中计算整数阶梯得分，
+ * 替代之前每个 term 一个 TermQuery_V1(每个都有自己的 MultistepSimilarity) 再用 SHOULD BooleanQuery 组合的方式。
+ * 同一个 position 上的多个原始 term(例如分词器在同一个位置输出了多个 token)和 SynonymQuery 一样合并成一个 {@link PositionPostingsEnum}，
+ * freq 相加，idf 使用 (最大的 docFreq, totalTermFreq 之和) 计算，每个 position 对阶梯得分只贡献一次，打分循环的长度和 position 数量成正比。
+ * 每个 position 的 idf 阶梯权重在 weight 中预先计算为整数，每个 doc 的 norm 只读取一次，得分在 int 上累加，最后乘以 boost。
+ * minShouldMatch 大于 1 时，doc 至少需要命中 minShouldMatch 个 position(原始 term 或者同义词)，由 cost 最小的 position 驱动候选 doc。
+ * 设置了 cutoffFrequency 时，和 CommonTermsQuery 一样按照 docFreq 把 position 分为高频和低频，doc 至少要命中一个低频 position，
+ * 高频 position 只给低频 position 召回的 doc 加分，不再遍历它们很长的 postings；所有 position 都是高频时按照正常的方式召回。
+ * 同义词 term 只参与召回，得分贡献为 0：在每个 segment 上组成一个只读取 doc id 的 {@link SynonymIterator}，不进入打分循环。
+ * 指定了 tiebreakField 时，score 为 {@link StepTiebreak} 打包的 (阶梯得分, 热度)，相关度优先、热度其次的排序直接由 score 完成。
+ * precomputedTf 为 true 时，字段在索引时由 {@link org.elasticsearch.similarity.StepTfTokenFilter} 写入了阶梯 tf(freq 为阶梯 tf + 1)，
+ * 打分时不再读取 norm，得分只是整数权重乘以 freq - 1，impacts 给出的 block 最大得分也是精确值。
+ */
+public class MultistepTermsQuery extends Query implements Accountable {
+
+    private static final long BASE_RAM_BYTES_USED = RamUsageEstimator.shallowSizeOfInstance(MultistepTermsQuery.class);
+    private static final long BYTES_REF_RAM_BYTES_USED = RamUsageEstimator.shallowSizeOfInstance(BytesRef.class);
+
+    private final String field;
+    private final BytesRef[] terms;
+    private final boolean[] synonyms;
+    /** 和 terms 一一对应的 position，非递减 */
+    private final int[] positions;
+    /** 相同 position 的 term 是连续的，第 g 个 position 的 term 下标为 [groupStarts[g], groupStarts[g + 1]) */
+    private final int[] groupStarts;
+    private final double base;
+    private final String tiebreakField;
+    /** 至少需要命中的 position 数，小于等于 1 时不生效 */
+    private final int minShouldMatch;
+    /** 高频 position 的阈值，小于 1 时为占 maxDoc 的比例，否则为 docFreq 的绝对值，小于等于 0 时不生效 */
+    private final float cutoffFrequency;
+    /** 字段的 freq 是否为索引时预先计算的阶梯 tf + 1 */
+    private final boolean precomputedTf;
+    /** 节点级别的 term 缓存，不参与 query 的 equals/hashCode */
+    private final TermStepCache termCache;
+    /** 节点级别的 top-N 结果缓存，不参与 query 的 equals/hashCode */
+    private final TopDocsCache resultCache;
+    /** 节点级别的运行指标，不参与 query 的 equals/hashCode */
+    private final MultistepMetrics metrics;
+    /** 节点级别的并行 segment 搜索，为 null 时串行搜索，不参与 query 的 equals/hashCode */
+    private final ConcurrentLeafSearch concurrentSearch;
+
+    private MultistepTermsQuery(Builder builder) {
+        final int[] positions = builder.positions == null ? sequentialPositions(builder.terms.length) : builder.positions;
+        if (builder.terms.length != builder.synonyms.length || builder.terms.length != positions.length) {
+            throw new IllegalArgumentException("terms, synonyms and positions must have the same length");
+        }
+        int groups = builder.terms.length == 0 ? 0 : 1;
+        for (int i = 1; i < positions.length; i++) {
+            if (positions[i] < positions[i - 1]) {
+                throw new IllegalArgumentException("positions must be non-decreasing, got " + Arrays.toString(positions));
+            }
+            if (positions[i] != positions[i - 1]) {
+                groups++;
+            }
+        }
+        this.field = Objects.requireNonNull(builder.field);
+        this.terms = builder.terms;
+        this.synonyms = builder.synonyms;
+        this.positions = positions;
+        this.groupStarts = new int[groups + 1];
+        for (int i = 0, g = 0; i < positions.length; i++) {
+            if (i == 0 || positions[i] != positions[i - 1]) {
+                groupStarts[g++] = i;
+            }
+        }
+        groupStarts[groups] = terms.length;
+        this.base = builder.base;
+        this.tiebreakField = builder.tiebreakField;
+        this.minShouldMatch = builder.minShouldMatch;
+        this.cutoffFrequency = builder.cutoffFrequency;
+        this.precomputedTf = builder.precomputedTf;
+        this.termCache = builder.termCache;
+        this.resultCache = builder.resultCache;
+        this.metrics = builder.metrics;
+        this.concurrentSearch = builder.concurrentSearch;
+    }
+
+    /**
+     * 构造 {@link MultistepTermsQuery}，除了字段、term 和 base 之外的参数都有默认值：
+     * position 依次递增，不限制 minimum_should_match，不区分高低频，没有 tiebreak 字段，不使用任何节点级别的缓存
+     */
+    public static final class Builder {
+        private final String field;
+        private final BytesRef[] terms;
+        private final boolean[] synonyms;
+        private final double base;
+        private int[] positions;
+        private String tiebreakField;
+        private int minShouldMatch;
+        private float cutoffFrequency;
+        private boolean precomputedTf;
+        private TermStepCache termCache;
+        private TopDocsCache resultCache;
+        private MultistepMetrics metrics;
+        private ConcurrentLeafSearch concurrentSearch;
+
+        /**
+         * @param field    查询的字段
+         * @param terms    分词之后的所有 term
+         * @param synonyms 和 terms 一一对应，true 表示该 term 是同义词，只召回不打分
+         * @param base     {@link MultistepSimilarity} 的 base
+         */
+        public Builder(String field, BytesRef[] terms, boolean[] synonyms, double base) {
+            this.field = field;
+            this.terms = terms;
+            this.synonyms = synonyms;
+            this.base = base;
+        }
+
+        /** 和 terms 一一对应的 position，必须是非递减的，相同 position 的原始 term 合并打分；默认每个 term 一个 position */
+        public Builder positions(int[] positions) {
+            this.positions = positions;
+            return this;
+        }
+
+        /** 数值类型的热度字段，可以为 null */
+        public Builder tiebreakField(String tiebreakField) {
+            this.tiebreakField = tiebreakField;
+            return this;
+        }
+
+        /** 至少需要命中的 position 数，position 上的原始 term 或者同义词命中都算 */
+        public Builder minShouldMatch(int minShouldMatch) {
+            this.minShouldMatch = minShouldMatch;
+            return this;
+        }
+
+        /** 高频 position 的阈值，小于 1 时为占 maxDoc 的比例，否则为 docFreq 的绝对值，小于等于 0 时不区分高低频 */
+        public Builder cutoffFrequency(float cutoffFrequency) {
+            this.cutoffFrequency = cutoffFrequency;
+            return this;
+        }
+
+        /** 字段的 index analyzer 中包含 multistep_tf token filter，freq 为索引时计算好的阶梯 tf + 1 */
+        public Builder precomputedTf(boolean precomputedTf) {
+            this.precomputedTf = precomputedTf;
+            return this;
+        }
+
+        /** 节点级别的 term 缓存，可以为 null */
+        public Builder termCache(TermStepCache termCache) {
+            this.termCache = termCache;
+            return this;
+        }
+
+        /** 节点级别的 top-N 结果缓存，可以为 null */
+        public Builder resultCache(TopDocsCache resultCache) {
+            this.resultCache = resultCache;
+            return this;
+        }
+
+        /** 节点级别的运行指标，可以为 null */
+        public Builder metrics(MultistepMetrics metrics) {
+            this.metrics = metrics;
+            return this;
+        }
+
+        /** 节点级别的并行 segment 搜索，为 null 时串行搜索 */
+        public Builder concurrentSearch(ConcurrentLeafSearch concurrentSearch) {
+            this.concurrentSearch = concurrentSearch;
+            return this;
+        }
+
+        public MultistepTermsQuery build() {
+            return new MultistepTermsQuery(this);
+        }
+    }
+
+    private static int[] sequentialPositions(int length) {
+        int[] positions = new int[length];
+        for (int i = 0; i < length; i++) {
+            positions[i] = i;
+        }
+        return positions;
+    }
+
+    public String getField() {
+        return field;
+    }
+
+    public double getBase() {
+        return base;
+    }
+
+    public String getTiebreakField() {
+        return tiebreakField;
+    }
+
+    public int getMinShouldMatch() {
+        return minShouldMatch;
+    }
+
+    public float getCutoffFrequency() {
+        return cutoffFrequency;
+    }
+
+    public boolean isPrecomputedTf() {
+        return precomputedTf;
+    }
+
+    /**
+     * segment 是否按照 tiebreak 字段降序做了 index sorting，并且排序和 scorer 中的热度编码一致，可以在阶梯内提前终止：
+     * 多值字段需要按最大值排序；scorer 把缺失值按 0 处理，所以缺失值也必须排在所有正数热度之后
+     * (缺失值为 null 即按 0 排序，或者不大于 0，例如 "index.sort.missing": "_last")，
+     * 缺失值排在前面("_first")时，缺失值之后还有热度更高的 doc，不能提前终止
+     */
+    static boolean sortedByTiebreak(Sort indexSort, String tiebreakField) {
+        if (indexSort == null) {
+            return false;
+        }
+        final SortField first = indexSort.getSort()[0];
+        if (tiebreakField.equals(first.getField()) == false || first.getReverse() == false) {
+            return false;
+        }
+        final Object missingValue = first.getMissingValue();
+        if (missingValue != null && (missingValue instanceof Number == false || ((Number) missingValue).longValue() > 0)) {
+            return false;
+        }
+        if (first instanceof SortedNumericSortField) {
+            return ((SortedNumericSortField) first).getSelector() == SortedNumericSelector.Type.MAX;
+        }
+        return true;
+    }
+    final class MultistepWeight extends Weight {
+        private final MultistepSimilarity similarity;
+        private final TermStates[] termStates;
+        private final CollectionStatistics collectionStats;
+        /** 每个 position 上原始 term 合并之后的统计信息，没有原始 term 命中时为 null */
+        private final TermStatistics[] positionStats;
+        /** 每个 position 预先计算好的整数阶梯权重 */
+        private final int[] positionWeights;
+        /** 每个 position 是否高于 cutoffFrequency，没有设置或者不同时存在高频和低频 position 时为 null */
+        private final boolean[] highFrequency;
+        private final MultistepSimilarity.StepTf stepTf;
+        private final float boost;
+        private final ScoreMode scoreMode;
+
+        MultistepWeight(IndexSearcher searcher, ScoreMode scoreMode, float boost) throws IOException {
+            super(MultistepTermsQuery.this);
+            this.scoreMode = scoreMode;
+            this.boost = boost;
+            this.similarity = SimilarityRegistry.multistep(base);
+            final IndexReaderContext context = searcher.getTopReaderContext();
+            this.termStates = new TermStates[terms.length];
+            final int groups = groupStarts.length - 1;
+            this.positionStats = new TermStatistics[groups];
+            this.positionWeights = new int[groups];
+            final long start = metrics == null ? 0L : System.nanoTime();
+            // 所有 term 一起查找缓存，没有缓存的 term 在每个 segment 上按字典序一次性 seek
+            final TermStepCache.Entry[] cached = termCache == null ? new TermStepCache.Entry[terms.length]
+                    : termCache.getAll(context, field, terms, base);
+            // 区分高低频时即使不打分也需要 docFreq
+            final boolean needsStats = scoreMode.needsScores() || cutoffFrequency > 0;
+            int cacheHits = 0;
+            int missing = 0;
+            for (int i = 0; i < terms.length; i++) {
+                if (cached[i] != null) {
+                    termStates[i] = cached[i].termStates;
+                    cacheHits++;
+                } else if (needsStats) {
+                    missing++;
+                } else {
+                    // 不需要统计信息时 TermStates 在每个 segment 上按需 seek
+                    termStates[i] = TermStates.build(context, new Term(field, terms[i]), false);
+                }
+            }
+            if (missing > 0) {
+                final int[] missingTerms = new int[missing];
+                final BytesRef[] missingBytes = new BytesRef[missing];
+                for (int i = 0, m = 0; i < terms.length; i++) {
+                    if (termStates[i] == null) {
+                        missingTerms[m] = i;
+                        missingBytes[m++] = terms[i];
+                    }
+                }
+                final TermStates[] built = TermStatesBatch.build(context, field, missingBytes);
+                for (int m = 0; m < missing; m++) {
+                    termStates[missingTerms[m]] = built[m];
+                }
+            }
+            if (metrics != null) {
+                metrics.onWeight(System.nanoTime() - start, cacheHits);
+            }
+            this.highFrequency = cutoffFrequency > 0 ? highFrequency(searcher.getIndexReader().maxDoc(), groups) : null;
+            if (scoreMode.needsScores()) {
+                collectionStats = searcher.collectionStatistics(field);
+                for (int g = 0; g < groups; g++) {
+                    // 和 SynonymQuery 一样，合并之后的 docFreq 取最大值，totalTermFreq 相加
+                    int matched = 0;
+                    int single = -1;
+                    long docFreq = 0;
+                    long totalTermFreq = 0;
+                    for (int i = groupStarts[g]; i < groupStarts[g + 1]; i++) {
+                        if (synonyms[i]) {
+                            continue;
+                        }
+                        TermStatistics termStats = searcher.termStatistics(new Term(field, terms[i]), termStates[i]);
+                        if (termStats == null) {
+                            continue;
+                        }
+                        matched++;
+                        single = i;
+                        docFreq = Math.max(docFreq, termStats.docFreq());
+                        totalTermFreq += termStats.totalTermFreq();
+                        positionStats[g] = termStats;
+                    }
+                    if (matched > 1) {
+                        positionStats[g] = new TermStatistics(terms[single], docFreq, totalTermFreq);
+                    }
+                    if (collectionStats != null && positionStats[g] != null) {
+                        positionWeights[g] = matched == 1 && cached[single] != null
+                                ? cached[single].stepWeight(similarity, collectionStats, positionStats[g])
+                                : similarity.stepWeight(collectionStats, positionStats[g]);
+                    }
+                }
+                stepTf = precomputedTf ? MultistepSimilarity.StepTf.PRECOMPUTED
+                        : new MultistepSimilarity.StepTf(collectionStats == null ? 1f : similarity.avgFieldLength(collectionStats));
+            } else {
+                collectionStats = null;
+                stepTf = new MultistepSimilarity.StepTf(1f);
+            }
+        }
+
+        /**
+         * 和 CommonTermsQuery 一样，position 上所有 term(包括同义词)最大的 docFreq 超过阈值时为高频 position，
+         * 所有 term 都不存在的 position 既不是高频也不是低频
+         */
+        private boolean[] highFrequency(int maxDoc, int groups) {
+            final long maxFreq = cutoffFrequency >= 1f ? (long) cutoffFrequency : (long) Math.ceil(cutoffFrequency * maxDoc);
+            final boolean[] high = new boolean[groups];
+            boolean hasHigh = false;
+            boolean hasLow = false;
+            for (int g = 0; g < groups; g++) {
+                int docFreq = 0;
+                for (int i = groupStarts[g]; i < groupStarts[g + 1]; i++) {
+                    docFreq = Math.max(docFreq, termStates[i].docFreq());
+                }
+                if (docFreq > maxFreq) {
+                    high[g] = hasHigh = true;
+                } else if (docFreq > 0) {
+                    hasLow = true;
+                }
+            }
+            return hasHigh && hasLow ? high : null;
+        }
+
+        @Override
+        public void extractTerms(Set<Term> set) {
+            for (BytesRef term : terms) {
+                set.add(new Term(field, term));
+            }
+        }
+
+        @Override
+        public Scorer scorer(LeafReaderContext context) throws IOException {
+            final Terms fieldTerms = context.reader().terms(field);
+            if (fieldTerms == null) {
+                return null;
+            }
+            // 同一个 TermsEnum 依次 seek 所有 term，PostingsEnum 创建之后和 TermsEnum 的状态无关
+            final TermsEnum termsEnum = fieldTerms.iterator();
+            final int flags = scoreMode.needsScores() ? PostingsEnum.FREQS : PostingsEnum.NONE;
+            final boolean topScores = scoreMode == ScoreMode.TOP_SCORES;
+            List<PostingsEnum> postings = new ArrayList<>(groupStarts.length);
+            List<Integer> postingsWeights = new ArrayList<>(groupStarts.length);
+            List<PostingsEnum> synonymPostings = new ArrayList<>();
+            List<PostingsEnum> subs = new ArrayList<>();
+            // minimum_should_match 或者区分高低频时记录每个 position 的 postings 下标和同义词
+            final boolean leading = minShouldMatch > 1 || highFrequency != null;
+            final int groups = groupStarts.length - 1;
+            final int[] positionPostings = new int[groups];
+            final DocIdSetIterator[] positionSynonyms = new DocIdSetIterator[groups];
+            final boolean[] positionHigh = new boolean[groups];
+            int presentPositions = 0;
+            int lowPositions = 0;
+            for (int g = 0; g < groups; g++) {
+                subs.clear();
+                final int synonymStart = synonymPostings.size();
+                for (int i = groupStarts[g]; i < groupStarts[g + 1]; i++) {
+                    final TermState state = termStates[i].get(context);
+                    if (state == null) {
+                        continue;
+                    }
+                    termsEnum.seekExact(terms[i], state);
+                    if (synonyms[i]) {
+                        // 同义词只参与召回，只读取 doc id
+                        synonymPostings.add(termsEnum.postings(null, PostingsEnum.NONE));
+                        continue;
+                    }
+                    // TOP_SCORES 时使用 impacts，以便按 block 的最大得分跳过没有竞争力的 doc
+                    subs.add(topScores ? termsEnum.impacts(PostingsEnum.FREQS) : termsEnum.postings(null, flags));
+                }
+                if (leading) {
+                    positionSynonyms[presentPositions] =
+                            SynonymIterator.create(synonymPostings.subList(synonymStart, synonymPostings.size()), context.reader().maxDoc());
+                    positionPostings[presentPositions] = subs.isEmpty() ? -1 : postings.size();
+                    positionHigh[presentPositions] = highFrequency != null && highFrequency[g];
+                    if (subs.isEmpty() == false || positionSynonyms[presentPositions] != null) {
+                        if (positionHigh[presentPositions] == false) {
+                            lowPositions++;
+                        }
+                        presentPositions++;
+                    }
+                }
+                if (subs.isEmpty()) {
+                    continue;
+                }
+                if (subs.size() == 1) {
+                    postings.add(subs.get(0));
+                } else {
+                    postings.add(new PositionPostingsEnum(subs.toArray(new PostingsEnum[0]),
+                            topScores ? subs.toArray(new ImpactsEnum[0]) : null, precomputedTf));
+                }
+                postingsWeights.add(positionWeights[g]);
+            }
+            if (postings.isEmpty() && synonymPostings.isEmpty()) {
+                return null;
+            }
+            if (leading && (presentPositions < minShouldMatch || lowPositions == 0)) {
+                // 这个 segment 中不可能有 doc 命中足够多的 position，或者没有低频 position 可以召回 doc
+                return null;
+            }
+            final int[] leafWeights = new int[postingsWeights.size()];
+            for (int i = 0; i < leafWeights.length; i++) {
+                leafWeights[i] = postingsWeights.get(i);
+            }
+            final DocIdSetIterator synonymIterator = leading
+                    ? SynonymIterator.union(Arrays.copyOf(positionSynonyms, presentPositions))
+                    : SynonymIterator.create(synonymPostings, context.reader().maxDoc());
+            // 预先计算了阶梯 tf 时 norm 已经包含在 freq 中
+            final NumericDocValues norms = scoreMode.needsScores() && precomputedTf == false ? context.reader().getNormValues(field) : null;
+            final ImpactsEnum[] impacts = topScores ? postings.toArray(new ImpactsEnum[0]) : null;
+            final SortedNumericDocValues tiebreak = scoreMode.needsScores() && tiebreakField != null ?
+                    DocValues.getSortedNumeric(context.reader(), tiebreakField) : null;
+            final MultistepScorer.Builder builder = new MultistepScorer.Builder(postings.toArray(new PostingsEnum[0]), leafWeights, stepTf, boost)
+                    .impacts(impacts)
+                    .synonyms(synonymIterator)
+                    .norms(norms)
+                    .tiebreak(tiebreak, tiebreak != null && sortedByTiebreak(context.reader()));
+            if (leading) {
+                builder.positions(minShouldMatch, Arrays.copyOf(positionPostings, presentPositions),
+                        Arrays.copyOf(positionSynonyms, presentPositions),
+                        highFrequency != null ? Arrays.copyOf(positionHigh, presentPositions) : null);
+            }
+            return builder.build(this);
+        }
+
+        @Override
+        public BulkScorer bulkScorer(LeafReaderContext context) throws IOException {
+            final Scorer scorer = scorer(context);
+            if (scorer == null) {
+                return null;
+            }
+            final BulkScorer bulkScorer = new DefaultBulkScorer(scorer);
+            if (metrics == null) {
+                return bulkScorer;
+            }
+            final MultistepScorer multistepScorer = (MultistepScorer) scorer;
+            return new MeasuredBulkScorer(bulkScorer, new MultistepScorer[] {multistepScorer}, metrics,
+                    new StepHistograms.Histogram[] {stepHistogram(context, multistepScorer)});
+        }
+
+        /** 这个 weight 的整数阶梯权重，和 query 一起决定了每个 doc 的得分 */
+        int[] positionWeights() {
+            return positionWeights;
+        }
+
+        /**
+         * shard 上 (field, base) 的阶梯得分分布，需要统计时让 scorer 开始记录，
+         * 没有启用、不需要打分或者 shard 上的直方图个数已经达到上限时返回 null
+         */
+        StepHistograms.Histogram stepHistogram(LeafReaderContext context, MultistepScorer scorer) {
+            final ShardId shardId = metrics == null || metrics.stepHistograms() == null || scoreMode.needsScores() == false
+                    ? null : ShardUtils.extractShardId(context.reader());
+            if (shardId == null) {
+                return null;
+            }
+            final StepHistograms.Histogram histogram = metrics.stepHistograms().get(shardId, field, base);
+            if (histogram != null) {
+                scorer.recordSteps();
+            }
+            return histogram;
+        }
+
+        private boolean sortedByTiebreak(LeafReader reader) {
+            return MultistepTermsQuery.sortedByTiebreak(reader.getMetaData().getSort(), tiebreakField);
+        }
+
+        @Override
+        public boolean isCacheable(LeafReaderContext ctx) {
+            return true;
+        }
+
+        @Override
+        public Explanation explain(LeafReaderContext context, int doc) throws IOException {
+            final Terms fieldTerms = context.reader().terms(field);
+            if (fieldTerms == null) {
+                return Explanation.noMatch("no matching term");
+            }
+            final TermsEnum termsEnum = fieldTerms.iterator();
+            final NumericDocValues norms = context.reader().getNormValues(field);
+            final long norm = norms == null ? 1L : norms.advanceExact(doc) ? norms.longValue() : 0L;
+            List<Explanation> subs = new ArrayList<>();
+            float score = 0f;
+            int step = 0;
+            int matchedPositions = 0;
+            boolean lowMatched = false;
+            for (int g = 0; g + 1 < groupStarts.length; g++) {
+                int freq = 0;
+                boolean matched = false;
+                StringBuilder termText = new StringBuilder();
+                for (int i = groupStarts[g]; i < groupStarts[g + 1]; i++) {
+                    final TermState state = termStates[i].get(context);
+                    if (state == null) {
+                        continue;
+                    }
+                    termsEnum.seekExact(terms[i], state);
+                    PostingsEnum postings = termsEnum.postings(null, PostingsEnum.FREQS);
+                    if (postings.advance(doc) != doc) {
+                        continue;
+                    }
+                    matched = true;
+                    if (synonyms[i]) {
+                        subs.add(Explanation.match(0f, "synonym " + field + ":" + Term.toString(terms[i])
+                                + ", matched with no score contribution"));
+                        continue;
+                    }
+                    termText.append(termText.length() == 0 ? "" : "|").append(field).append(":").append(Term.toString(terms[i]));
+                    freq += precomputedTf ? postings.freq() - 1 : postings.freq();
+                }
+                if (matched) {
+                    matchedPositions++;
+                    lowMatched |= highFrequency == null || highFrequency[g] == false;
+                }
+                if (termText.length() == 0) {
+                    continue;
+                }
+                final Explanation termExplanation;
+                if (precomputedTf) {
+                    // freq 为各 term 的阶梯 tf 之和，换回 StepTf 的编码
+                    freq += 1;
+                    final int tf = stepTf.tf(freq, norm);
+                    termExplanation = Explanation.match(boost * positionWeights[g] * tf, "score(freq=" + freq + "), product of:",
+                            Explanation.match(boost, "boost"),
+                            similarity.idfExplain(collectionStats, positionStats[g]),
+                            Explanation.match(tf, "tf, step level precomputed at index time, computed as freq - 1"));
+                } else {
+                    Similarity.SimScorer simScorer = similarity.scorer(boost, collectionStats, positionStats[g]);
+                    // 和 TermQuery 的 explain 一样使用 float 的 freq
+                    Explanation freqExplanation = Explanation.match((float) freq, "freq, occurrences of term within document");
+                    termExplanation = simScorer.explain(freqExplanation, norm);
+                }
+                score += termExplanation.getValue().floatValue();
+                step += positionWeights[g] * stepTf.tf(freq, norm);
+                subs.add(Explanation.match(termExplanation.getValue(), "weight(" + termText + " in " + doc + ") ["
+                        + similarity.getClass().getSimpleName() + "], result of:", termExplanation));
+            }
+            if (subs.isEmpty()) {
+                return Explanation.noMatch("no matching term");
+            }
+            if (matchedPositions < minShouldMatch) {
+                return Explanation.noMatch("matched " + matchedPositions + " positions, less than minimum_should_match ["
+                        + minShouldMatch + "]", subs);
+            }
+            if (lowMatched == false) {
+                return Explanation.noMatch("matched only positions above cutoff_frequency [" + cutoffFrequency + "]", subs);
+            }
+            Explanation stepExplanation = Explanation.match(score, "multistep score, sum of:", subs);
+            if (tiebreakField == null) {
+                return stepExplanation;
+            }
+            // tiebreak 模式下不使用 boost
+            SortedNumericDocValues values = DocValues.getSortedNumeric(context.reader(), tiebreakField);
+            long popularity = 0;
+            if (values.advanceExact(doc)) {
+                popularity = Long.MIN_VALUE;
+                for (int i = values.docValueCount(); i > 0; i--) {
+                    popularity = Math.max(popularity, values.nextValue());
+                }
+            }
+            return Explanation.match(StepTiebreak.pack(step, StepTiebreak.encodePopularity(popularity)),
+                    "step score [" + step + "] packed with tiebreak [" + tiebreakField + "=" + popularity + "], from:",
+                    stepExplanation,
+                    Explanation.match(popularity, "tiebreak value, max of field [" + tiebreakField + "]"));
+        }
+
+        @Override
+        public String toString() {
+            return "weight(" + MultistepTermsQuery.this + ")";
+        }
+    }
+
+    /**
+     * 记录每次 bulk score 的耗时，以及 scorer 中累计的打分 doc 数、跳过的 block 数和阶梯得分分布，
+     * 多字段查询时每个字段一个 scorer，计数相加
+     */
+    static final class MeasuredBulkScorer extends BulkScorer {
+        private final BulkScorer in;
+        private final MultistepScorer[] scorers;
+        private final MultistepMetrics metrics;
+        /** 和 scorers 一一对应的 shard 上 (field, base) 的阶梯得分分布，元素可以为 null */
+        private final StepHistograms.Histogram[] histograms;
+
+        MeasuredBulkScorer(BulkScorer in, MultistepScorer[] scorers, MultistepMetrics metrics, StepHistograms.Histogram[] histograms) {
+            this.in = in;
+            this.scorers = scorers;
+            this.metrics = metrics;
+            this.histograms = histograms;
+        }
+
+        @Override
+        public int score(LeafCollector collector, Bits acceptDocs, int min, int max) throws IOException {
+            final long start = System.nanoTime();
+            try {
+                return in.score(collector, acceptDocs, min, max);
+            } finally {
+                // 提前终止(CollectionTerminatedException)时也记录
+                long docsScored = 0;
+                long blocksSkipped = 0;
+                for (int i = 0; i < scorers.length; i++) {
+                    docsScored += scorers[i].drainDocsScored();
+                    blocksSkipped += scorers[i].drainBlocksSkipped();
+                    if (histograms[i] != null) {
+                        scorers[i].drainSteps(histograms[i]);
+                    }
+                }
+                metrics.onScoring(System.nanoTime() - start, docsScored, blocksSkipped);
+            }
+        }
+
+        @Override
+        public long cost() {
+            return in.cost();
+        }
+    }
+
+    /**
+     * 不经过结果缓存和并行搜索的 weight，供 {@link MultiFieldMultistepQuery} 组合多个字段
+     */
+    MultistepWeight createMultistepWeight(IndexSearcher searcher, ScoreMode scoreMode, float boost) throws IOException {
+        return new MultistepWeight(searcher, scoreMode, boost);
+    }
+
+    @Override
+    public Weight createWeight(IndexSearcher searcher, ScoreMode scoreMode, float boost) throws IOException {
+        final MultistepWeight weight = createMultistepWeight(searcher, scoreMode, boost);
+        if (resultCache != null) {
+            return resultCache.wrap(searcher, this, weight, weight.positionWeights, scoreMode, boost, concurrentSearch);
+        }
+        if (concurrentSearch != null) {
+            return concurrentSearch.wrap(searcher, this, weight, scoreMode);
+        }
+        return weight;
+    }
+
+    @Override
+    public void visit(QueryVisitor visitor) {
+        if (visitor.acceptField(field)) {
+            Term[] ts = new Term[terms.length];
+            for (int i = 0; i < terms.length; i++) {
+                ts[i] = new Term(field, terms[i]);
+            }
+            visitor.getSubVisitor(BooleanClause.Occur.SHOULD, this).consumeTerms(this, ts);
+        }
+    }
+
+    @Override
+    public String toString(String field) {
+        StringBuilder buffer = new StringBuilder("multistep_score(");
+        for (int i = 0; i < terms.length; i++) {
+            if (i != 0) {
+                // 同一个 position 上的 term 用 | 分隔
+                buffer.append(positions[i] == positions[i - 1] ? "|" : " ");
+            }
+            if (this.field.equals(field) == false) {
+                buffer.append(this.field).append(":");
+            }
+            buffer.append(Term.toString(terms[i]));
+            if (synonyms[i]) {
+                buffer.append("(synonym)");
+            }
+        }
+        buffer.append(")^base=").append(base);
+        if (minShouldMatch > 1) {
+            buffer.append(",minimum_should_match=").append(minShouldMatch);
+        }
+        if (cutoffFrequency > 0) {
+            buffer.append(",cutoff_frequency=").append(cutoffFrequency);
+        }
+        if (tiebreakField != null) {
+            buffer.append(",tiebreak=").append(tiebreakField);
+        }
+        if (precomputedTf) {
+            buffer.append(",precomputed_tf");
+        }
+        return buffer.toString();
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return sameClassAs(other) && equalsTo(getClass().cast(other));
+    }
+
+    private boolean equalsTo(MultistepTermsQuery other) {
+        return field.equals(other.field) &&
+                Arrays.equals(terms, other.terms) &&
+                Arrays.equals(synonyms, other.synonyms) &&
+                Arrays.equals(positions, other.positions) &&
+                Double.compare(base, other.base) == 0 &&
+                minShouldMatch == other.minShouldMatch &&
+                Float.compare(cutoffFrequency, other.cutoffFrequency) == 0 &&
+                precomputedTf == other.precomputedTf &&
+                Objects.equals(tiebreakField, other.tiebreakField);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * classHash() + Objects.hash(field, Arrays.hashCode(terms), Arrays.hashCode(synonyms), Arrays.hashCode(positions),
+                base, tiebreakField, minShouldMatch, cutoffFrequency, precomputedTf);
+    }
+
+    @Override
+    public long ramBytesUsed() {
+        long ramBytesUsed = BASE_RAM_BYTES_USED + 2L * field.length()
+                + RamUsageEstimator.shallowSizeOf(terms) + RamUsageEstimator.sizeOf(synonyms)
+                + RamUsageEstimator.sizeOf(positions) + RamUsageEstimator.sizeOf(groupStarts);
+        for (int i = 0; i < terms.length; i++) {
+            ramBytesUsed += BYTES_REF_RAM_BYTES_USED;
+            // 分词结果中的 term 共享同一个 byte[]，只计算一次
+            if (i == 0 || terms[i].bytes != terms[i - 1].bytes) {
+                ramBytesUsed += RamUsageEstimator.sizeOf(terms[i].bytes);
+            }
+        }
+        return ramBytesUsed;
+    }
+}
@@ -6,13 +6,17 @@ import org.apache.lucene.util.BytesRef;
 import org.elasticsearch.common.ParseField;
 import org.elasticsearch.common.ParsingException;
 import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.lucene.BytesRefs;
+import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.common.xcontent.XContentParser;
 import org.elasticsearch.index.query.AbstractQueryBuilder;
-import org.elasticsearch.index.query.BaseTermQueryBuilder;
 import org.elasticsearch.index.query.QueryBuilder;
 import org.elasticsearch.index.query.QueryShardContext;
+import org.elasticsearch.similarity.SimilarityRegistry;
 
 import java.io.IOException;
+import java.util.Objects;
 
 /**
  * @Classname MyTermQueryBuilder
@@ -20,12 +24,16 @@ import java.io.IOException;
  * @Date 2021/3/13 19:11
  * @Created by muhao
  */
-public class MyTermQueryBuilder extends BaseTermQueryBuilder<MyTermQueryBuilder> {
+public class MyTermQueryBuilder extends AbstractQueryBuilder<MyTermQueryBuilder> {
     public static final String NAME = "custom_similarity_term";
 
     public static final ParseField QUERY_FIELD = new ParseField("query");
     public static final ParseField SIMILARITY_FIELD = new ParseField("similarity");
-    private String similarity_type;
+
+    private final String fieldName;
+    /** 字符串在构造时转换为 BytesRef，和 term query 一致 */
+    private final Object value;
+    private final String similarity_type;
 
 
     public static QueryBuilder fromXContent(XContentParser parser) throws IOException {
@@ -69,18 +77,81 @@ public class MyTermQueryBuilder extends BaseTermQueryBuilder<MyTermQueryBuilder>
     }
 
     public MyTermQueryBuilder(String fieldName, Object value, String similarity_type) {
-        super(fieldName, value);
+        if (fieldName == null) {
+            throw new IllegalArgumentException("[" + NAME + "] requires fieldName");
+        }
+        if (value == null) {
+            throw new IllegalArgumentException("[" + NAME + "] requires query value");
+        }
+        // 提前校验 similarity 类型，不合法时在解析阶段报错
+        SimilarityRegistry.get(similarity_type);
+        this.fieldName = fieldName;
+        this.value = value instanceof String ? BytesRefs.toBytesRef(value) : value;
         this.similarity_type = similarity_type;
-        System.out.println("AAAAAA:"+similarity_type);
     }
 
+    /**
+     * read from stream
+     * @param in
+     * @throws IOException
+     */
     public MyTermQueryBuilder(StreamInput in) throws IOException {
         super(in);
+        fieldName = in.readString();
+        value = in.readGenericValue();
+        similarity_type = in.readOptionalString();
+    }
+
+    @Override
+    protected void doWriteTo(StreamOutput out) throws IOException {
+        out.writeString(fieldName);
+        out.writeGenericValue(value);
+        out.writeOptionalString(similarity_type);
+    }
+
+    /** Returns the field name used in this query. */
+    public String fieldName() {
+        return this.fieldName;
+    }
+
+    /** Returns the value used in this query. */
+    public Object value() {
+        return this.value instanceof BytesRef ? ((BytesRef) this.value).utf8ToString() : this.value;
+    }
+
+    /** Get the similarity type, if previously set, otherwise {@code null} */
+    public String similarityType() {
+        return this.similarity_type;
+    }
+
+    @Override
+    protected void doXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject(NAME);
+        builder.startObject(fieldName);
+        builder.field(QUERY_FIELD.getPreferredName(), value());
+        if (similarity_type != null) {
+            builder.field(SIMILARITY_FIELD.getPreferredName(), similarity_type);
+        }
+        printBoostAndQueryName(builder);
+        builder.endObject();
+        builder.endObject();
     }
 
     @Override
     protected Query doToQuery(QueryShardContext context) throws IOException {
-        return new MyTermQuery(new Term(fieldName, (BytesRef) value),similarity_type);
+        return new MyTermQuery(new Term(fieldName, BytesRefs.toBytesRef(value)), similarity_type);
+    }
+
+    @Override
+    protected boolean doEquals(MyTermQueryBuilder other) {
+        return Objects.equals(fieldName, other.fieldName) &&
+                Objects.equals(value, other.value) &&
+                Objects.equals(similarity_type, other.similarity_type);
+    }
+
+    @Override
+    protected int doHashCode() {
+        return Objects.hash(fieldName, value, similarity_type);
     }
 
     @Override
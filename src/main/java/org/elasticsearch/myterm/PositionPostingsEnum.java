@@ -0,0 +1,192 @@
+package org.elasticsearch.myterm;
+
+import org.apache.lucene.index.Impact;
+import org.apache.lucene.index.Impacts;
+import org.apache.lucene.index.ImpactsEnum;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * @Classname PositionPostingsEnum
+ * @Description 同一个 position 上多个原始 term 合并成的 postings，和 SynonymQuery 一样看作一个 term：
+ * doc 为所有 term 的并集，freq 为命中的 term 的 freq 之和。
+ * TOP_SCORES 模式下合并 impacts：block 的边界由 docIdUpTo 最小的 term 决定，
+ * 每个 block 只给出一个 (各 term 最大 freq 之和, 最小 norm) 的 impact，是 block 内得分的上界而不是精确值。
+ * 索引时预先计算了阶梯 tf 的字段(freq 为阶梯 tf + 1)，合并之后的 freq 为各 term 阶梯 tf 之和再加 1，编码方式不变。
+ */
+final class PositionPostingsEnum extends ImpactsEnum {
+
+    private final PostingsEnum[] subs;
+    /** TOP_SCORES 模式下和 subs 是同一组对象，否则为 null */
+    private final ImpactsEnum[] impacts;
+    private final int[] docs;
+    private final long cost;
+    /** freq 是否为索引时的阶梯 tf + 1 */
+    private final boolean stepLevels;
+    private int doc = -1;
+
+    PositionPostingsEnum(PostingsEnum[] subs, ImpactsEnum[] impacts) {
+        this(subs, impacts, false);
+    }
+
+    PositionPostingsEnum(PostingsEnum[] subs, ImpactsEnum[] impacts, boolean stepLevels) {
+        this.subs = subs;
+        this.impacts = impacts;
+        this.stepLevels = stepLevels;
+        this.docs = new int[subs.length];
+        Arrays.fill(docs, -1);
+        long cost = 0;
+        for (PostingsEnum p : subs) {
+            cost += p.cost();
+        }
+        this.cost = cost;
+    }
+
+    @Override
+    public int docID() {
+        return doc;
+    }
+
+    @Override
+    public int nextDoc() throws IOException {
+        int min = NO_MORE_DOCS;
+        for (int i = 0; i < subs.length; i++) {
+            int d = docs[i];
+            if (d == doc) {
+                d = docs[i] = subs[i].nextDoc();
+            }
+            if (d < min) {
+                min = d;
+            }
+        }
+        return doc = min;
+    }
+
+    @Override
+    public int advance(int target) throws IOException {
+        int min = NO_MORE_DOCS;
+        for (int i = 0; i < subs.length; i++) {
+            int d = docs[i];
+            if (d < target) {
+                d = docs[i] = subs[i].advance(target);
+            }
+            if (d < min) {
+                min = d;
+            }
+        }
+        return doc = min;
+    }
+
+    @Override
+    public int freq() throws IOException {
+        long freq = stepLevels ? 1 : 0;
+        for (int i = 0; i < subs.length; i++) {
+            if (docs[i] == doc) {
+                freq += stepLevels ? subs[i].freq() - 1 : subs[i].freq();
+            }
+        }
+        return (int) Math.min(Integer.MAX_VALUE, freq);
+    }
+
+    @Override
+    public int nextPosition() throws IOException {
+        return -1;
+    }
+
+    @Override
+    public int startOffset() throws IOException {
+        return -1;
+    }
+
+    @Override
+    public int endOffset() throws IOException {
+        return -1;
+    }
+
+    @Override
+    public BytesRef getPayload() throws IOException {
+        return null;
+    }
+
+    @Override
+    public long cost() {
+        return cost;
+    }
+
+    @Override
+    public void advanceShallow(int target) throws IOException {
+        for (ImpactsEnum impactsEnum : impacts) {
+            impactsEnum.advanceShallow(target);
+        }
+    }
+
+    @Override
+    public Impacts getImpacts() throws IOException {
+        final Impacts[] subImpacts = new Impacts[impacts.length];
+        // 下一个 block 边界最小的 term 决定合并之后的层数以及每层的边界
+        Impacts tmpLead = null;
+        for (int i = 0; i < impacts.length; i++) {
+            subImpacts[i] = impacts[i].getImpacts();
+            if (tmpLead == null || subImpacts[i].getDocIdUpTo(0) < tmpLead.getDocIdUpTo(0)) {
+                tmpLead = subImpacts[i];
+            }
+        }
+        final Impacts lead = tmpLead;
+        return new Impacts() {
+            @Override
+            public int numLevels() {
+                return lead.numLevels();
+            }
+
+            @Override
+            public int getDocIdUpTo(int level) {
+                return lead.getDocIdUpTo(level);
+            }
+
+            @Override
+            public List<Impact> getImpacts(int level) {
+                final int docIdUpTo = getDocIdUpTo(level);
+                long freq = stepLevels ? 1 : 0;
+                long norm = -1;
+                for (int i = 0; i < impacts.length; i++) {
+                    if (impacts[i].docID() > docIdUpTo) {
+                        // 这个 term 在 block 内没有 doc
+                        continue;
+                    }
+                    final int subLevel = level(subImpacts[i], docIdUpTo);
+                    if (subLevel == -1) {
+                        // 无法覆盖整个 block，返回最大的得分
+                        return Collections.singletonList(new Impact(Integer.MAX_VALUE, 0L));
+                    }
+                    int maxFreq = 0;
+                    for (Impact impact : subImpacts[i].getImpacts(subLevel)) {
+                        maxFreq = Math.max(maxFreq, impact.freq);
+                        // norm 按照无符号的 byte 比较，和 stepTf 中 dl 的单调性一致
+                        final long n = impact.norm & 0xFF;
+                        norm = norm == -1 ? n : Math.min(norm, n);
+                    }
+                    freq += stepLevels ? maxFreq - 1 : maxFreq;
+                }
+                if (norm == -1) {
+                    return Collections.singletonList(new Impact(1, 1L));
+                }
+                return Collections.singletonList(new Impact((int) Math.min(Integer.MAX_VALUE, freq), norm));
+            }
+        };
+    }
+
+    /** docIdUpTo 不小于 target 的最低层，没有时返回 -1 */
+    private static int level(Impacts impacts, int target) {
+        for (int level = 0; level < impacts.numLevels(); level++) {
+            if (impacts.getDocIdUpTo(level) >= target) {
+                return level;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,92 @@
+package org.elasticsearch.myterm;
+
+import org.apache.lucene.search.Query;
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.index.shard.SearchOperationListener;
+import org.elasticsearch.search.internal.SearchContext;
+
+/**
+ * @Classname SearchWindow
+ * @Description 当前线程上正在执行的 shard 查询阶段需要的结果窗口：顶层 query、from + size 以及 track_total_hits。
+ * query 不知道自己是不是请求的顶层 query，也拿不到 from + size，所以由 {@link #LISTENER} 在查询阶段开始时记录、结束时清除。
+ * 只有按 _score 排序、collector 只是 top docs collector 的请求才记录(没有 sort、search_after、collapse、rescore、scroll、
+ * post_filter、聚合、min_score、terminate_after、profile)；slice、nested、alias filter 或者 boost 会把 query 包装起来，
+ * 这时顶层 query 不是 multistep_score，同样不生效
+ */
+public final class SearchWindow {
+
+    private static final ThreadLocal<SearchWindow> CURRENT = new ThreadLocal<>();
+
+    public static final SearchOperationListener LISTENER = new SearchOperationListener() {
+        @Override
+        public void onPreQueryPhase(SearchContext searchContext) {
+            if (isTopDocsOnly(searchContext)) {
+                CURRENT.set(new SearchWindow(searchContext.query(), searchContext.from() + searchContext.size(),
+                        searchContext.trackTotalHitsUpTo()));
+            }
+        }
+
+        @Override
+        public void onFailedQueryPhase(SearchContext searchContext) {
+            CURRENT.remove();
+        }
+
+        @Override
+        public void onQueryPhase(SearchContext searchContext, long tookInNanos) {
+            CURRENT.remove();
+        }
+    };
+
+    private final Query query;
+    private final int size;
+    private final int trackTotalHitsUpTo;
+
+    private SearchWindow(Query query, int size, int trackTotalHitsUpTo) {
+        this.query = query;
+        this.size = size;
+        this.trackTotalHitsUpTo = trackTotalHitsUpTo;
+    }
+
+    private static boolean isTopDocsOnly(SearchContext context) {
+        return context.size() > 0
+                && context.sort() == null
+                && context.searchAfter() == null
+                && context.collapse() == null
+                && context.rescore().isEmpty()
+                && context.scrollContext() == null
+                && context.parsedPostFilter() == null
+                && context.aggregations() == null
+                && context.queryCollectors().isEmpty()
+                && context.minimumScore() == null
+                && context.terminateAfter() == SearchContext.DEFAULT_TERMINATE_AFTER
+                && context.getProfilers() == null;
+    }
+
+    /**
+     * query 是当前线程上查询阶段的顶层 query 时返回它的窗口，否则返回 null
+     */
+    @Nullable
+    static SearchWindow of(Query query) {
+        final SearchWindow window = CURRENT.get();
+        return window != null && window.query == query ? window : null;
+    }
+
+    /** 测试中模拟 ES 的查询阶段 */
+    static void enter(Query query, int size, int trackTotalHitsUpTo) {
+        CURRENT.set(new SearchWindow(query, size, trackTotalHitsUpTo));
+    }
+
+    static void exit() {
+        CURRENT.remove();
+    }
+
+    /**
+     * 只把按 (score 降序, doc id 升序) 的前 hits() 个 doc 交给 collector 时，结果和 total hits 都和收集全部 doc 时一致：
+     * collector 需要前 from + size 个 doc；track_total_hits 为 n 时 collector 数到 n + 1 个 doc 就把 total hits 标记为
+     * GREATER_THAN_OR_EQUAL_TO，所以至少要 n + 1 个 doc(命中总数更少时就是全部 doc，total hits 是准确的)。
+     * track_total_hits 为 true 时返回 Integer.MAX_VALUE
+     */
+    int hits() {
+        return (int) Math.min(Integer.MAX_VALUE, Math.max((long) size, (long) trackTotalHitsUpTo + 1));
+    }
+}
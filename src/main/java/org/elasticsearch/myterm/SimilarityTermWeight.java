@@ -0,0 +1,154 @@
+package org.elasticsearch.myterm;
+
+import org.apache.lucene.index.*;
+import org.apache.lucene.search.*;
+import org.apache.lucene.search.similarities.Similarity;
+
+import java.io.IOException;
+import java.util.Set;
+
+/**
+ * @Classname SimilarityTermWeight
+ * @Description 使用指定 similarity 的 term weight，直接基于当前 shard 的 IndexSearcher 获取统计信息，
+ * 不再为了替换 similarity 而新建 IndexSearcher（保留 searcher 的 query cache、executor 以及 collection statistics）
+ */
+final class SimilarityTermWeight extends Weight {
+    private final Term term;
+    private final Similarity similarity;
+    private final Similarity.SimScorer simScorer;
+    private final TermStates termStates;
+    private final ScoreMode scoreMode;
+
+    SimilarityTermWeight(Query query, Term term, Similarity similarity, IndexSearcher searcher, ScoreMode scoreMode,
+                         float boost, TermStates termStates) throws IOException {
+        super(query);
+        if (scoreMode.needsScores() && termStates == null) {
+            throw new IllegalStateException("termStates are required when scores are needed");
+        }
+        this.term = term;
+        this.scoreMode = scoreMode;
+        this.termStates = termStates;
+        this.similarity = similarity;
+
+        final CollectionStatistics collectionStats;
+        final TermStatistics termStats;
+        if (scoreMode.needsScores()) {
+            collectionStats = searcher.collectionStatistics(term.field());
+            termStats = searcher.termStatistics(term, termStates);
+        } else {
+            // we do not need the actual stats, use fake stats with docFreq=maxDoc=ttf=1
+            collectionStats = new CollectionStatistics(term.field(), 1, 1, 1, 1);
+            termStats = new TermStatistics(term.bytes(), 1, 1);
+        }
+
+        if (termStats == null) {
+            this.simScorer = null; // term doesn't exist in any segment, we won't use similarity at all
+        } else {
+            this.simScorer = similarity.scorer(boost, collectionStats, termStats);
+        }
+    }
+
+    /**
+     * 构造 TermStates，如果 query 中预先构造的 TermStates 是基于当前 searcher 的，则直接复用
+     */
+    static TermStates termStates(IndexSearcher searcher, Term term, TermStates perReaderTermState,
+                                 ScoreMode scoreMode) throws IOException {
+        final IndexReaderContext context = searcher.getTopReaderContext();
+        if (perReaderTermState == null || perReaderTermState.wasBuiltFor(context) == false) {
+            return TermStates.build(context, term, scoreMode.needsScores());
+        }
+        // PRTS was pre-build for this IS
+        return perReaderTermState;
+    }
+
+    @Override
+    public void extractTerms(Set<Term> terms) {
+        terms.add(term);
+    }
+
+    @Override
+    public Matches matches(LeafReaderContext context, int doc) throws IOException {
+        TermsEnum te = getTermsEnum(context);
+        if (te == null) {
+            return null;
+        }
+        if (context.reader().terms(term.field()).hasPositions() == false) {
+            return super.matches(context, doc);
+        }
+        return MatchesUtils.forField(term.field(), () -> {
+            PostingsEnum pe = te.postings(null, PostingsEnum.OFFSETS);
+            if (pe.advance(doc) != doc) {
+                return null;
+            }
+            return new TermMatchesIterator(getQuery(), pe);
+        });
+    }
+
+    @Override
+    public String toString() {
+        return "weight(" + getQuery() + ")";
+    }
+
+    @Override
+    public Scorer scorer(LeafReaderContext context) throws IOException {
+        assert termStates == null || termStates.wasBuiltFor(ReaderUtil.getTopLevelContext(context)) : "The top-reader used to create Weight is not the same as the current reader's top-reader (" + ReaderUtil.getTopLevelContext(context);
+        final TermsEnum termsEnum = getTermsEnum(context);
+        if (termsEnum == null) {
+            return null;
+        }
+        LeafSimScorer scorer = new LeafSimScorer(simScorer, context.reader(), term.field(), scoreMode.needsScores());
+        if (scoreMode == ScoreMode.TOP_SCORES) {
+            return new TermScorer(this, termsEnum.impacts(PostingsEnum.FREQS), scorer);
+        } else {
+            return new TermScorer(this, termsEnum.postings(null, scoreMode.needsScores() ? PostingsEnum.FREQS : PostingsEnum.NONE), scorer);
+        }
+    }
+
+    @Override
+    public boolean isCacheable(LeafReaderContext ctx) {
+        return true;
+    }
+
+    /**
+     * Returns a {@link TermsEnum} positioned at this weights Term or null if
+     * the term does not exist in the given context
+     */
+    private TermsEnum getTermsEnum(LeafReaderContext context) throws IOException {
+        assert termStates != null;
+        assert termStates.wasBuiltFor(ReaderUtil.getTopLevelContext(context)) :
+                "The top-reader used to create Weight is not the same as the current reader's top-reader (" + ReaderUtil.getTopLevelContext(context);
+        final TermState state = termStates.get(context);
+        if (state == null) { // term is not present in that reader
+            assert termNotInReader(context.reader(), term) : "no termstate found but term exists in reader term=" + term;
+            return null;
+        }
+        final TermsEnum termsEnum = context.reader().terms(term.field()).iterator();
+        termsEnum.seekExact(term.bytes(), state);
+        return termsEnum;
+    }
+
+    private boolean termNotInReader(LeafReader reader, Term term) throws IOException {
+        // only called from assert
+        return reader.docFreq(term) == 0;
+    }
+
+    @Override
+    public Explanation explain(LeafReaderContext context, int doc) throws IOException {
+        TermScorer scorer = (TermScorer) scorer(context);
+        if (scorer != null) {
+            int newDoc = scorer.iterator().advance(doc);
+            if (newDoc == doc) {
+                float freq = scorer.freq();
+                LeafSimScorer docScorer = new LeafSimScorer(simScorer, context.reader(), term.field(), true);
+                Explanation freqExplanation = Explanation.match(freq, "freq, occurrences of term within document");
+                Explanation scoreExplanation = docScorer.explain(doc, freqExplanation);
+                return Explanation.match(
+                        scoreExplanation.getValue(),
+                        "weight(" + getQuery() + " in " + doc + ") ["
+                                + similarity.getClass().getSimpleName() + "], result of:",
+                        scoreExplanation);
+            }
+        }
+        return Explanation.noMatch("no matching term");
+    }
+}
@@ -0,0 +1,331 @@
+package org.elasticsearch.myterm;
+
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.SortedNumericDocValues;
+import org.apache.lucene.index.StoredFieldVisitor;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Explanation;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.QueryVisitor;
+import org.apache.lucene.search.ScoreMode;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.index.mapper.IdFieldMapper;
+import org.elasticsearch.index.mapper.Uid;
+
+import java.io.IOException;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * @Classname StepBucketQuery
+ * @Description 按照 {@link StepCursor} 逐个阶梯导出 {@link MultistepTermsQuery} 的全部结果。
+ * 导出时按 _score 排序的 collector 不会设置 min competitive score(COMPLETE 模式)，所以内部的 weight 总是以 TOP_SCORES 创建，
+ * 由这里直接设置阶梯范围：阶梯内模式下最低和最高阶梯都是游标的阶梯，阶梯更低的 block 由 block-max 跳过，
+ * 阶梯更高的 doc 在 essential term 的得分超过游标阶梯时就跳过，不再读取 field 和 _id；below 模式下最高阶梯为游标阶梯减一。
+ * 只返回 (field 降序, _id 升序) 排在游标之后的 doc，每一页的大小由请求的 size 和 collector 决定。
+ * 游标只依赖排序值，segment 没有按 field 排序时每一页都要重新遍历这个阶梯中的全部 doc；按 field 降序做了 index sorting 时，
+ * 排在游标之前的 doc 都在 segment 的开头，scorer 用二分查找直接 advance 到第一个可能的 doc。
+ * 状态都在每个 scorer 中，weight 没有状态。结果缓存和并行搜索只保留前 N 个结果，这里都不使用。
+ */
+public final class StepBucketQuery extends Query {
+
+    private final MultistepTermsQuery query;
+    private final StepCursor cursor;
+
+    public StepBucketQuery(MultistepTermsQuery query, StepCursor cursor) {
+        if (query.getTiebreakField() != null) {
+            throw new IllegalArgumentException("step_cursor can not be combined with tiebreak_field, but got [" + query + "]");
+        }
+        this.query = Objects.requireNonNull(query);
+        this.cursor = Objects.requireNonNull(cursor);
+    }
+
+    public MultistepTermsQuery getQuery() {
+        return query;
+    }
+
+    public StepCursor getCursor() {
+        return cursor;
+    }
+
+    @Override
+    public Weight createWeight(IndexSearcher searcher, ScoreMode scoreMode, float boost) throws IOException {
+        // 不需要打分时同样要按阶梯过滤，需要 freq 和 norm
+        return new StepBucketWeight(query.createMultistepWeight(searcher, ScoreMode.TOP_SCORES, boost), boost);
+    }
+
+    private final class StepBucketWeight extends Weight {
+        private final Weight in;
+        /** 阶梯得分的上界 */
+        private final float maxScore;
+
+        StepBucketWeight(Weight in, float boost) {
+            super(StepBucketQuery.this);
+            this.in = in;
+            this.maxScore = boost * (cursor.isBelow() ? cursor.getStep() - 1 : cursor.getStep());
+        }
+
+        @Override
+        public void extractTerms(Set<Term> terms) {
+            in.extractTerms(terms);
+        }
+
+        @Override
+        public Scorer scorer(LeafReaderContext context) throws IOException {
+            final Scorer scorer = in.scorer(context);
+            if (scorer == null) {
+                return null;
+            }
+            final MultistepScorer multistepScorer = (MultistepScorer) scorer;
+            if (cursor.isBelow()) {
+                multistepScorer.setMaxStep(cursor.getStep() - 1);
+                return new StepBucketScorer(this, multistepScorer, cursor, null, 0);
+            }
+            final CursorKey after = new CursorKey(context.reader(), cursor);
+            final int start = after.firstCandidate();
+            if (start >= context.reader().maxDoc()) {
+                // 这个 segment 中的 doc 都排在游标之前
+                return null;
+            }
+            multistepScorer.setMinStep(cursor.getStep());
+            multistepScorer.setMaxStep(cursor.getStep());
+            return new StepBucketScorer(this, multistepScorer, cursor, after, start);
+        }
+
+        @Override
+        public boolean isCacheable(LeafReaderContext ctx) {
+            return false;
+        }
+
+        @Override
+        public Explanation explain(LeafReaderContext context, int doc) throws IOException {
+            final Explanation explanation = in.explain(context, doc);
+            if (explanation.isMatch() == false) {
+                return explanation;
+            }
+            final Scorer scorer = in.scorer(context);
+            if (scorer == null || scorer.iterator().advance(doc) != doc) {
+                return Explanation.noMatch("no matching term", explanation);
+            }
+            final int step = ((MultistepScorer) scorer).step();
+            final boolean matches = cursor.isBelow() ? step < cursor.getStep()
+                    : step == cursor.getStep() && new CursorKey(context.reader(), cursor).isAfter(doc);
+            if (matches == false) {
+                return Explanation.noMatch("step score [" + step + "] is not after step_cursor [" + cursor + "]", explanation);
+            }
+            return explanation;
+        }
+
+        @Override
+        public String toString() {
+            return "weight(" + StepBucketQuery.this + ")";
+        }
+    }
+
+    /**
+     * 一个 segment 上阶梯内模式的排序 key (field 降序, _id 升序)，field 多值时取最大值，缺失时为 Long.MIN_VALUE；
+     * doc values 只能向后遍历，doc 需要递增。_id 只在 field 的值和游标相同时从 stored field 中读取，按 UTF-8 字节比较，和 ES 中 _id 的排序一致
+     */
+    private static final class CursorKey {
+        private final LeafReader reader;
+        private final StepCursor cursor;
+        private final SortedNumericDocValues values;
+        /** 为 null 时游标在阶梯的开头 */
+        private final BytesRef afterId;
+
+        CursorKey(LeafReader reader, StepCursor cursor) throws IOException {
+            this.reader = reader;
+            this.cursor = cursor;
+            this.values = DocValues.getSortedNumeric(reader, cursor.getField());
+            this.afterId = cursor.getAfterId() == null ? null : new BytesRef(cursor.getAfterId());
+        }
+
+        boolean isAfter(int doc) throws IOException {
+            if (afterId == null) {
+                return true;
+            }
+            final long value = value(values, doc, Long.MIN_VALUE);
+            if (value != cursor.getAfterValue()) {
+                return value < cursor.getAfterValue();
+            }
+            return id(doc).compareTo(afterId) > 0;
+        }
+
+        /**
+         * segment 按 field 降序 index sorting 时，值大于游标的 doc 都在开头，二分查找第一个可能在游标之后的 doc；
+         * 缺失值在 index sorting 中按 missing value 排列，所以只跳过值大于 max(游标, missing value) 的 doc
+         */
+        int firstCandidate() throws IOException {
+            final Sort indexSort = reader.getMetaData().getSort();
+            if (afterId == null || MultistepTermsQuery.sortedByTiebreak(indexSort, cursor.getField()) == false) {
+                return 0;
+            }
+            final Object missingValue = indexSort.getSort()[0].getMissingValue();
+            final long missing = missingValue == null ? 0L : ((Number) missingValue).longValue();
+            final long bound = Math.max(cursor.getAfterValue(), missing);
+            int low = 0;
+            int high = reader.maxDoc();
+            while (low < high) {
+                final int mid = (low + high) >>> 1;
+                // 每次查找都重新获取 doc values，它只能向后遍历
+                if (value(DocValues.getSortedNumeric(reader, cursor.getField()), mid, missing) > bound) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        private BytesRef id(int doc) throws IOException {
+            final IdVisitor visitor = new IdVisitor();
+            reader.document(doc, visitor);
+            return visitor.id == null ? new BytesRef() : new BytesRef(visitor.id);
+        }
+
+        private static long value(SortedNumericDocValues values, int doc, long missing) throws IOException {
+            if (values.advanceExact(doc) == false) {
+                return missing;
+            }
+            long max = Long.MIN_VALUE;
+            for (int i = values.docValueCount(); i > 0; i--) {
+                max = Math.max(max, values.nextValue());
+            }
+            return max;
+        }
+    }
+
+    /** 只读取 _id 的 stored field */
+    private static final class IdVisitor extends StoredFieldVisitor {
+        private String id;
+
+        @Override
+        public Status needsField(FieldInfo fieldInfo) {
+            if (id != null) {
+                return Status.STOP;
+            }
+            return IdFieldMapper.NAME.equals(fieldInfo.name) ? Status.YES : Status.NO;
+        }
+
+        @Override
+        public void binaryField(FieldInfo fieldInfo, byte[] value) {
+            id = Uid.decodeId(value);
+        }
+    }
+
+    /**
+     * 从 start 开始只返回游标之后的 doc，状态都在这个 scorer 中
+     */
+    private static final class StepBucketScorer extends Scorer {
+        private final StepBucketWeight weight;
+        private final MultistepScorer in;
+        private final StepCursor cursor;
+        private final DocIdSetIterator inIterator;
+        /** below 模式下为 null */
+        private final CursorKey after;
+        private final int start;
+        private final DocIdSetIterator iterator;
+        private int doc = -1;
+
+        StepBucketScorer(StepBucketWeight weight, MultistepScorer in, StepCursor cursor, CursorKey after, int start) {
+            super(weight);
+            this.weight = weight;
+            this.in = in;
+            this.cursor = cursor;
+            this.inIterator = in.iterator();
+            this.after = after;
+            this.start = start;
+            this.iterator = new DocIdSetIterator() {
+                @Override
+                public int docID() {
+                    return doc;
+                }
+
+                @Override
+                public int nextDoc() throws IOException {
+                    return advance(doc + 1);
+                }
+
+                @Override
+                public int advance(int target) throws IOException {
+                    return doc = nextMatch(inIterator.advance(Math.max(target, StepBucketScorer.this.start)));
+                }
+
+                @Override
+                public long cost() {
+                    return inIterator.cost();
+                }
+            };
+        }
+
+        private int nextMatch(int candidate) throws IOException {
+            while (candidate != DocIdSetIterator.NO_MORE_DOCS) {
+                final int step = in.step();
+                if (cursor.isBelow() ? step < cursor.getStep() : step == cursor.getStep() && after.isAfter(candidate)) {
+                    return candidate;
+                }
+                candidate = inIterator.nextDoc();
+            }
+            return DocIdSetIterator.NO_MORE_DOCS;
+        }
+
+        @Override
+        public int docID() {
+            return doc;
+        }
+
+        @Override
+        public DocIdSetIterator iterator() {
+            return iterator;
+        }
+
+        @Override
+        public float score() throws IOException {
+            return in.score();
+        }
+
+        @Override
+        public int advanceShallow(int target) throws IOException {
+            return in.advanceShallow(target);
+        }
+
+        @Override
+        public float getMaxScore(int upTo) throws IOException {
+            return Math.min(in.getMaxScore(upTo), weight.maxScore);
+        }
+
+        @Override
+        public void setMinCompetitiveScore(float minScore) throws IOException {
+            in.setMinCompetitiveScore(minScore);
+        }
+    }
+
+    @Override
+    public void visit(QueryVisitor visitor) {
+        query.visit(visitor.getSubVisitor(BooleanClause.Occur.MUST, this));
+    }
+
+    @Override
+    public String toString(String field) {
+        return query.toString(field) + ",step_cursor(" + cursor + ")";
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return sameClassAs(other) && query.equals(((StepBucketQuery) other).query) && cursor.equals(((StepBucketQuery) other).cursor);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * classHash() + Objects.hash(query, cursor);
+    }
+}
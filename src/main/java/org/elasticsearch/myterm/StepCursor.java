@@ -0,0 +1,209 @@
+package org.elasticsearch.myterm;
+
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.common.ParseField;
+import org.elasticsearch.common.ParsingException;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Writeable;
+import org.elasticsearch.common.xcontent.ToXContentObject;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentParser;
+
+import java.io.IOException;
+import java.util.Objects;
+
+/**
+ * @Classname StepCursor
+ * @Description 按 (阶梯得分降序, field 降序, _id 升序) 导出全部结果时的游标，和 search_after 一样只依赖排序值，不依赖 doc id，有两种形式：
+ * <ul>
+ *   <li>{"step": s, "field": "read_num", "after": [v, "id"]}：只返回阶梯得分等于 s 并且 (field, _id) 排在 (v, id) 之后的 doc，
+ *   阶梯更低的 block 由 block-max 跳过；没有 after 时返回整个阶梯。field 多值时取最大值，缺失时为 Long.MIN_VALUE，
+ *   和 ES 中 desc 排序的默认 mode 以及 "missing": "_last" 一致，所以 after 就是上一页最后一个 hit 的 sort 中后两个值</li>
+ *   <li>{"below": s}：返回阶梯得分小于 s 的 doc，也就是下一个阶梯的开始，和普通的 top-k 查询一样由 block-max 剪枝</li>
+ * </ul>
+ * 每一页的大小由请求的 size 决定。
+ */
+public final class StepCursor implements Writeable, ToXContentObject {
+
+    public static final ParseField STEP_FIELD = new ParseField("step");
+    public static final ParseField FIELD_FIELD = new ParseField("field");
+    public static final ParseField AFTER_FIELD = new ParseField("after");
+    public static final ParseField BELOW_FIELD = new ParseField("below");
+
+    private final int step;
+    /** true 时返回阶梯得分小于 step 的 doc */
+    private final boolean below;
+    private final String field;
+    private final long afterValue;
+    /** 为 null 时从阶梯的开头开始 */
+    private final String afterId;
+
+    private StepCursor(int step, boolean below, String field, long afterValue, String afterId) {
+        this.step = step;
+        this.below = below;
+        this.field = field;
+        this.afterValue = afterValue;
+        this.afterId = afterId;
+    }
+
+    /** 阶梯 step 中的全部 doc */
+    public static StepCursor within(int step, String field) {
+        return within(step, field, Long.MIN_VALUE, null);
+    }
+
+    /** 阶梯 step 中 (field, _id) 排在 (afterValue, afterId) 之后的 doc，afterId 为 null 时从阶梯的开头开始 */
+    public static StepCursor within(int step, String field, long afterValue, @Nullable String afterId) {
+        if (step < 0) {
+            throw new IllegalArgumentException("step_cursor requires step >= 0, but got [" + step + "]");
+        }
+        if (field == null) {
+            throw new IllegalArgumentException("step_cursor requires [field] with [step]");
+        }
+        return new StepCursor(step, false, field, afterId == null ? Long.MIN_VALUE : afterValue, afterId);
+    }
+
+    /** 阶梯得分小于 step 的 doc */
+    public static StepCursor below(int step) {
+        if (step <= 0) {
+            throw new IllegalArgumentException("step_cursor requires below > 0, but got [" + step + "]");
+        }
+        return new StepCursor(step, true, null, Long.MIN_VALUE, null);
+    }
+
+    public StepCursor(StreamInput in) throws IOException {
+        step = in.readVInt();
+        below = in.readBoolean();
+        field = in.readOptionalString();
+        afterValue = in.readLong();
+        afterId = in.readOptionalString();
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        out.writeVInt(step);
+        out.writeBoolean(below);
+        out.writeOptionalString(field);
+        out.writeLong(afterValue);
+        out.writeOptionalString(afterId);
+    }
+
+    public int getStep() {
+        return step;
+    }
+
+    public boolean isBelow() {
+        return below;
+    }
+
+    /** 阶梯内排序的字段，below 时为 null */
+    public String getField() {
+        return field;
+    }
+
+    public long getAfterValue() {
+        return afterValue;
+    }
+
+    /** 为 null 时从阶梯的开头开始 */
+    public String getAfterId() {
+        return afterId;
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject();
+        if (below) {
+            builder.field(BELOW_FIELD.getPreferredName(), step);
+        } else {
+            builder.field(STEP_FIELD.getPreferredName(), step);
+            builder.field(FIELD_FIELD.getPreferredName(), field);
+            if (afterId != null) {
+                builder.startArray(AFTER_FIELD.getPreferredName()).value(afterValue).value(afterId).endArray();
+            }
+        }
+        return builder.endObject();
+    }
+
+    public static StepCursor fromXContent(XContentParser parser) throws IOException {
+        Integer step = null;
+        Integer below = null;
+        String field = null;
+        Long afterValue = null;
+        String afterId = null;
+        String currentFieldName = null;
+        XContentParser.Token token;
+        while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+            if (token == XContentParser.Token.FIELD_NAME) {
+                currentFieldName = parser.currentName();
+            } else if (token == XContentParser.Token.START_ARRAY && AFTER_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
+                // 和 search_after 一样，排序值可以是数字或者字符串
+                final XContentParser.Token valueToken = parser.nextToken();
+                if (valueToken != XContentParser.Token.VALUE_NUMBER && valueToken != XContentParser.Token.VALUE_STRING) {
+                    throw new ParsingException(parser.getTokenLocation(), "step_cursor [after] requires [value, _id]");
+                }
+                afterValue = parser.longValue();
+                if (parser.nextToken() != XContentParser.Token.VALUE_STRING) {
+                    throw new ParsingException(parser.getTokenLocation(), "step_cursor [after] requires [value, _id]");
+                }
+                afterId = parser.text();
+                if (parser.nextToken() != XContentParser.Token.END_ARRAY) {
+                    throw new ParsingException(parser.getTokenLocation(), "step_cursor [after] requires [value, _id]");
+                }
+            } else if (token.isValue()) {
+                if (STEP_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
+                    step = parser.intValue();
+                } else if (FIELD_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
+                    field = parser.text();
+                } else if (BELOW_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
+                    below = parser.intValue();
+                } else {
+                    throw new ParsingException(parser.getTokenLocation(), "step_cursor does not support [" + currentFieldName + "]");
+                }
+            } else {
+                throw new ParsingException(parser.getTokenLocation(),
+                        "step_cursor unknown token [" + token + "] after [" + currentFieldName + "]");
+            }
+        }
+        try {
+            if (below != null) {
+                if (step != null || field != null || afterId != null) {
+                    throw new IllegalArgumentException("step_cursor [below] can not be combined with [step], [field] or [after]");
+                }
+                return below(below);
+            }
+            if (step == null) {
+                throw new IllegalArgumentException("step_cursor requires [below] or [step]");
+            }
+            return afterId == null ? within(step, field) : within(step, field, afterValue, afterId);
+        } catch (IllegalArgumentException e) {
+            throw new ParsingException(parser.getTokenLocation(), e.getMessage());
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        StepCursor that = (StepCursor) o;
+        return step == that.step && below == that.below && afterValue == that.afterValue && Objects.equals(field, that.field)
+                && Objects.equals(afterId, that.afterId);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(step, below, field, afterValue, afterId);
+    }
+
+    @Override
+    public String toString() {
+        if (below) {
+            return "below=" + step;
+        }
+        return "step=" + step + ",field=" + field + (afterId == null ? "" : ",after=[" + afterValue + "," + afterId + "]");
+    }
+}
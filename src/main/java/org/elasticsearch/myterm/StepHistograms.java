@@ -0,0 +1,256 @@
+package org.elasticsearch.myterm;
+
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Writeable;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+import org.elasticsearch.common.xcontent.ToXContentFragment;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.index.shard.ShardId;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @Classname StepHistograms
+ * @Description 每个 shard 上 multistep_score 最终整数阶梯得分的分布，按 (shard, field, base) 分组，用于在线上调整 base，不需要打开 explain。
+ * 阶梯得分小于 32 时每个值一个桶，更大的值每个 2 的幂次区间再等分为 8 个桶(相对误差不超过 1/8)，一共 240 个桶。
+ * scorer 先在本地数组中计数，每次 bulk score 结束时用 {@link AtomicLongArray} 合并，没有锁；
+ * 统计的是 collector 实际取过得分的 doc，block-max 跳过的 doc 不计入。shard 关闭时删除对应的直方图。
+ * base 由请求指定，每个 shard 最多 {@link #MAX_KEYS_PER_SHARD} 个 (field, base)，超过之后新的 (field, base) 不再统计。
+ */
+public final class StepHistograms {
+
+    public static final Setting<Boolean> ENABLED_SETTING =
+            Setting.boolSetting("multistep_score.step_histogram.enabled", true, Setting.Property.NodeScope);
+
+    /** 小于这个值的阶梯得分每个值一个桶 */
+    private static final int EXACT = 32;
+    private static final int SUB_BUCKETS = 8;
+    static final int BUCKETS = EXACT + (31 - 5) * SUB_BUCKETS;
+    /** 每个 shard 上直方图的个数上限，每个直方图 {@link #BUCKETS} 个 long */
+    static final int MAX_KEYS_PER_SHARD = 64;
+
+    private final Map<ShardId, Map<Key, Histogram>> shards = ConcurrentCollections.newConcurrentMap();
+
+    /** 阶梯得分所在桶的下标 */
+    static int bucket(int step) {
+        if (step < EXACT) {
+            return Math.max(0, step);
+        }
+        final int log = 31 - Integer.numberOfLeadingZeros(step);
+        final int sub = (step >>> (log - 3)) & (SUB_BUCKETS - 1);
+        return EXACT + (log - 5) * SUB_BUCKETS + sub;
+    }
+
+    /** 桶的下界(包含) */
+    static long lowerBound(int bucket) {
+        if (bucket < EXACT) {
+            return bucket;
+        }
+        final int log = 5 + (bucket - EXACT) / SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + (bucket - EXACT) % SUB_BUCKETS) << (log - 3);
+    }
+
+    /** 桶的上界(不包含) */
+    static long upperBound(int bucket) {
+        if (bucket < EXACT) {
+            return bucket + 1;
+        }
+        final int log = 5 + (bucket - EXACT) / SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + 1 + (bucket - EXACT) % SUB_BUCKETS) << (log - 3);
+    }
+
+    /**
+     * 获取或者创建 shard 上 (field, base) 的直方图，shard 上的直方图已经达到上限时返回 null
+     */
+    @Nullable
+    Histogram get(ShardId shardId, String field, double base) {
+        final Map<Key, Histogram> histograms = shards.computeIfAbsent(shardId, k -> ConcurrentCollections.newConcurrentMap());
+        final Key key = new Key(field, base);
+        final Histogram histogram = histograms.get(key);
+        if (histogram != null) {
+            return histogram;
+        }
+        // 只有创建新的直方图时加锁，保证不超过上限
+        synchronized (histograms) {
+            if (histograms.size() >= MAX_KEYS_PER_SHARD) {
+                return histograms.get(key);
+            }
+            return histograms.computeIfAbsent(key, k -> new Histogram());
+        }
+    }
+
+    /** shard 关闭之后删除它的所有直方图 */
+    public void removeShard(ShardId shardId) {
+        shards.remove(shardId);
+    }
+
+    public List<Stats> stats() {
+        List<Stats> stats = new ArrayList<>();
+        for (Map.Entry<ShardId, Map<Key, Histogram>> shard : shards.entrySet()) {
+            for (Map.Entry<Key, Histogram> entry : shard.getValue().entrySet()) {
+                Key key = entry.getKey();
+                stats.add(entry.getValue().stats(shard.getKey(), key.field, key.base));
+            }
+        }
+        return stats;
+    }
+
+    static final class Histogram {
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final LongAdder sum = new LongAdder();
+
+        /** 合并 scorer 本地的计数 */
+        void add(int[] localCounts, long localSum) {
+            for (int i = 0; i < localCounts.length; i++) {
+                if (localCounts[i] != 0) {
+                    counts.addAndGet(i, localCounts[i]);
+                }
+            }
+            sum.add(localSum);
+        }
+
+        Stats stats(ShardId shardId, String field, double base) {
+            final long[] snapshot = new long[BUCKETS];
+            long count = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                snapshot[i] = counts.get(i);
+                count += snapshot[i];
+            }
+            return new Stats(shardId, field, base, count, sum.sum(), snapshot);
+        }
+    }
+
+    /**
+     * 一个 (shard, field, base) 直方图的快照，百分位数为所在桶的上界
+     */
+    public static final class Stats implements Writeable, ToXContentFragment {
+        private final ShardId shardId;
+        private final String field;
+        private final double base;
+        private final long count;
+        private final long sum;
+        private final long[] counts;
+
+        Stats(ShardId shardId, String field, double base, long count, long sum, long[] counts) {
+            this.shardId = shardId;
+            this.field = field;
+            this.base = base;
+            this.count = count;
+            this.sum = sum;
+            this.counts = counts;
+        }
+
+        public Stats(StreamInput in) throws IOException {
+            shardId = new ShardId(in);
+            field = in.readString();
+            base = in.readDouble();
+            count = in.readVLong();
+            sum = in.readVLong();
+            counts = new long[in.readVInt()];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = in.readVLong();
+            }
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            shardId.writeTo(out);
+            out.writeString(field);
+            out.writeDouble(base);
+            out.writeVLong(count);
+            out.writeVLong(sum);
+            out.writeVInt(counts.length);
+            for (long c : counts) {
+                out.writeVLong(c);
+            }
+        }
+
+        public ShardId getShardId() {
+            return shardId;
+        }
+
+        public String getField() {
+            return field;
+        }
+
+        public double getBase() {
+            return base;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        /** 第 q 分位所在桶的上界(不包含) */
+        public long percentile(double q) {
+            final long rank = (long) Math.ceil(q * count);
+            long seen = 0;
+            for (int b = 0; b < counts.length; b++) {
+                seen += counts[b];
+                if (seen >= rank && counts[b] > 0) {
+                    return upperBound(b);
+                }
+            }
+            return 0;
+        }
+
+        @Override
+        public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+            builder.field("count", count);
+            builder.field("avg", count == 0 ? 0 : (double) sum / count);
+            builder.field("p50", percentile(0.5));
+            builder.field("p90", percentile(0.9));
+            builder.field("p99", percentile(0.99));
+            builder.startArray("buckets");
+            for (int b = 0; b < counts.length; b++) {
+                if (counts[b] == 0) {
+                    continue;
+                }
+                builder.startObject();
+                builder.field("from", lowerBound(b));
+                builder.field("to", upperBound(b));
+                builder.field("count", counts[b]);
+                builder.endObject();
+            }
+            builder.endArray();
+            return builder;
+        }
+    }
+
+    private static final class Key {
+        final String field;
+        final double base;
+
+        Key(String field, double base) {
+            this.field = field;
+            this.base = base;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            Key key = (Key) o;
+            return Double.compare(key.base, base) == 0 &&
+                    field.equals(key.field);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(field, base);
+        }
+    }
+}
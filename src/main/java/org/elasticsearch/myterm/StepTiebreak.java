@@ -0,0 +1,74 @@
+package org.elasticsearch.myterm;
+
+/**
+ * @Classname StepTiebreak
+ * @Description 把整数阶梯得分和热度值打包成一个可以直接比较大小的 float score，
+ * 使得 "相关度阶梯优先，热度其次" 的排序可以直接走普通的 top-k score 排序(包括 TOP_SCORES 的提前终止)，不再需要 doc values 排序。
+ *
+ * 正数 float 的 bit 表示和 float 的大小单调一致，score 的 bit 布局为:
+ * <pre>
+ *   bits = step &lt;&lt; 16 | popularityCode
+ * </pre>
+ * <ul>
+ *   <li>step: 高 15 位，为了保证结果是有限的正数 float，最大值为 {@link #MAX_STEP}，超过后饱和</li>
+ *   <li>popularityCode: 低 16 位，6 位指数 + 10 位尾数的对数编码，和热度值单调一致，
+ *   小于 2048 的热度值是精确的，更大的值相对精度为 1/1024；负数和缺失值按 0 处理</li>
+ * </ul>
+ * 这个编码不等价于 sort: [_score, read_num]，排序在以下情况和精确排序不一致，这些 doc 的 score 相同，按 doc id 排列:
+ * <ul>
+ *   <li>热度值不小于 2048 时，相对差距小于 1/1024 的热度值可能编码相同，例如 2048 和 2049</li>
+ *   <li>阶梯得分大于 {@link #MAX_STEP} 时饱和，这些阶梯之间不再区分</li>
+ *   <li>热度为负数或者缺失时都按 0 处理</li>
+ * </ul>
+ * score 乘以任何系数之后都不再是有效的编码，所以 tiebreak_field 不能和 boost 一起使用。
+ */
+public final class StepTiebreak {
+
+    private static final int POPULARITY_BITS = 16;
+    private static final int MANTISSA_BITS = 10;
+
+    /** 最大的阶梯得分，(MAX_STEP + 1) &lt;&lt; 16 即为 float 的正无穷 */
+    public static final int MAX_STEP = (0x7F800000 >>> POPULARITY_BITS) - 1;
+
+    /** 最大的热度编码 */
+    public static final int MAX_POPULARITY_CODE = (1 << POPULARITY_BITS) - 1;
+
+    private StepTiebreak() {}
+
+    /** 热度值的单调编码 */
+    public static int encodePopularity(long popularity) {
+        if (popularity <= 0) {
+            return 0;
+        }
+        final int exponent = 63 - Long.numberOfLeadingZeros(popularity);
+        final long mantissa;
+        if (exponent <= MANTISSA_BITS) {
+            mantissa = popularity << (MANTISSA_BITS - exponent);
+        } else {
+            mantissa = popularity >>> (exponent - MANTISSA_BITS);
+        }
+        return ((exponent + 1) << MANTISSA_BITS) | (int) (mantissa & ((1 << MANTISSA_BITS) - 1));
+    }
+
+    /** 打包之后的 score */
+    public static float pack(long step, int popularityCode) {
+        final int s = (int) Math.max(0, Math.min(MAX_STEP, step));
+        return Float.intBitsToFloat((s << POPULARITY_BITS) | popularityCode);
+    }
+
+    /** 打包之后 score 中的阶梯得分 */
+    public static int step(float score) {
+        if (score <= 0) {
+            return 0;
+        }
+        return Math.min(MAX_STEP, Float.floatToIntBits(score) >>> POPULARITY_BITS);
+    }
+
+    /** 打包之后 score 中的热度编码 */
+    public static int popularityCode(float score) {
+        if (score <= 0) {
+            return 0;
+        }
+        return Float.floatToIntBits(score) & MAX_POPULARITY_CODE;
+    }
+}
@@ -0,0 +1,102 @@
+package org.elasticsearch.myterm;
+
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.util.DocIdSetBuilder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @Classname SynonymIterator
+ * @Description 同义词的只召回 disjunction：只读取 doc id(PostingsEnum.NONE)，不读取 freq、不参与打分。
+ * 同义词较少时线性扫描每个 postings 的当前 doc；同义词很多时(大量的同义词扩展)和 TermInSetQuery 一样，
+ * 一次性把所有 doc id 收集到 {@link DocIdSetBuilder} 中，之后只迭代一个 iterator。
+ * 设置了 minimum_should_match 时每个 position 各有一个同义词 iterator，打分时再用 {@link #union} 组合，
+ * 子 iterator 可能在外部被 advance，所以每次都读取子 iterator 的 docID() 而不是缓存。
+ */
+final class SynonymIterator extends DocIdSetIterator {
+
+    /** 超过这个数量之后收集到 DocIdSetBuilder 中，和 TermInSetQuery 的阈值一致 */
+    static final int BUILDER_THRESHOLD = 16;
+
+    private final DocIdSetIterator[] subs;
+    private final long cost;
+    private int doc = -1;
+
+    private SynonymIterator(DocIdSetIterator[] subs) {
+        this.subs = subs;
+        long cost = 0;
+        for (DocIdSetIterator sub : subs) {
+            cost += sub.cost();
+        }
+        this.cost = cost;
+    }
+
+    /**
+     * 同义词 postings 组成的 disjunction，postings 为空时返回 null
+     */
+    static DocIdSetIterator create(List<PostingsEnum> postings, int maxDoc) throws IOException {
+        if (postings.isEmpty()) {
+            return null;
+        }
+        if (postings.size() == 1) {
+            return postings.get(0);
+        }
+        if (postings.size() <= BUILDER_THRESHOLD) {
+            return new SynonymIterator(postings.toArray(new DocIdSetIterator[0]));
+        }
+        DocIdSetBuilder builder = new DocIdSetBuilder(maxDoc);
+        for (PostingsEnum p : postings) {
+            builder.add(p);
+        }
+        return builder.build().iterator();
+    }
+
+    /**
+     * 多个 iterator 的并集，iterators 中可以有 null，全部为 null 时返回 null
+     */
+    static DocIdSetIterator union(DocIdSetIterator[] iterators) {
+        List<DocIdSetIterator> subs = new ArrayList<>(iterators.length);
+        for (DocIdSetIterator iterator : iterators) {
+            if (iterator != null) {
+                subs.add(iterator);
+            }
+        }
+        if (subs.isEmpty()) {
+            return null;
+        }
+        return subs.size() == 1 ? subs.get(0) : new SynonymIterator(subs.toArray(new DocIdSetIterator[0]));
+    }
+
+    @Override
+    public int docID() {
+        return doc;
+    }
+
+    @Override
+    public int nextDoc() throws IOException {
+        return advance(doc + 1);
+    }
+
+    @Override
+    public int advance(int target) throws IOException {
+        int min = NO_MORE_DOCS;
+        for (DocIdSetIterator sub : subs) {
+            int d = sub.docID();
+            if (d < target) {
+                d = sub.advance(target);
+            }
+            if (d < min) {
+                min = d;
+            }
+        }
+        return doc = min;
+    }
+
+    @Override
+    public long cost() {
+        return cost;
+    }
+}
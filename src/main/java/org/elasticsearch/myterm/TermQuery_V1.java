@@ -40,9 +40,10 @@ public class TermQuery_V1 extends TermQuery {
     }
 
     /**
-     * 这种方式要比之前的复制，然后在基础上修改要更加优雅
-     * 官方文档： Once you have a new IndexReader, it's relatively cheap to create a new IndexSearcher from it.
-     * 在一个现成的 IndexReader 上构造 IndexSearcher 是相对容易的(debug 进去发现没有进行底层的 IO 操作)。
+     * 直接在 shard 的 IndexSearcher 上构造使用 {@link #similarity} 的 weight。
+     * 之前的实现是在 similarity 不同的时候 new 一个 IndexSearcher，这样每个 term 都会丢失 searcher 上的
+     * query cache、executor 以及 ES 提供的 collection statistics（比如 dfs_query_then_fetch），并且每次请求都会产生垃圾对象。
+     * 现在 collection statistics 和 term statistics 依然从原来的 searcher 上获取，只是打分时使用指定的 similarity。
      *
      * @param searcher
      * @param scoreMode
@@ -52,13 +53,7 @@ public class TermQuery_V1 extends TermQuery {
      */
     @Override
     public Weight createWeight(IndexSearcher searcher, ScoreMode scoreMode, float boost) throws IOException {
-        // 如果 query 中的 similarity 和 IndexSearcher 中的 similarity 为不同的实例，则创建一个新的 IndexSearcher
-        // TODO 这里有一个 bug，仅仅是考虑 两个 实例是否是同一个类的实例是不够的，其中的参数不通，评分结果也不同(比如 BM25 中的 k1 b 两个参数)。
-        if (similarity.getClass().equals(searcher.getSimilarity().getClass()) == false){
-            searcher = new IndexSearcher(searcher.getIndexReader());
-            searcher.setSimilarity(similarity);
-        }
-        Weight weight = super.createWeight(searcher, scoreMode, boost);
-        return weight;
+        final TermStates termState = SimilarityTermWeight.termStates(searcher, getTerm(), getTermStates(), scoreMode);
+        return new SimilarityTermWeight(this, getTerm(), similarity, searcher, scoreMode, boost, termState);
     }
 }
@@ -0,0 +1,61 @@
+package org.elasticsearch.myterm;
+
+import org.apache.lucene.index.IndexReaderContext;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.TermStates;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * @Classname TermStatesBatch
+ * @Description 批量构造一个字段上多个 term 的 {@link TermStates}。{@link TermStates#build} 每个 term 在每个 segment 上都新建一个 TermsEnum，
+ * 这里每个 segment 只创建一个 TermsEnum，按照 term 的字典序依次 seekExact：相邻的 term 通常在同一个或者相邻的 terms block 中，
+ * block tree 已经加载的 frame 可以复用，重复的 term 只 seek 一次。
+ */
+final class TermStatesBatch {
+
+    private TermStatesBatch() {}
+
+    /**
+     * 构造带统计信息(docFreq、totalTermFreq)的 TermStates，返回的数组和 terms 一一对应，相同的 term 共享同一个实例
+     */
+    static TermStates[] build(IndexReaderContext context, String field, BytesRef[] terms) throws IOException {
+        final Integer[] order = new Integer[terms.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparing(i -> terms[i]));
+        final TermStates[] states = new TermStates[terms.length];
+        // 去重之后按字典序排列的 term 下标
+        final int[] distinct = new int[terms.length];
+        int count = 0;
+        for (int i = 0; i < order.length; i++) {
+            final int t = order[i];
+            if (count > 0 && terms[distinct[count - 1]].equals(terms[t])) {
+                states[t] = states[distinct[count - 1]];
+                continue;
+            }
+            states[t] = new TermStates(context);
+            distinct[count++] = t;
+        }
+        for (LeafReaderContext ctx : context.leaves()) {
+            final Terms fieldTerms = ctx.reader().terms(field);
+            if (fieldTerms == null) {
+                continue;
+            }
+            final TermsEnum termsEnum = fieldTerms.iterator();
+            for (int i = 0; i < count; i++) {
+                final int t = distinct[i];
+                if (termsEnum.seekExact(terms[t])) {
+                    states[t].register(termsEnum.termState(), ctx.ord, termsEnum.docFreq(), termsEnum.totalTermFreq());
+                }
+            }
+        }
+        return states;
+    }
+}
@@ -0,0 +1,183 @@
+package org.elasticsearch.myterm;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexReaderContext;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermStates;
+import org.apache.lucene.search.CollectionStatistics;
+import org.apache.lucene.search.TermStatistics;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+import org.elasticsearch.similarity.MultistepSimilarity;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * @Classname TermStepCache
+ * @Description 节点级别的 term 缓存，key 为 (reader, field, term, base)，value 为 {@link TermStates} 以及计算好的整数阶梯权重。
+ * 热门 query 中的 term 反复出现，缓存之后不再需要在每个 segment 上 seek term，也不需要重复计算 idf 中的 log 和 ceil。
+ * 一个查询的所有 term 一起查找，没有缓存的 term 由 {@link TermStatesBatch} 批量构造。
+ * reader 刷新(refresh)之后旧 reader 关闭，对应的缓存在 closed listener 中清除；缓存条数有上限，超过之后按 LRU 淘汰。
+ */
+public final class TermStepCache {
+
+    public static final Setting<Integer> CACHE_SIZE_SETTING =
+            Setting.intSetting("multistep_score.term_cache.size", 10_000, 0, Setting.Property.NodeScope);
+
+    private final Cache<Key, Entry> cache;
+    /** 已经注册了 closed listener 的 reader */
+    private final Set<IndexReader.CacheKey> registeredReaders = ConcurrentCollections.newConcurrentSet();
+
+    public TermStepCache(Settings settings) {
+        this.cache = CacheBuilder.<Key, Entry>builder()
+                .setMaximumWeight(CACHE_SIZE_SETTING.get(settings))
+                .build();
+    }
+
+    /**
+     * 批量获取一个字段上多个 term 的缓存条目，没有缓存的 term 由 {@link TermStatesBatch} 在每个 segment 上按字典序一次性 seek，
+     * msearch 中同一个 shard 上的多个查询通过缓存共享已经构造好的 term。返回的数组和 terms 一一对应，reader 不支持缓存时元素为 null
+     */
+    Entry[] getAll(IndexReaderContext context, String field, BytesRef[] terms, double base) throws IOException {
+        final Entry[] entries = new Entry[terms.length];
+        final IndexReader.CacheHelper cacheHelper = context.reader().getReaderCacheHelper();
+        if (cacheHelper == null) {
+            return entries;
+        }
+        final IndexReader.CacheKey readerKey = cacheHelper.getKey();
+        final Key[] keys = new Key[terms.length];
+        int missing = 0;
+        for (int i = 0; i < terms.length; i++) {
+            keys[i] = new Key(readerKey, field, terms[i], base);
+            entries[i] = cache.get(keys[i]);
+            if (entries[i] == null) {
+                missing++;
+            }
+        }
+        if (missing > 0) {
+            final int[] missingTerms = new int[missing];
+            final BytesRef[] missingBytes = new BytesRef[missing];
+            for (int i = 0, m = 0; i < terms.length; i++) {
+                if (entries[i] == null) {
+                    missingTerms[m] = i;
+                    missingBytes[m++] = terms[i];
+                }
+            }
+            final TermStates[] built = TermStatesBatch.build(context, field, missingBytes);
+            for (int m = 0; m < missing; m++) {
+                final TermStates termStates = built[m];
+                try {
+                    // 其它查询可能同时构造了同一个 term，保留先写入的条目
+                    entries[missingTerms[m]] = cache.computeIfAbsent(keys[missingTerms[m]], k -> new Entry(termStates));
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException("failed to cache term states for " + field + ":" + Term.toString(missingBytes[m]),
+                            e.getCause());
+                }
+            }
+            if (registeredReaders.add(readerKey)) {
+                cacheHelper.addClosedListener(this::onReaderClosed);
+            }
+        }
+        for (int i = 0; i < entries.length; i++) {
+            if (entries[i] != null && entries[i].termStates.wasBuiltFor(context) == false) {
+                entries[i] = null;
+            }
+        }
+        return entries;
+    }
+
+    private void onReaderClosed(IndexReader.CacheKey readerKey) {
+        registeredReaders.remove(readerKey);
+        for (Iterator<Key> iterator = cache.keys().iterator(); iterator.hasNext(); ) {
+            if (iterator.next().readerKey == readerKey) {
+                iterator.remove();
+            }
+        }
+    }
+
+    public Cache.CacheStats stats() {
+        return cache.stats();
+    }
+
+    public int count() {
+        return cache.count();
+    }
+
+    public void clear() {
+        cache.invalidateAll();
+    }
+
+    static final class Entry {
+        final TermStates termStates;
+        /** 最近一次计算的 (docFreq, docCount, step)，dfs 模式下 searcher 提供的统计信息可能和缓存时不同 */
+        private volatile StepWeight stepWeight;
+
+        Entry(TermStates termStates) {
+            this.termStates = termStates;
+        }
+
+        int stepWeight(MultistepSimilarity similarity, CollectionStatistics collectionStats, TermStatistics termStats) {
+            StepWeight current = stepWeight;
+            if (current == null || current.docFreq != termStats.docFreq() || current.docCount != collectionStats.docCount()) {
+                current = new StepWeight(termStats.docFreq(), collectionStats.docCount(),
+                        similarity.stepWeight(collectionStats, termStats));
+                stepWeight = current;
+            }
+            return current.step;
+        }
+    }
+
+    private static final class StepWeight {
+        final long docFreq;
+        final long docCount;
+        final int step;
+
+        StepWeight(long docFreq, long docCount, int step) {
+            this.docFreq = docFreq;
+            this.docCount = docCount;
+            this.step = step;
+        }
+    }
+
+    private static final class Key {
+        final IndexReader.CacheKey readerKey;
+        final String field;
+        final BytesRef bytes;
+        final double base;
+
+        Key(IndexReader.CacheKey readerKey, String field, BytesRef bytes, double base) {
+            this.readerKey = readerKey;
+            this.field = field;
+            this.bytes = bytes;
+            this.base = base;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            Key key = (Key) o;
+            return readerKey == key.readerKey &&
+                    Double.compare(key.base, base) == 0 &&
+                    field.equals(key.field) &&
+                    bytes.equals(key.bytes);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(readerKey, field, bytes, base);
+        }
+    }
+}
@@ -0,0 +1,510 @@
+package org.elasticsearch.myterm;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BulkScorer;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Explanation;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Matches;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.ScoreMode;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TotalHits;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.FrequencyTrackingRingBuffer;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.elasticsearch.common.CheckedSupplier;
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.breaker.CircuitBreakingException;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @Classname TopDocsCache
+ * @Description shard 级别的 top-N 结果缓存，key 为 (shard 的顶层 reader, query, 阶梯权重, boost)，value 为每个 segment 上 top-N 的 (doc, score)，
+ * tiebreak 模式下 score 中已经打包了热度。命中时 weight 的 bulkScorer 直接遍历缓存的 doc，不读取 postings；scorer 总是由 inner 创建，
+ * 和其他 query 组合(bool 的 filter/must、nested、slice 等)时不会使用缓存。
+ * 命中的 doc 总数不超过 N 时缓存是完整的，任何需要打分的收集(包括 COMPLETE)都可以使用，结果和 total hits 都是准确的；
+ * 不完整的缓存只包含前 N 个 doc，只有 query 是 {@link SearchWindow} 中的顶层 query、并且 collector 需要的 doc 数不超过 N 时才使用，
+ * 这时结果和 total hits 与不使用缓存时一致，其他情况下正常搜索。
+ * 没有命中时在第一次收集(weight 的 bulkScorer)时填充，同样只对窗口内的顶层 query 填充，explain、profile、rescore 不会触发填充。
+ * reader 刷新(refresh)之后旧 reader 关闭，对应的缓存在 closed listener 中清除；缓存按照估算的内存大小淘汰(LRU)，
+ * 另外用一个 circuit breaker 统计缓存以及正在填充的 collector 占用的内存，超过上限时不缓存，查询正常执行。
+ * key 中包含 weight 计算出的每个 position 的阶梯权重，dfs 模式下统计信息和本地不同时不会复用本地的结果。
+ * 同一个 query 在最近的查询中出现过一次以上才会缓存，避免只出现一次的长尾 query 把热门 query 挤出去。
+ */
+public final class TopDocsCache {
+
+    public static final Setting<ByteSizeValue> CACHE_SIZE_SETTING =
+            Setting.memorySizeSetting("multistep_score.result_cache.size", "0", Setting.Property.NodeScope);
+    public static final Setting<ByteSizeValue> BREAKER_LIMIT_SETTING =
+            Setting.memorySizeSetting("multistep_score.result_cache.breaker.limit", "2%", Setting.Property.NodeScope);
+    public static final Setting<Integer> TOP_N_SETTING =
+            Setting.intSetting("multistep_score.result_cache.top_n", 100, 1, 10_000, Setting.Property.NodeScope);
+
+    /** 最近的 query 中至少出现这么多次才缓存，和 UsageTrackingQueryCachingPolicy 一样用 ring buffer 记录 */
+    private static final int MIN_FREQUENCY = 2;
+    private static final int HISTORY_SIZE = 256;
+    /** 每个缓存条目的对象开销估算，query 没有实现 {@link Accountable} 时的内存估算(和 LRUQueryCache 一致) */
+    private static final long ENTRY_OVERHEAD = 128;
+    private static final long QUERY_DEFAULT_RAM_BYTES_USED = 1024;
+    /** 填充时 collector 中每个 hit 的内存估算(ScoreDoc 对象以及优先队列中的引用) */
+    private static final long FILL_BYTES_PER_HIT = 32 + RamUsageEstimator.NUM_BYTES_OBJECT_REF;
+
+    private final Cache<Key, Entry> cache;
+    private final ResultCacheBreaker breaker;
+    private final int topN;
+    private final FrequencyTrackingRingBuffer recentlyUsed = new FrequencyTrackingRingBuffer(HISTORY_SIZE, 0);
+    /** 已经注册了 closed listener 的 reader */
+    private final Set<IndexReader.CacheKey> registeredReaders = ConcurrentCollections.newConcurrentSet();
+
+    public TopDocsCache(Settings settings) {
+        this.topN = TOP_N_SETTING.get(settings);
+        this.breaker = new ResultCacheBreaker(BREAKER_LIMIT_SETTING.get(settings).getBytes());
+        // 条目被淘汰、替换或者清除时都会回调，在这里释放 breaker 中的内存
+        this.cache = CacheBuilder.<Key, Entry>builder()
+                .setMaximumWeight(CACHE_SIZE_SETTING.get(settings).getBytes())
+                .weigher((key, entry) -> entry.ramBytes)
+                .removalListener(notification -> breaker.addWithoutBreaking(-notification.getValue().ramBytes))
+                .build();
+    }
+
+    /**
+     * 包装 query 的 weight：缓存命中并且可以使用时返回从缓存中取 doc 的 weight；没有命中并且是窗口内的顶层 top-k 查询时返回第一次收集时填充缓存的 weight。
+     * 不能使用缓存的场景(不需要打分、reader 不支持缓存等)直接返回 inner，concurrent 不为 null 时仍然可以并行搜索
+     *
+     * @param stepWeights inner 中每个 position 的阶梯权重，和 query 一起决定了每个 doc 的 score
+     * @param concurrent  填充缓存时并行收集 segment，可以为 null
+     */
+    Weight wrap(IndexSearcher searcher, Query query, Weight inner, int[] stepWeights, ScoreMode scoreMode, float boost,
+                @Nullable ConcurrentLeafSearch concurrent) {
+        if (scoreMode.needsScores() == false) {
+            return inner;
+        }
+        final IndexReader reader = searcher.getIndexReader();
+        final SearchWindow window = scoreMode == ScoreMode.TOP_SCORES ? SearchWindow.of(query) : null;
+        final IndexReader.CacheHelper cacheHelper = reader.getReaderCacheHelper();
+        if (cacheHelper == null) {
+            return concurrent == null ? inner : concurrent.wrap(searcher, query, inner, scoreMode);
+        }
+        final Key key = new Key(cacheHelper.getKey(), query, stepWeights, boost);
+        final Entry entry = cache.get(key);
+        if (entry != null && (entry.complete || (window != null && window.hits() <= entry.size))) {
+            return new CachedWeight(query, inner, reader, entry);
+        }
+        if (entry == null && window != null && window.hits() <= topN && admit(key)) {
+            final ConcurrentLeafSearch parallel = concurrent != null && concurrent.applies(reader) ? concurrent : null;
+            return new CachedWeight(query, inner, reader, () -> fill(searcher, key, cacheHelper, inner, parallel));
+        }
+        return concurrent == null ? inner : concurrent.wrap(searcher, query, inner, scoreMode);
+    }
+
+    /**
+     * 第一次收集时用 concurrent 并行收集前 hits 个结果的 weight，不写入缓存，只能用于 {@link SearchWindow} 中的顶层 query
+     */
+    static Weight collectOnce(IndexSearcher searcher, Query query, Weight inner, ConcurrentLeafSearch concurrent, int hits) {
+        final IndexReader reader = searcher.getIndexReader();
+        return new CachedWeight(query, inner, reader, () -> new Entry(reader.leaves(), concurrent.search(searcher, inner, hits), 0L));
+    }
+
+    private boolean admit(Key key) {
+        synchronized (recentlyUsed) {
+            recentlyUsed.add(key.hashCode());
+            return recentlyUsed.frequency(key.hashCode()) >= MIN_FREQUENCY;
+        }
+    }
+
+    /**
+     * 在所有 segment 上收集 top-N 并写入缓存，breaker 超过上限时返回 null
+     *
+     * @param concurrent 不为 null 时每个 slice 并行收集
+     */
+    private Entry fill(IndexSearcher searcher, Key key, IndexReader.CacheHelper cacheHelper, Weight inner,
+                       @Nullable ConcurrentLeafSearch concurrent) throws IOException {
+        final List<LeafReaderContext> leaves = searcher.getIndexReader().leaves();
+        // 并行时每个 slice 都有自己的 collector
+        final int collectors = concurrent == null ? 1 : ConcurrentLeafSearch.slices(leaves).size();
+        final long collectorBytes = FILL_BYTES_PER_HIT * topN * collectors;
+        try {
+            breaker.addEstimateBytesAndMaybeBreak(collectorBytes, "collector of " + key.query);
+        } catch (CircuitBreakingException e) {
+            return null;
+        }
+        final TopDocs topDocs;
+        try {
+            topDocs = concurrent == null ? ConcurrentLeafSearch.collect(searcher, leaves, inner, topN)
+                    : concurrent.search(searcher, inner, topN);
+        } finally {
+            breaker.addWithoutBreaking(-collectorBytes);
+        }
+        final Entry entry = new Entry(leaves, topDocs, keyRamBytes(key));
+        try {
+            breaker.addEstimateBytesAndMaybeBreak(entry.ramBytes, key.query.toString());
+        } catch (CircuitBreakingException e) {
+            // 不缓存，但是这次查询仍然可以使用已经收集好的结果
+            return entry;
+        }
+        cache.put(key, entry);
+        if (registeredReaders.add(key.readerKey)) {
+            cacheHelper.addClosedListener(this::onReaderClosed);
+        }
+        return entry;
+    }
+
+    private static long keyRamBytes(Key key) {
+        return RamUsageEstimator.sizeOf(key.stepWeights)
+                + (key.query instanceof Accountable ? ((Accountable) key.query).ramBytesUsed() : QUERY_DEFAULT_RAM_BYTES_USED);
+    }
+
+    private void onReaderClosed(IndexReader.CacheKey readerKey) {
+        registeredReaders.remove(readerKey);
+        for (Iterator<Key> iterator = cache.keys().iterator(); iterator.hasNext(); ) {
+            if (iterator.next().readerKey == readerKey) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /** 命中、未命中以及淘汰次数 */
+    public Cache.CacheStats stats() {
+        return cache.stats();
+    }
+
+    public int count() {
+        return cache.count();
+    }
+
+    /** 缓存条目估算的内存大小 */
+    public long ramBytesUsed() {
+        return cache.weight();
+    }
+
+    public CircuitBreaker breaker() {
+        return breaker;
+    }
+
+    public void clear() {
+        cache.invalidateAll();
+    }
+
+    /**
+     * 一个 shard 上 query 的 top-N 结果，按 segment 拆分，每个 segment 内按 doc id 升序
+     */
+    static final class Entry {
+        /** 下标为 segment 的 ord */
+        final int[][] docs;
+        final float[][] scores;
+        final float[] leafMaxScores;
+        /** 缓存的 doc 数 */
+        final int size;
+        /** 命中的 doc 总数不超过 N，缓存中就是全部命中的 doc */
+        final boolean complete;
+        final long ramBytes;
+
+        /**
+         * @param keyRamBytes 缓存 key 的内存估算，不写入缓存时为 0
+         */
+        Entry(List<LeafReaderContext> leaves, TopDocs topDocs, long keyRamBytes) {
+            final int[] counts = new int[leaves.size()];
+            for (ScoreDoc hit : topDocs.scoreDocs) {
+                counts[ReaderUtil.subIndex(hit.doc, leaves)]++;
+            }
+            this.docs = new int[leaves.size()][];
+            this.scores = new float[leaves.size()][];
+            this.leafMaxScores = new float[leaves.size()];
+            for (int i = 0; i < counts.length; i++) {
+                docs[i] = new int[counts[i]];
+                scores[i] = new float[counts[i]];
+                leafMaxScores[i] = Float.NEGATIVE_INFINITY;
+            }
+            // 先按 doc id 排序，每个 segment 内自然有序
+            ScoreDoc[] hits = topDocs.scoreDocs.clone();
+            Arrays.sort(hits, (a, b) -> Integer.compare(a.doc, b.doc));
+            Arrays.fill(counts, 0);
+            for (ScoreDoc hit : hits) {
+                final int leaf = ReaderUtil.subIndex(hit.doc, leaves);
+                final int upto = counts[leaf]++;
+                docs[leaf][upto] = hit.doc - leaves.get(leaf).docBase;
+                scores[leaf][upto] = hit.score;
+                leafMaxScores[leaf] = Math.max(leafMaxScores[leaf], hit.score);
+            }
+            this.size = hits.length;
+            this.complete = topDocs.totalHits.relation == TotalHits.Relation.EQUAL_TO && topDocs.totalHits.value == hits.length;
+            long ramBytes = ENTRY_OVERHEAD + keyRamBytes + 2 * RamUsageEstimator.shallowSizeOf(docs) + RamUsageEstimator.sizeOf(leafMaxScores);
+            for (int i = 0; i < docs.length; i++) {
+                ramBytes += RamUsageEstimator.sizeOf(docs[i]) + RamUsageEstimator.sizeOf(scores[i]);
+            }
+            this.ramBytes = ramBytes;
+        }
+    }
+
+    private static final class Key {
+        final IndexReader.CacheKey readerKey;
+        final Query query;
+        final int[] stepWeights;
+        final float boost;
+
+        Key(IndexReader.CacheKey readerKey, Query query, int[] stepWeights, float boost) {
+            this.readerKey = readerKey;
+            this.query = query;
+            this.stepWeights = stepWeights;
+            this.boost = boost;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            Key key = (Key) o;
+            return readerKey == key.readerKey &&
+                    Float.compare(key.boost, boost) == 0 &&
+                    Arrays.equals(stepWeights, key.stepWeights) &&
+                    query.equals(key.query);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(readerKey, query, Arrays.hashCode(stepWeights), boost);
+        }
+    }
+
+    /**
+     * 使用缓存结果的 weight，只对填充缓存时的 reader 生效，只有 bulkScorer 遍历缓存的 doc；scorer、explain 等仍然由 inner 完成。
+     * 由 loader 收集结果时，第一次调用 bulkScorer(搜索时收集 doc)才开始收集；loader 返回 null(breaker 超过上限)时全部由 inner 完成
+     */
+    private static final class CachedWeight extends Weight {
+        private final Weight inner;
+        private final IndexReader reader;
+        private CheckedSupplier<Entry, IOException> loader;
+        private Entry entry;
+
+        CachedWeight(Query query, Weight inner, IndexReader reader, Entry entry) {
+            super(query);
+            this.inner = inner;
+            this.reader = reader;
+            this.entry = entry;
+        }
+
+        CachedWeight(Query query, Weight inner, IndexReader reader, CheckedSupplier<Entry, IOException> loader) {
+            super(query);
+            this.inner = inner;
+            this.reader = reader;
+            this.loader = loader;
+        }
+
+        /** 第一次调用时由 loader 收集结果，breaker 超过上限时返回 null */
+        private synchronized Entry entry() throws IOException {
+            if (loader != null) {
+                entry = loader.get();
+                loader = null;
+            }
+            return entry;
+        }
+
+        @Override
+        public BulkScorer bulkScorer(LeafReaderContext context) throws IOException {
+            if (ReaderUtil.getTopLevelContext(context).reader() != reader) {
+                return inner.bulkScorer(context);
+            }
+            final Entry entry = entry();
+            if (entry == null) {
+                return inner.bulkScorer(context);
+            }
+            if (entry.docs[context.ord].length == 0) {
+                return null;
+            }
+            return new DefaultBulkScorer(
+                    new CachedScorer(this, entry.docs[context.ord], entry.scores[context.ord], entry.leafMaxScores[context.ord]));
+        }
+
+        @Override
+        public Scorer scorer(LeafReaderContext context) throws IOException {
+            return inner.scorer(context);
+        }
+
+        @Override
+        @SuppressWarnings("deprecation")
+        public void extractTerms(Set<Term> terms) {
+            inner.extractTerms(terms);
+        }
+
+        @Override
+        public Matches matches(LeafReaderContext context, int doc) throws IOException {
+            return inner.matches(context, doc);
+        }
+
+        @Override
+        public Explanation explain(LeafReaderContext context, int doc) throws IOException {
+            return inner.explain(context, doc);
+        }
+
+        @Override
+        public boolean isCacheable(LeafReaderContext ctx) {
+            return false;
+        }
+    }
+
+    /**
+     * 按 doc id 升序遍历一个 segment 中缓存的 doc，跳过 score 低于 min competitive score 的 doc
+     */
+    private static final class CachedScorer extends Scorer {
+        private final int[] docs;
+        private final float[] scores;
+        private final float maxScore;
+        private float minCompetitiveScore;
+        private int upto = -1;
+        private int doc = -1;
+
+        CachedScorer(Weight weight, int[] docs, float[] scores, float maxScore) {
+            super(weight);
+            this.docs = docs;
+            this.scores = scores;
+            this.maxScore = maxScore;
+        }
+
+        private final DocIdSetIterator iterator = new DocIdSetIterator() {
+            @Override
+            public int docID() {
+                return doc;
+            }
+
+            @Override
+            public int nextDoc() {
+                return advance(doc + 1);
+            }
+
+            @Override
+            public int advance(int target) {
+                int i = upto + 1;
+                while (i < docs.length && (docs[i] < target || scores[i] < minCompetitiveScore)) {
+                    i++;
+                }
+                upto = i;
+                return doc = i == docs.length ? NO_MORE_DOCS : docs[i];
+            }
+
+            @Override
+            public long cost() {
+                return docs.length;
+            }
+        };
+
+        @Override
+        public DocIdSetIterator iterator() {
+            return iterator;
+        }
+
+        @Override
+        public int docID() {
+            return doc;
+        }
+
+        @Override
+        public float score() {
+            return scores[upto];
+        }
+
+        @Override
+        public float getMaxScore(int upTo) {
+            return maxScore;
+        }
+
+        @Override
+        public void setMinCompetitiveScore(float minScore) {
+            minCompetitiveScore = minScore;
+        }
+    }
+
+    /**
+     * 统计缓存占用内存的 circuit breaker，超过上限时抛出 {@link CircuitBreakingException}，由调用方放弃缓存
+     */
+    private static final class ResultCacheBreaker implements CircuitBreaker {
+        private final long limit;
+        private final AtomicLong used = new AtomicLong();
+        private final AtomicLong trippedCount = new AtomicLong();
+
+        ResultCacheBreaker(long limit) {
+            this.limit = limit;
+        }
+
+        @Override
+        public void circuitBreak(String fieldName, long bytesNeeded) {
+            trippedCount.incrementAndGet();
+            throw new CircuitBreakingException("[" + getName() + "] Data too large, data for [" + fieldName + "] would be ["
+                    + bytesNeeded + "/" + new ByteSizeValue(bytesNeeded) + "], which is larger than the limit of ["
+                    + limit + "/" + new ByteSizeValue(limit) + "]", bytesNeeded, limit, getDurability());
+        }
+
+        @Override
+        public double addEstimateBytesAndMaybeBreak(long bytes, String label) throws CircuitBreakingException {
+            long current;
+            long newUsed;
+            do {
+                current = used.get();
+                newUsed = current + bytes;
+                if (newUsed > limit) {
+                    circuitBreak(label, newUsed);
+                }
+            } while (used.compareAndSet(current, newUsed) == false);
+            return newUsed;
+        }
+
+        @Override
+        public long addWithoutBreaking(long bytes) {
+            return used.addAndGet(bytes);
+        }
+
+        @Override
+        public long getUsed() {
+            return used.get();
+        }
+
+        @Override
+        public long getLimit() {
+            return limit;
+        }
+
+        @Override
+        public double getOverhead() {
+            return 1.0;
+        }
+
+        @Override
+        public long getTrippedCount() {
+            return trippedCount.get();
+        }
+
+        @Override
+        public String getName() {
+            return "multistep_score_result_cache";
+        }
+
+        @Override
+        public Durability getDurability() {
+            return Durability.TRANSIENT;
+        }
+    }
+}
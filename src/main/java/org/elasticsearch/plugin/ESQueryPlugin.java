@@ -14,21 +14,168 @@
 
 package org.elasticsearch.plugin;
 
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.node.DiscoveryNodes;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.io.stream.NamedWriteableRegistry;
+import org.elasticsearch.common.settings.ClusterSettings;
+import org.elasticsearch.common.settings.IndexScopedSettings;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.settings.SettingsFilter;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.env.NodeEnvironment;
+import org.elasticsearch.index.IndexModule;
+import org.elasticsearch.index.analysis.TokenFilterFactory;
+import org.elasticsearch.index.mapper.MetadataFieldMapper;
+import org.elasticsearch.index.shard.IndexEventListener;
+import org.elasticsearch.index.shard.IndexShard;
+import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.mysynonym.AnalysisCache;
+import org.elasticsearch.mysynonym.MultiMultistepScoreBuilder;
 import org.elasticsearch.mysynonym.MultistepScoreBuilder;
+import org.elasticsearch.myterm.ConcurrentLeafSearch;
+import org.elasticsearch.myterm.MultistepMetrics;
+import org.elasticsearch.myterm.MyTermQueryBuilder;
+import org.elasticsearch.myterm.SearchWindow;
+import org.elasticsearch.myterm.StepHistograms;
+import org.elasticsearch.myterm.TermStepCache;
+import org.elasticsearch.myterm.TopDocsCache;
+import org.elasticsearch.indices.analysis.AnalysisModule;
+import org.elasticsearch.plugins.ActionPlugin;
+import org.elasticsearch.plugins.AnalysisPlugin;
+import org.elasticsearch.plugins.MapperPlugin;
 import org.elasticsearch.plugins.Plugin;
 import org.elasticsearch.plugins.SearchPlugin;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestHandler;
+import org.elasticsearch.script.ScriptService;
+import org.elasticsearch.similarity.StepTfFieldMapper;
+import org.elasticsearch.similarity.StepTfTokenFilterFactory;
+import org.elasticsearch.threadpool.ExecutorBuilder;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.watcher.ResourceWatcherService;
 
+import java.io.IOException;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
 
-public class ESQueryPlugin extends Plugin implements SearchPlugin {
+public class ESQueryPlugin extends Plugin implements SearchPlugin, ActionPlugin, AnalysisPlugin, MapperPlugin {
+
+    private final Settings settings;
+    /** 节点级别共享的组件，createComponents 之前为 null */
+    private volatile NodeComponents components;
+
+    public ESQueryPlugin(Settings settings) {
+        this.settings = settings;
+    }
+
+    /** 节点级别共享的组件，插件组件创建之前或者插件关闭之后返回 null */
+    NodeComponents components() {
+        return components;
+    }
 
     @Override
     public List<QuerySpec<?>> getQueries() {
 //        return singletonList(new QuerySpec<>(PositionMatchQuery.NAME, PositionMatchQueryBuilder::new, PositionMatchQueryBuilder::fromXContent));
         return Arrays.asList(
-                new QuerySpec<>(MultistepScoreBuilder.NAME, MultistepScoreBuilder::new, MultistepScoreBuilder::fromXContent)
+                // SearchModule 在 createComponents 之前注册 query，所以传入 supplier，在 toQuery 时才获取组件
+                new QuerySpec<>(MultistepScoreBuilder.NAME, in -> new MultistepScoreBuilder(in).components(this::components),
+                        parser -> MultistepScoreBuilder.fromXContent(parser).components(this::components)),
+                new QuerySpec<>(MultiMultistepScoreBuilder.NAME, in -> new MultiMultistepScoreBuilder(in).components(this::components),
+                        parser -> MultiMultistepScoreBuilder.fromXContent(parser).components(this::components)),
+                new QuerySpec<>(MyTermQueryBuilder.NAME, MyTermQueryBuilder::new, MyTermQueryBuilder::fromXContent)
+                );
+    }
+
+    @Override
+    public List<ExecutorBuilder<?>> getExecutorBuilders(Settings settings) {
+        return Collections.singletonList(ConcurrentLeafSearch.executorBuilder(settings));
+    }
+
+    @Override
+    public Collection<Object> createComponents(Client client, ClusterService clusterService, ThreadPool threadPool,
+                                               ResourceWatcherService resourceWatcherService, ScriptService scriptService,
+                                               NamedXContentRegistry xContentRegistry, Environment environment,
+                                               NodeEnvironment nodeEnvironment, NamedWriteableRegistry namedWriteableRegistry) {
+        components = new NodeComponents(settings, threadPool.executor(ConcurrentLeafSearch.THREAD_POOL_NAME));
+        // 作为插件组件返回，TransportMultistepStatsAction 通过注入获取
+        return Collections.singletonList(components);
+    }
+
+    @Override
+    public Map<String, AnalysisModule.AnalysisProvider<TokenFilterFactory>> getTokenFilters() {
+        // avgdl 没有默认值，只能在 index settings 中定义之后使用
+        return Collections.singletonMap(StepTfTokenFilterFactory.NAME,
+                AnalysisPlugin.requiresAnalysisSettings(StepTfTokenFilterFactory::new));
+    }
+
+    @Override
+    public Map<String, MetadataFieldMapper.TypeParser> getMetadataMappers() {
+        // multistep_tf 字段不能有多个值
+        return Collections.singletonMap(StepTfFieldMapper.NAME, new StepTfFieldMapper.TypeParser());
+    }
+
+    @Override
+    public List<Setting<?>> getSettings() {
+        return Arrays.asList(
+                TermStepCache.CACHE_SIZE_SETTING,
+                AnalysisCache.CACHE_SIZE_SETTING,
+                AnalysisCache.CACHE_EXPIRE_SETTING,
+                TopDocsCache.CACHE_SIZE_SETTING,
+                TopDocsCache.BREAKER_LIMIT_SETTING,
+                TopDocsCache.TOP_N_SETTING,
+                ConcurrentLeafSearch.TOP_N_SETTING,
+                ConcurrentLeafSearch.MIN_DOCS_SETTING,
+                StepHistograms.ENABLED_SETTING
                 );
     }
 
+    @Override
+    public void onIndexModule(IndexModule indexModule) {
+        // 结果缓存和并行搜索需要知道顶层 query 以及 from + size
+        indexModule.addSearchOperationListener(SearchWindow.LISTENER);
+        indexModule.addIndexEventListener(new IndexEventListener() {
+            @Override
+            public void afterIndexShardClosed(ShardId shardId, IndexShard indexShard, Settings indexSettings) {
+                // shard 关闭之后不再保留它的阶梯得分分布
+                NodeComponents components = ESQueryPlugin.this.components;
+                MultistepMetrics metrics = components == null ? null : components.metrics();
+                if (metrics != null && metrics.stepHistograms() != null) {
+                    metrics.stepHistograms().removeShard(shardId);
+                }
+            }
+        });
+    }
+
+    @Override
+    public List<ActionHandler<? extends ActionRequest, ? extends ActionResponse>> getActions() {
+        return Collections.singletonList(new ActionHandler<>(MultistepStatsAction.INSTANCE, TransportMultistepStatsAction.class));
+    }
+
+    @Override
+    public List<RestHandler> getRestHandlers(Settings settings, RestController restController, ClusterSettings clusterSettings,
+                                             IndexScopedSettings indexScopedSettings, SettingsFilter settingsFilter,
+                                             IndexNameExpressionResolver indexNameExpressionResolver,
+                                             Supplier<DiscoveryNodes> nodesInCluster) {
+        return Collections.singletonList(new RestMultistepStatsAction(settings, restController));
+    }
+
+    @Override
+    public void close() throws IOException {
+        NodeComponents components = this.components;
+        if (components != null) {
+            components.close();
+        }
+        this.components = null;
+    }
+
 }
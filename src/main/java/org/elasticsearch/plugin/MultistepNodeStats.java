@@ -0,0 +1,217 @@
+package org.elasticsearch.plugin;
+
+import org.elasticsearch.action.support.nodes.BaseNodeResponse;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.common.Nullable;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Writeable;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.xcontent.ToXContentFragment;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.indices.breaker.CircuitBreakerStats;
+import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.myterm.MultistepMetrics;
+import org.elasticsearch.myterm.StepHistograms;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * @Classname MultistepNodeStats
+ * @Description 一个节点上的 multistep_score 运行指标，以及 term、分词、top-N 结果三个缓存的命中和淘汰统计，没有启用的缓存不输出
+ */
+public class MultistepNodeStats extends BaseNodeResponse implements ToXContentFragment {
+
+    private MultistepMetrics.Stats metrics;
+    @Nullable
+    private CacheStats termCache;
+    @Nullable
+    private CacheStats analysisCache;
+    @Nullable
+    private CacheStats resultCache;
+    @Nullable
+    private CircuitBreakerStats resultCacheBreaker;
+    /** 每个 shard 上 (field, base) 的阶梯得分分布，没有请求时为 null */
+    @Nullable
+    private List<StepHistograms.Stats> stepScores;
+
+    MultistepNodeStats() {
+    }
+
+    public MultistepNodeStats(DiscoveryNode node, MultistepMetrics.Stats metrics, @Nullable CacheStats termCache,
+                              @Nullable CacheStats analysisCache, @Nullable CacheStats resultCache,
+                              @Nullable CircuitBreakerStats resultCacheBreaker, @Nullable List<StepHistograms.Stats> stepScores) {
+        super(node);
+        this.metrics = metrics;
+        this.termCache = termCache;
+        this.analysisCache = analysisCache;
+        this.resultCache = resultCache;
+        this.resultCacheBreaker = resultCacheBreaker;
+        this.stepScores = stepScores;
+    }
+
+    public static MultistepNodeStats readNodeStats(StreamInput in) throws IOException {
+        MultistepNodeStats stats = new MultistepNodeStats();
+        stats.readFrom(in);
+        return stats;
+    }
+
+    public MultistepMetrics.Stats getMetrics() {
+        return metrics;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        metrics = new MultistepMetrics.Stats(in);
+        termCache = in.readOptionalWriteable(CacheStats::new);
+        analysisCache = in.readOptionalWriteable(CacheStats::new);
+        resultCache = in.readOptionalWriteable(CacheStats::new);
+        resultCacheBreaker = in.readOptionalWriteable(CircuitBreakerStats::new);
+        stepScores = in.readBoolean() ? in.readList(StepHistograms.Stats::new) : null;
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        metrics.writeTo(out);
+        out.writeOptionalWriteable(termCache);
+        out.writeOptionalWriteable(analysisCache);
+        out.writeOptionalWriteable(resultCache);
+        out.writeOptionalWriteable(resultCacheBreaker);
+        out.writeBoolean(stepScores != null);
+        if (stepScores != null) {
+            out.writeList(stepScores);
+        }
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.field("name", getNode().getName());
+        builder.field("host", getNode().getHostName());
+        metrics.toXContent(builder, params);
+        if (termCache != null) {
+            builder.startObject("term_cache");
+            termCache.toXContent(builder, params);
+            builder.endObject();
+        }
+        if (analysisCache != null) {
+            builder.startObject("analysis_cache");
+            analysisCache.toXContent(builder, params);
+            builder.endObject();
+        }
+        if (resultCache != null) {
+            builder.startObject("result_cache");
+            resultCache.toXContent(builder, params);
+            if (resultCacheBreaker != null) {
+                builder.startObject("breaker");
+                builder.humanReadableField("limit_size_in_bytes", "limit_size", new ByteSizeValue(resultCacheBreaker.getLimit()));
+                builder.humanReadableField("estimated_size_in_bytes", "estimated_size",
+                        new ByteSizeValue(resultCacheBreaker.getEstimated()));
+                builder.field("tripped", resultCacheBreaker.getTrippedCount());
+                builder.endObject();
+            }
+            builder.endObject();
+        }
+        if (stepScores != null) {
+            stepScoresToXContent(builder, params);
+        }
+        return builder;
+    }
+
+    /** 按照 index -> shard -> field -> base 分组输出 */
+    private void stepScoresToXContent(XContentBuilder builder, Params params) throws IOException {
+        List<StepHistograms.Stats> sorted = new ArrayList<>(stepScores);
+        sorted.sort(Comparator.comparing((StepHistograms.Stats s) -> s.getShardId().getIndexName())
+                .thenComparingInt(s -> s.getShardId().id())
+                .thenComparing(StepHistograms.Stats::getField)
+                .thenComparingDouble(StepHistograms.Stats::getBase));
+        builder.startObject("step_scores");
+        ShardId shardId = null;
+        String field = null;
+        for (StepHistograms.Stats stats : sorted) {
+            final boolean newIndex = shardId == null || shardId.getIndexName().equals(stats.getShardId().getIndexName()) == false;
+            final boolean newShard = newIndex || shardId.id() != stats.getShardId().id();
+            final boolean newField = newShard || field.equals(stats.getField()) == false;
+            if (newField && field != null) {
+                builder.endObject();
+            }
+            if (newShard && shardId != null) {
+                builder.endObject();
+            }
+            if (newIndex && shardId != null) {
+                builder.endObject();
+            }
+            if (newIndex) {
+                builder.startObject(stats.getShardId().getIndexName());
+            }
+            if (newShard) {
+                builder.startObject(Integer.toString(stats.getShardId().id()));
+            }
+            if (newField) {
+                builder.startObject(stats.getField());
+            }
+            shardId = stats.getShardId();
+            field = stats.getField();
+            builder.startObject(Double.toString(stats.getBase()));
+            stats.toXContent(builder, params);
+            builder.endObject();
+        }
+        if (shardId != null) {
+            builder.endObject().endObject().endObject();
+        }
+        builder.endObject();
+    }
+
+    /**
+     * 一个缓存的条目数、估算内存(未知时为 -1)以及命中、未命中、淘汰次数
+     */
+    public static final class CacheStats implements Writeable, ToXContentFragment {
+        private final long count;
+        private final long memorySizeInBytes;
+        private final long hits;
+        private final long misses;
+        private final long evictions;
+
+        public CacheStats(long count, long memorySizeInBytes, Cache.CacheStats stats) {
+            this.count = count;
+            this.memorySizeInBytes = memorySizeInBytes;
+            this.hits = stats.getHits();
+            this.misses = stats.getMisses();
+            this.evictions = stats.getEvictions();
+        }
+
+        public CacheStats(StreamInput in) throws IOException {
+            count = in.readVLong();
+            memorySizeInBytes = in.readLong();
+            hits = in.readVLong();
+            misses = in.readVLong();
+            evictions = in.readVLong();
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            out.writeVLong(count);
+            out.writeLong(memorySizeInBytes);
+            out.writeVLong(hits);
+            out.writeVLong(misses);
+            out.writeVLong(evictions);
+        }
+
+        @Override
+        public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+            builder.field("count", count);
+            if (memorySizeInBytes >= 0) {
+                builder.humanReadableField("memory_size_in_bytes", "memory_size", new ByteSizeValue(memorySizeInBytes));
+            }
+            builder.field("hit_count", hits);
+            builder.field("miss_count", misses);
+            builder.field("evictions", evictions);
+            return builder;
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package org.elasticsearch.plugin;
+
+import org.elasticsearch.action.StreamableResponseActionType;
+
+/**
+ * @Classname MultistepStatsAction
+ * @Description 获取各个节点上 multistep_score 的运行指标以及缓存统计，和 _nodes/stats 一样可以指定节点
+ */
+public class MultistepStatsAction extends StreamableResponseActionType<MultistepStatsResponse> {
+
+    public static final MultistepStatsAction INSTANCE = new MultistepStatsAction();
+    public static final String NAME = "cluster:monitor/multistep_score/stats";
+
+    private MultistepStatsAction() {
+        super(NAME);
+    }
+
+    @Override
+    public MultistepStatsResponse newResponse() {
+        return new MultistepStatsResponse();
+    }
+}
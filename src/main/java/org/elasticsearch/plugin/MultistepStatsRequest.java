@@ -0,0 +1,45 @@
+package org.elasticsearch.plugin;
+
+import org.elasticsearch.action.support.nodes.BaseNodesRequest;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+
+import java.io.IOException;
+
+/**
+ * @Classname MultistepStatsRequest
+ * @Description {@link MultistepStatsAction} 的请求，节点 id 的写法和 _nodes/stats 一致，为空时表示所有节点
+ */
+public class MultistepStatsRequest extends BaseNodesRequest<MultistepStatsRequest> {
+
+    /** 是否返回每个 shard 的阶梯得分分布，shard 很多时输出较大，默认不返回 */
+    private boolean stepScores;
+
+    public MultistepStatsRequest() {
+    }
+
+    public MultistepStatsRequest(String... nodesIds) {
+        super(nodesIds);
+    }
+
+    public boolean stepScores() {
+        return stepScores;
+    }
+
+    public MultistepStatsRequest stepScores(boolean stepScores) {
+        this.stepScores = stepScores;
+        return this;
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        stepScores = in.readBoolean();
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeBoolean(stepScores);
+    }
+}
@@ -0,0 +1,48 @@
+package org.elasticsearch.plugin;
+
+import org.elasticsearch.action.FailedNodeException;
+import org.elasticsearch.action.support.nodes.BaseNodesResponse;
+import org.elasticsearch.cluster.ClusterName;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.ToXContentFragment;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * @Classname MultistepStatsResponse
+ * @Description 各个节点的 {@link MultistepNodeStats}，输出格式和 _nodes/stats 一致，按节点 id 分组
+ */
+public class MultistepStatsResponse extends BaseNodesResponse<MultistepNodeStats> implements ToXContentFragment {
+
+    MultistepStatsResponse() {
+    }
+
+    public MultistepStatsResponse(ClusterName clusterName, List<MultistepNodeStats> nodes, List<FailedNodeException> failures) {
+        super(clusterName, nodes, failures);
+    }
+
+    @Override
+    protected List<MultistepNodeStats> readNodesFrom(StreamInput in) throws IOException {
+        return in.readList(MultistepNodeStats::readNodeStats);
+    }
+
+    @Override
+    protected void writeNodesTo(StreamOutput out, List<MultistepNodeStats> nodes) throws IOException {
+        out.writeList(nodes);
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject("nodes");
+        for (MultistepNodeStats node : getNodes()) {
+            builder.startObject(node.getNode().getId());
+            node.toXContent(builder, params);
+            builder.endObject();
+        }
+        builder.endObject();
+        return builder;
+    }
+}
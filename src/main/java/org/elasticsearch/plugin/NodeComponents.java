@@ -0,0 +1,71 @@
+package org.elasticsearch.plugin;
+
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.mysynonym.AnalysisCache;
+import org.elasticsearch.myterm.ConcurrentLeafSearch;
+import org.elasticsearch.myterm.MultistepMetrics;
+import org.elasticsearch.myterm.StepHistograms;
+import org.elasticsearch.myterm.TermStepCache;
+import org.elasticsearch.myterm.TopDocsCache;
+
+import java.util.concurrent.Executor;
+
+/**
+ * @Classname NodeComponents
+ * @Description 节点级别共享的组件，在 {@link ESQueryPlugin#createComponents} 中创建，由插件实例持有。
+ * query builder 是通过 StreamInput / XContentParser 构造的，插件注册 reader 和 parser 时把获取组件的 supplier 传给 builder；
+ * 作为插件组件返回之后也可以注入到 transport action 中。
+ */
+public final class NodeComponents {
+
+    private final TermStepCache termStepCache;
+    private final AnalysisCache analysisCache;
+    private final TopDocsCache resultCache;
+    private final MultistepMetrics metrics;
+    private final ConcurrentLeafSearch concurrentSearch;
+
+    NodeComponents(Settings settings, Executor executor) {
+        termStepCache = TermStepCache.CACHE_SIZE_SETTING.get(settings) > 0 ? new TermStepCache(settings) : null;
+        analysisCache = AnalysisCache.CACHE_SIZE_SETTING.get(settings).getBytes() > 0 ? new AnalysisCache(settings) : null;
+        resultCache = TopDocsCache.CACHE_SIZE_SETTING.get(settings).getBytes() > 0 ? new TopDocsCache(settings) : null;
+        metrics = new MultistepMetrics(StepHistograms.ENABLED_SETTING.get(settings) ? new StepHistograms() : null);
+        concurrentSearch = new ConcurrentLeafSearch(settings, executor);
+    }
+
+    void close() {
+        if (termStepCache != null) {
+            termStepCache.clear();
+        }
+        if (analysisCache != null) {
+            analysisCache.clear();
+        }
+        if (resultCache != null) {
+            resultCache.clear();
+        }
+    }
+
+    /** 节点级别的分词结果缓存，没有启用时返回 null */
+    public AnalysisCache analysisCache() {
+        return analysisCache;
+    }
+
+    /** shard 级别的 top-N 结果缓存(节点内共享一个实例)，没有启用时返回 null */
+    public TopDocsCache resultCache() {
+        return resultCache;
+    }
+
+    /** 节点级别的运行指标 */
+    public MultistepMetrics metrics() {
+        return metrics;
+    }
+
+    /** 节点级别的并行 segment 搜索 */
+    public ConcurrentLeafSearch concurrentSearch() {
+        return concurrentSearch;
+    }
+
+    /** 节点级别的 term 缓存，没有启用时返回 null */
+    public TermStepCache termStepCache() {
+        return termStepCache;
+    }
+}
@@ -0,0 +1,41 @@
+package org.elasticsearch.plugin;
+
+import org.elasticsearch.client.node.NodeClient;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.action.RestActions;
+
+import java.io.IOException;
+
+import static org.elasticsearch.rest.RestRequest.Method.GET;
+
+/**
+ * @Classname RestMultistepStatsAction
+ * @Description GET _nodes/multistep_score/stats 以及 GET _nodes/{nodeId}/multistep_score/stats，
+ * step_scores=true 时同时返回每个 shard 的阶梯得分分布
+ */
+public class RestMultistepStatsAction extends BaseRestHandler {
+
+    public RestMultistepStatsAction(Settings settings, RestController controller) {
+        super(settings);
+        controller.registerHandler(GET, "/_nodes/multistep_score/stats", this);
+        controller.registerHandler(GET, "/_nodes/{nodeId}/multistep_score/stats", this);
+    }
+
+    @Override
+    public String getName() {
+        return "multistep_score_stats_action";
+    }
+
+    @Override
+    protected RestChannelConsumer prepareRequest(RestRequest request, NodeClient client) throws IOException {
+        final String[] nodesIds = Strings.splitStringByCommaToArray(request.param("nodeId"));
+        final MultistepStatsRequest statsRequest = new MultistepStatsRequest(nodesIds);
+        statsRequest.timeout(request.param("timeout"));
+        statsRequest.stepScores(request.paramAsBoolean("step_scores", false));
+        return channel -> client.execute(MultistepStatsAction.INSTANCE, statsRequest, new RestActions.NodesResponseRestListener<>(channel));
+    }
+}
@@ -0,0 +1,99 @@
+package org.elasticsearch.plugin;
+
+import org.elasticsearch.action.FailedNodeException;
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.nodes.BaseNodeRequest;
+import org.elasticsearch.action.support.nodes.TransportNodesAction;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.indices.breaker.CircuitBreakerStats;
+import org.elasticsearch.mysynonym.AnalysisCache;
+import org.elasticsearch.myterm.MultistepMetrics;
+import org.elasticsearch.myterm.StepHistograms;
+import org.elasticsearch.myterm.TermStepCache;
+import org.elasticsearch.myterm.TopDocsCache;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * @Classname TransportMultistepStatsAction
+ * @Description 在每个节点上读取 {@link NodeComponents} 中的指标和缓存统计，{@link NodeComponents} 由插件创建之后注入
+ */
+public class TransportMultistepStatsAction extends TransportNodesAction<MultistepStatsRequest, MultistepStatsResponse,
+        TransportMultistepStatsAction.NodeRequest, MultistepNodeStats> {
+
+    private final NodeComponents components;
+
+    @Inject
+    public TransportMultistepStatsAction(ThreadPool threadPool, ClusterService clusterService, TransportService transportService,
+                                         ActionFilters actionFilters, NodeComponents components) {
+        super(MultistepStatsAction.NAME, threadPool, clusterService, transportService, actionFilters,
+                MultistepStatsRequest::new, NodeRequest::new, ThreadPool.Names.MANAGEMENT, MultistepNodeStats.class);
+        this.components = components;
+    }
+
+    @Override
+    protected MultistepStatsResponse newResponse(MultistepStatsRequest request, List<MultistepNodeStats> responses,
+                                                 List<FailedNodeException> failures) {
+        return new MultistepStatsResponse(clusterService.getClusterName(), responses, failures);
+    }
+
+    @Override
+    protected NodeRequest newNodeRequest(MultistepStatsRequest request) {
+        return new NodeRequest(request.stepScores());
+    }
+
+    @Override
+    protected MultistepNodeStats newNodeResponse() {
+        return new MultistepNodeStats();
+    }
+
+    @Override
+    protected MultistepNodeStats nodeOperation(NodeRequest request) {
+        final MultistepMetrics metrics = components.metrics();
+        final TermStepCache termCache = components.termStepCache();
+        final AnalysisCache analysisCache = components.analysisCache();
+        final TopDocsCache resultCache = components.resultCache();
+        final CircuitBreaker breaker = resultCache == null ? null : resultCache.breaker();
+        final StepHistograms stepHistograms = metrics.stepHistograms();
+        return new MultistepNodeStats(clusterService.localNode(),
+                metrics.stats(),
+                termCache == null ? null : new MultistepNodeStats.CacheStats(termCache.count(), -1, termCache.stats()),
+                analysisCache == null ? null
+                        : new MultistepNodeStats.CacheStats(analysisCache.count(), analysisCache.weight(), analysisCache.stats()),
+                resultCache == null ? null
+                        : new MultistepNodeStats.CacheStats(resultCache.count(), resultCache.ramBytesUsed(), resultCache.stats()),
+                breaker == null ? null : new CircuitBreakerStats(breaker.getName(), breaker.getLimit(), breaker.getUsed(),
+                        breaker.getOverhead(), breaker.getTrippedCount()),
+                request.stepScores && stepHistograms != null ? stepHistograms.stats() : null);
+    }
+
+    public static class NodeRequest extends BaseNodeRequest {
+        private boolean stepScores;
+
+        public NodeRequest() {
+        }
+
+        NodeRequest(boolean stepScores) {
+            this.stepScores = stepScores;
+        }
+
+        @Override
+        public void readFrom(StreamInput in) throws IOException {
+            super.readFrom(in);
+            stepScores = in.readBoolean();
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            super.writeTo(out);
+            out.writeBoolean(stepScores);
+        }
+    }
+}
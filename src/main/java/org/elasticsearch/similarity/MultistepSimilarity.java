@@ -46,13 +46,88 @@ public class MultistepSimilarity extends Similarity {
         return (float) Math.ceil(bm25_idf/bucket_idf);
     }
 
+    /**
+     * 整数形式的 idf 阶梯权重，即 {@link #idf(long, long)} 的结果，用于融合打分的 query 中预先计算每个 term 的权重
+     */
+    public int stepWeight(CollectionStatistics collectionStats, TermStatistics termStats) {
+        return (int) idf(termStats.docFreq(), collectionStats.docCount());
+    }
+
+    /**
+     * 阶梯型的 tf 的参考实现，{@link StepTf#tf(float, long)} 的结果和它完全一致:
+     * <pre>
+     *   dl = LENGTH_TABLE[encodedNorm &amp; 0xFF]
+     *   if dl &lt; avgdl : return (int) freq
+     *   else          : return Math.round(freq / Math.round(dl / avgdl))
+     * </pre>
+     */
+    public static int stepTf(float freq, long encodedNorm, float avgdl) {
+        // current length of field
+        float doclen = LENGTH_TABLE[((byte) encodedNorm) & 0xFF];
+        return doclen < avgdl ? (int) freq : Math.round(freq / Math.round(doclen / avgdl));
+    }
+
+    /**
+     * 预先计算好 256 个 norm 对应的 tf 除数 Math.round(dl / avgdl)，每个 doc 只需要一次查表和一次整数除法，
+     * 同一个 avgdl 的所有 term、所有 segment 可以共用
+     */
+    public static final class StepTf {
+        /** freq 和除数都小于这个值时，整数四舍五入和 float 除法之后的 Math.round 结果一致 */
+        static final int EXACT_LIMIT = 1 << 22;
+
+        /**
+         * 索引时已经由 {@link StepTfTokenFilter} 计算好阶梯 tf 的字段：freq 为阶梯 tf + 1，不使用 norm
+         */
+        public static final StepTf PRECOMPUTED = new StepTf();
+
+        private final float avgdl;
+        /** dl &lt; avgdl 时为 1，否则为 Math.round(dl / avgdl)；不在 [1, EXACT_LIMIT) 范围内的走参考实现 */
+        private final int[] divisors = new int[256];
+        private final boolean precomputed;
+
+        public StepTf(float avgdl) {
+            this.avgdl = avgdl;
+            this.precomputed = false;
+            for (int i = 0; i < 256; i++) {
+                float doclen = LENGTH_TABLE[i];
+                divisors[i] = doclen < avgdl ? 1 : Math.round(doclen / avgdl);
+            }
+        }
+
+        private StepTf() {
+            this.avgdl = 1f;
+            this.precomputed = true;
+        }
+
+        public float avgdl() {
+            return avgdl;
+        }
+
+        public boolean precomputed() {
+            return precomputed;
+        }
+
+        public int tf(float freq, long encodedNorm) {
+            if (precomputed) {
+                return Math.max(0, (int) freq - 1);
+            }
+            final int divisor = divisors[((byte) encodedNorm) & 0xFF];
+            final int f = (int) freq;
+            if (f == freq && f >= 0 && f < EXACT_LIMIT && divisor >= 1 && divisor < EXACT_LIMIT) {
+                // Math.round(f / d) = floor(f / d + 0.5) = floor((2f + d) / 2d)
+                return (2 * f + divisor) / (2 * divisor);
+            }
+            return stepTf(freq, encodedNorm, avgdl);
+        }
+    }
+
     /** The default implementation returns <code>1</code> */
     protected float scorePayload(int doc, int start, int end, BytesRef payload) {
         return 1;
     }
 
     /** The default implementation computes the average as <code>sumTotalTermFreq / docCount</code> */
-    protected float avgFieldLength(CollectionStatistics collectionStats) {
+    public float avgFieldLength(CollectionStatistics collectionStats) {
         return (float) (collectionStats.sumTotalTermFreq() / (double) collectionStats.docCount());
     }
 
@@ -162,39 +237,55 @@ public class MultistepSimilarity extends Similarity {
         return Explanation.match((float) idf, "idf, sum of:", details);
     }
 
+    /**
+     * 和 {@link #idfExplain} 的值一致，但是不构造 {@link Explanation}：多个 term 时同样先在 double 上累加再转为 float
+     */
+    private float idfValue(CollectionStatistics collectionStats, TermStatistics[] termStats) {
+        if (termStats.length == 1) {
+            return idf(termStats[0].docFreq(), collectionStats.docCount());
+        }
+        double idf = 0d;
+        for (final TermStatistics stat : termStats) {
+            idf += idf(stat.docFreq(), collectionStats.docCount());
+        }
+        return (float) idf;
+    }
+
     @Override
     public final SimScorer scorer(float boost, CollectionStatistics collectionStats, TermStatistics... termStats) {
-        Explanation idf = termStats.length == 1 ? idfExplain(collectionStats, termStats[0]) : idfExplain(collectionStats, termStats);
+        // 正常的搜索只需要 idf 的数值，Explanation 在 explain 时才构造
+        float idf = idfValue(collectionStats, termStats);
         float avgdl = avgFieldLength(collectionStats);
 
-        return new BM25Scorer(boost, idf, avgdl);
+        return new BM25Scorer(boost, idf, avgdl, collectionStats, termStats);
     }
 
     /** Collection statistics for the BM25 model. */
-    private static class BM25Scorer extends SimScorer {
+    private class BM25Scorer extends SimScorer {
         /** query boost */
         private final float boost;
-        /** BM25's idf */
-        private final Explanation idf;
         /** The average document length. */
         private final float avgdl;
         /** weight (idf * boost) */
         private final float weight;
+        /** precomputed tf divisors of norm[256] */
+        private final StepTf stepTf;
+        /** 只在 explain 时用来构造 idf 的 Explanation */
+        private final CollectionStatistics collectionStats;
+        private final TermStatistics[] termStats;
 
-        BM25Scorer(float boost, Explanation idf, float avgdl) {
+        BM25Scorer(float boost, float idf, float avgdl, CollectionStatistics collectionStats, TermStatistics[] termStats) {
             this.boost = boost;
-            this.idf = idf;
             this.avgdl = avgdl;
-            this.weight = boost * idf.getValue().floatValue();
+            this.weight = boost * idf;
+            this.stepTf = new StepTf(avgdl);
+            this.collectionStats = collectionStats;
+            this.termStats = termStats;
         }
 
         @Override
         public float score(float freq, long encodedNorm) {
-//            double norm = cache[((byte) encodedNorm) & 0xFF];
-            // current length of field
-            int  doclen = ((byte) encodedNorm) & 0xFF;
-            int docWeight = doclen < avgdl ? (int) freq : Math.round(freq/ Math.round(doclen / avgdl));
-            return weight * docWeight;
+            return weight * stepTf.tf(freq, encodedNorm);
         }
 
         @Override
@@ -216,10 +307,9 @@ public class MultistepSimilarity extends Similarity {
                 subs.add(Explanation.match(doclen, "dl, length of field"));
             }
             subs.add(Explanation.match(avgdl, "avgdl, average length of field"));
-            float normValue = doclen < avgdl ? 1 : Math.round(doclen / avgdl);
             return Explanation.match(
-                    Math.round(freq.getValue().floatValue() / normValue),
-                    "tf, computed as if dl < avgdl : return Math.round(freq/1); else return Math.round(freq/(Math.round(dl / avgdl))):", subs);
+                    stepTf.tf(freq.getValue().floatValue(), norm),
+                    "tf, computed as if dl < avgdl : return freq; else return Math.round(freq/(Math.round(dl / avgdl))):", subs);
         }
 
         private List<Explanation> explainConstantFactors() {
@@ -229,7 +319,7 @@ public class MultistepSimilarity extends Similarity {
                 subs.add(Explanation.match(boost, "boost"));
             }
             // idf
-            subs.add(idf);
+            subs.add(termStats.length == 1 ? idfExplain(collectionStats, termStats[0]) : idfExplain(collectionStats, termStats));
             return subs;
         }
     }
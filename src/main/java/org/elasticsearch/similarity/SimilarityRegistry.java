@@ -0,0 +1,83 @@
+package org.elasticsearch.similarity;
+
+import org.apache.lucene.search.similarities.BM25Similarity;
+import org.apache.lucene.search.similarities.ClassicSimilarity;
+import org.apache.lucene.search.similarities.Similarity;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+
+import java.util.Locale;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * @Classname SimilarityRegistry
+ * @Description 共享的 Similarity 实例，按照 (类型, 参数) 缓存，查询时不再为每个 weight 解析字符串、创建新的 Similarity。
+ * Similarity 本身是无状态的，可以被所有线程共用。支持的类型(大小写不敏感):
+ * <ul>
+ *   <li>BM25: Lucene 的 {@link BM25Similarity}，也是 null 时的默认值</li>
+ *   <li>class: {@link ClassicSimilarity}</li>
+ *   <li>custom: {@link TermMyBM25Similarity}</li>
+ *   <li>bucket-{base}: {@link MultistepSimilarity}，bucket-e 表示 base 为自然数 E</li>
+ * </ul>
+ * 其他类型抛出 {@link IllegalArgumentException}，拼写错误(例如 bm52)不会静默地退回 BM25。
+ */
+public final class SimilarityRegistry {
+
+    /** base 由请求指定，缓存的个数有上限，超过之后不再缓存新的 base */
+    private static final int MAX_MULTISTEP_SIZE = 1024;
+
+    private static final Similarity BM25 = new BM25Similarity();
+    private static final Similarity CLASSIC = new ClassicSimilarity();
+    private static final Similarity CUSTOM = new TermMyBM25Similarity();
+    private static final ConcurrentMap<Double, MultistepSimilarity> MULTISTEP = ConcurrentCollections.newConcurrentMap();
+
+    private SimilarityRegistry() {}
+
+    /**
+     * 解析 similarity 类型，类型未知或者 base 不合法时抛出 {@link IllegalArgumentException}
+     */
+    public static Similarity get(String type) {
+        if (type == null) {
+            return BM25;
+        }
+        final String lowerCase = type.toLowerCase(Locale.ROOT);
+        switch (lowerCase) {
+            case "bm25":
+                return BM25;
+            case "class":
+                return CLASSIC;
+            case "custom":
+                return CUSTOM;
+            default:
+                if (lowerCase.startsWith("bucket-")) {
+                    // 使用 自然数 E 来作为底数，也是BM25默认的使用底数
+                    // 使用越大的底数，导致查询query term的权重越平滑，低频词的权重和高频词的权重差距越小。
+                    final String bucket = lowerCase.substring("bucket-".length());
+                    if (bucket.equals("e")) {
+                        return multistep(Math.E);
+                    }
+                    try {
+                        return multistep(Double.parseDouble(bucket));
+                    } catch (NumberFormatException e) {
+                        throw new IllegalArgumentException("illegal similarity [" + type + "], base must be a number or [e]", e);
+                    }
+                }
+                throw new IllegalArgumentException("unknown similarity [" + type
+                        + "], must be one of [BM25, class, custom, bucket-{base}]");
+        }
+    }
+
+    /** 指定 base 的 {@link MultistepSimilarity} */
+    public static MultistepSimilarity multistep(double base) {
+        MultistepSimilarity similarity = MULTISTEP.get(base);
+        if (similarity == null) {
+            similarity = new MultistepSimilarity(base);
+            if (MULTISTEP.size() < MAX_MULTISTEP_SIZE) {
+                MultistepSimilarity previous = MULTISTEP.putIfAbsent(base, similarity);
+                if (previous != null) {
+                    similarity = previous;
+                }
+            }
+        }
+        return similarity;
+    }
+}
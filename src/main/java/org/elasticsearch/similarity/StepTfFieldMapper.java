@@ -0,0 +1,151 @@
+package org.elasticsearch.similarity;
+
+import org.apache.lucene.index.IndexOptions;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.search.MatchNoDocsQuery;
+import org.apache.lucene.search.Query;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.index.mapper.MappedFieldType;
+import org.elasticsearch.index.mapper.MapperParsingException;
+import org.elasticsearch.index.mapper.MapperService;
+import org.elasticsearch.index.mapper.MetadataFieldMapper;
+import org.elasticsearch.index.mapper.ParseContext;
+import org.elasticsearch.index.query.QueryShardContext;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * @Classname StepTfFieldMapper
+ * @Description 拒绝多值的 multistep_tf 字段。多值字段的每个值单独分词，{@link StepTfTokenFilter} 只能按单个值计算 freq 和 dl，
+ * Lucene 再把各个值的 term frequency 相加，得到的是 Σ(阶梯 tf + 1)，和整个字段的阶梯 tf 不一致，而 token filter 无法知道
+ * 两个值是否属于同一个 doc。这个 metadata mapper 在每个 doc 解析完之后检查，index analyzer 中包含 multistep_tf 的字段
+ * 出现多个值时索引失败。不写入任何字段，也不出现在 mapping 中
+ */
+public final class StepTfFieldMapper extends MetadataFieldMapper {
+
+    public static final String NAME = "_multistep_tf";
+
+    private static final MappedFieldType FIELD_TYPE = new StepTfFieldType();
+
+    static {
+        FIELD_TYPE.setIndexOptions(IndexOptions.NONE);
+        FIELD_TYPE.setStored(false);
+        FIELD_TYPE.setName(NAME);
+        FIELD_TYPE.freeze();
+    }
+
+    public static class Builder extends MetadataFieldMapper.Builder<Builder, StepTfFieldMapper> {
+
+        public Builder() {
+            super(NAME, FIELD_TYPE, FIELD_TYPE);
+        }
+
+        @Override
+        public StepTfFieldMapper build(BuilderContext context) {
+            return new StepTfFieldMapper(context.indexSettings());
+        }
+    }
+
+    public static class TypeParser implements MetadataFieldMapper.TypeParser {
+        @Override
+        public MetadataFieldMapper.Builder<?, ?> parse(String name, Map<String, Object> node,
+                                                       ParserContext parserContext) throws MapperParsingException {
+            return new Builder();
+        }
+
+        @Override
+        public MetadataFieldMapper getDefault(MappedFieldType fieldType, ParserContext context) {
+            return new StepTfFieldMapper(context.mapperService().getIndexSettings().getSettings());
+        }
+    }
+
+    static final class StepTfFieldType extends MappedFieldType {
+
+        StepTfFieldType() {
+        }
+
+        private StepTfFieldType(StepTfFieldType ref) {
+            super(ref);
+        }
+
+        @Override
+        public MappedFieldType clone() {
+            return new StepTfFieldType(this);
+        }
+
+        @Override
+        public String typeName() {
+            return NAME;
+        }
+
+        @Override
+        public Query termQuery(Object value, QueryShardContext context) {
+            return new MatchNoDocsQuery();
+        }
+
+        @Override
+        public Query existsQuery(QueryShardContext context) {
+            return new MatchNoDocsQuery();
+        }
+    }
+
+    private StepTfFieldMapper(Settings indexSettings) {
+        super(NAME, FIELD_TYPE, FIELD_TYPE, indexSettings);
+    }
+
+    @Override
+    public void preParse(ParseContext context) {
+    }
+
+    @Override
+    public void postParse(ParseContext context) {
+        final MapperService mapperService = context.mapperService();
+        checkSingleValued(context.rootDoc(), mapperService);
+        for (ParseContext.Document doc : context.nonRootDocuments()) {
+            checkSingleValued(doc, mapperService);
+        }
+    }
+
+    /**
+     * 只在字段名重复时才查找它的 analyzer，普通的 doc 只需要遍历一次字段
+     */
+    private static void checkSingleValued(ParseContext.Document doc, MapperService mapperService) {
+        final Set<String> seen = new HashSet<>();
+        for (IndexableField field : doc) {
+            if (field.fieldType().indexOptions() == IndexOptions.NONE || field.fieldType().tokenized() == false) {
+                continue;
+            }
+            if (seen.add(field.name()) == false) {
+                final MappedFieldType fieldType = mapperService.fullName(field.name());
+                if (fieldType != null && StepTfTokenFilterFactory.appliesTo(fieldType.indexAnalyzer())) {
+                    throw new IllegalArgumentException("field [" + field.name() + "] is analyzed with [" + StepTfTokenFilterFactory.NAME
+                            + "] and can not have more than one value");
+                }
+            }
+        }
+    }
+
+    @Override
+    public void parse(ParseContext context) throws IOException {
+        // 在 postParse 中检查
+    }
+
+    @Override
+    protected void parseCreateField(ParseContext context, List<IndexableField> fields) {
+    }
+
+    @Override
+    protected String contentType() {
+        return NAME;
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) {
+        return builder;
+    }
+}
@@ -0,0 +1,70 @@
+package org.elasticsearch.similarity;
+
+import org.apache.lucene.analysis.TokenFilter;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.analysis.tokenattributes.TermFrequencyAttribute;
+import org.apache.lucene.util.SmallFloat;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * @Classname StepTfTokenFilter
+ * @Description 在索引时预先计算 {@link MultistepSimilarity} 的阶梯 tf：读取整个字段值，统计每个 term 的 freq 以及字段长度 dl，
+ * 每个 term 只输出一次，term frequency 为 stepTf(freq, dl, avgdl) + 1(Lucene 的 term frequency 至少为 1，阶梯 tf 可以为 0)。
+ * dl 和 {@link MultistepSimilarity#computeNorm} 一样不计 position increment 为 0 的 token，并且经过同样的 norm 编码，
+ * 所以和查询时的 {@link MultistepSimilarity#stepTf} 结果一致，区别只在于 avgdl 是索引时指定的固定值，而不是 shard 上的统计值。
+ * 字段需要使用 "index_options": "freqs"(自定义 term frequency 不能和 position 一起索引)，不需要 norms。
+ * 多值字段的每个值单独经过这个 filter，Lucene 会把各个值的 term frequency 相加，所以字段只能有一个值({@link StepTfFieldMapper})。
+ */
+public final class StepTfTokenFilter extends TokenFilter {
+
+    private final CharTermAttribute termAtt = addAttribute(CharTermAttribute.class);
+    private final PositionIncrementAttribute posIncAtt = addAttribute(PositionIncrementAttribute.class);
+    private final TermFrequencyAttribute termFreqAtt = addAttribute(TermFrequencyAttribute.class);
+
+    private final float avgdl;
+    /** term -> freq，保留 term 第一次出现的顺序 */
+    private final Map<String, int[]> freqs = new LinkedHashMap<>();
+    private Iterator<Map.Entry<String, int[]>> pending;
+    private long encodedNorm;
+
+    public StepTfTokenFilter(TokenStream input, float avgdl) {
+        super(input);
+        this.avgdl = avgdl;
+    }
+
+    @Override
+    public boolean incrementToken() throws IOException {
+        if (pending == null) {
+            int numTerms = 0;
+            while (input.incrementToken()) {
+                if (posIncAtt.getPositionIncrement() != 0) {
+                    numTerms++;
+                }
+                freqs.computeIfAbsent(termAtt.toString(), t -> new int[1])[0]++;
+            }
+            encodedNorm = SmallFloat.intToByte4(numTerms);
+            pending = freqs.entrySet().iterator();
+        }
+        if (pending.hasNext() == false) {
+            return false;
+        }
+        final Map.Entry<String, int[]> entry = pending.next();
+        clearAttributes();
+        termAtt.setEmpty().append(entry.getKey());
+        termFreqAtt.setTermFrequency(MultistepSimilarity.stepTf(entry.getValue()[0], encodedNorm, avgdl) + 1);
+        return true;
+    }
+
+    @Override
+    public void reset() throws IOException {
+        super.reset();
+        freqs.clear();
+        pending = null;
+    }
+}
@@ -0,0 +1,59 @@
+package org.elasticsearch.similarity;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.index.IndexSettings;
+import org.elasticsearch.index.analysis.AbstractTokenFilterFactory;
+import org.elasticsearch.index.analysis.CustomAnalyzer;
+import org.elasticsearch.index.analysis.NamedAnalyzer;
+import org.elasticsearch.index.analysis.TokenFilterFactory;
+
+/**
+ * @Classname StepTfTokenFilterFactory
+ * @Description multistep_tf token filter，参数 avgdl 为预估的平均字段长度(大于 0)。
+ * multistep_score 查询的字段的 index analyzer 中包含这个 filter 时，直接使用索引中的阶梯 tf 打分；
+ * search analyzer 中不能包含它(查询时报错)，字段只能有一个值({@link StepTfFieldMapper})
+ */
+public class StepTfTokenFilterFactory extends AbstractTokenFilterFactory {
+
+    public static final String NAME = "multistep_tf";
+
+    private final float avgdl;
+
+    public StepTfTokenFilterFactory(IndexSettings indexSettings, Environment environment, String name, Settings settings) {
+        super(indexSettings, name, settings);
+        this.avgdl = settings.getAsFloat("avgdl", 0f);
+        if (avgdl <= 0 || Float.isFinite(avgdl) == false) {
+            throw new IllegalArgumentException("[" + NAME + "] requires avgdl must be a positive number, but got " + settings.get("avgdl"));
+        }
+    }
+
+    public float avgdl() {
+        return avgdl;
+    }
+
+    /**
+     * analyzer 是包含 multistep_tf token filter 的 custom analyzer
+     */
+    public static boolean appliesTo(Analyzer analyzer) {
+        if (analyzer instanceof NamedAnalyzer) {
+            analyzer = ((NamedAnalyzer) analyzer).analyzer();
+        }
+        if (analyzer instanceof CustomAnalyzer == false) {
+            return false;
+        }
+        for (TokenFilterFactory filter : ((CustomAnalyzer) analyzer).tokenFilters()) {
+            if (filter instanceof StepTfTokenFilterFactory) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public TokenStream create(TokenStream tokenStream) {
+        return new StepTfTokenFilter(tokenStream, avgdl);
+    }
+}
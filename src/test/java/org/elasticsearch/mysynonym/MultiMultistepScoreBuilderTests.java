@@ -0,0 +1,179 @@
+package org.elasticsearch.mysynonym;
+
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.ParsingException;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.io.stream.NamedWriteableRegistry;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.json.JsonXContent;
+import org.elasticsearch.index.query.Operator;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.myterm.MultiFieldMultistepQuery;
+import org.elasticsearch.plugin.ESQueryPlugin;
+import org.elasticsearch.plugins.Plugin;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.test.ESSingleNodeTestCase;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * @Classname MultiMultistepScoreBuilderTests
+ * @Description {@link MultiMultistepScoreBuilder} 的序列化、"field^boost" 的解析、不支持的参数，以及单字段时和 multistep_score 的结果一致
+ */
+public class MultiMultistepScoreBuilderTests extends ESSingleNodeTestCase {
+
+    private static final NamedWriteableRegistry REGISTRY = new NamedWriteableRegistry(Collections.singletonList(
+            new NamedWriteableRegistry.Entry(QueryBuilder.class, MultiMultistepScoreBuilder.NAME, MultiMultistepScoreBuilder::new)));
+
+    private static final String[] VOCABULARY = {"a", "b", "c", "d", "e", "f"};
+
+    @Override
+    protected Collection<Class<? extends Plugin>> getPlugins() {
+        return Collections.singletonList(ESQueryPlugin.class);
+    }
+
+    private static MultiMultistepScoreBuilder randomBuilder() {
+        final Map<String, Float> fields = new HashMap<>();
+        final int numFields = randomIntBetween(1, 3);
+        for (int i = 0; i < numFields; i++) {
+            fields.put(randomAlphaOfLengthBetween(1, 8), randomFrom(1f, 2f, 0.5f, (float) randomIntBetween(1, 10)));
+        }
+        final MultiMultistepScoreBuilder builder = new MultiMultistepScoreBuilder(randomAlphaOfLengthBetween(1, 20), fields);
+        if (randomBoolean()) {
+            builder.fieldBase(randomFrom(fields.keySet()), randomFrom(1.1, 1.5, 10.0));
+        }
+        builder.combine(randomFrom(MultiFieldMultistepQuery.Combine.values()));
+        builder.operator(randomFrom(Operator.values()));
+        builder.zeroTermsQuery(randomFrom(MultistepScoreQuery.ZeroTermsQuery.NONE, MultistepScoreQuery.ZeroTermsQuery.ALL));
+        if (randomBoolean()) {
+            builder.analyzer(randomFrom("whitespace", "standard"));
+        }
+        if (randomBoolean()) {
+            builder.base(randomFrom(1.002, Math.E));
+        }
+        if (randomBoolean()) {
+            builder.minimumShouldMatch(randomFrom("1", "75%", "-1"));
+        }
+        if (randomBoolean()) {
+            builder.cutoffFrequency(randomFrom(0.01f, 0.5f, 10f));
+        }
+        builder.concurrent(randomBoolean());
+        if (randomBoolean()) {
+            builder.boost(randomFrom(1f, 2f, 0.5f));
+        }
+        if (randomBoolean()) {
+            builder.queryName(randomAlphaOfLengthBetween(1, 8));
+        }
+        return builder;
+    }
+
+    public void testWireRoundTrip() throws IOException {
+        for (int i = 0; i < 20; i++) {
+            final MultiMultistepScoreBuilder original = randomBuilder();
+            final MultiMultistepScoreBuilder copy = copyWriteable(original, REGISTRY, MultiMultistepScoreBuilder::new);
+            assertEquals(original, copy);
+            assertEquals(original.hashCode(), copy.hashCode());
+        }
+    }
+
+    public void testXContentRoundTrip() throws IOException {
+        for (int i = 0; i < 20; i++) {
+            final MultiMultistepScoreBuilder original = randomBuilder();
+            try (XContentParser parser = createParser(JsonXContent.jsonXContent, Strings.toString(original))) {
+                assertEquals(XContentParser.Token.START_OBJECT, parser.nextToken());
+                assertEquals(XContentParser.Token.FIELD_NAME, parser.nextToken());
+                assertEquals(MultiMultistepScoreBuilder.NAME, parser.currentName());
+                assertEquals(XContentParser.Token.START_OBJECT, parser.nextToken());
+                final MultiMultistepScoreBuilder parsed = MultiMultistepScoreBuilder.fromXContent(parser);
+                assertEquals(original, parsed);
+                assertEquals(original.hashCode(), parsed.hashCode());
+            }
+        }
+    }
+
+    public void testParseFieldBoosts() throws IOException {
+        MultiMultistepScoreBuilder builder = parse("{\"query\": \"a b\", \"fields\": [\"title^3\", \"body\", \"tags^0.5\"]}");
+        assertEquals(3, builder.fields().size());
+        assertEquals(3f, builder.fields().get("title"), 0f);
+        assertEquals(1f, builder.fields().get("body"), 0f);
+        assertEquals(0.5f, builder.fields().get("tags"), 0f);
+
+        builder = parse("{\"query\": \"a b\", \"fields\": \"title^2\", \"bases\": {\"title\": 1.5}, \"combine\": \"sum\"}");
+        assertEquals(Collections.singletonMap("title", 2f), builder.fields());
+        assertEquals(Collections.singletonMap("title", 1.5), builder.fieldBases());
+        assertEquals(MultiFieldMultistepQuery.Combine.SUM, builder.combine());
+
+        expectThrows(ParsingException.class, () -> parse("{\"query\": \"a b\", \"fields\": [\"^2\"]}"));
+        expectThrows(ParsingException.class, () -> parse("{\"query\": \"a b\"}"));
+    }
+
+    public void testRejectFieldPatterns() {
+        ParsingException e = expectThrows(ParsingException.class,
+                () -> parse("{\"query\": \"a b\", \"fields\": [\"title\", \"body*^2\"]}"));
+        assertTrue(e.getMessage(), e.getMessage().contains("field patterns"));
+        IllegalArgumentException iae = expectThrows(IllegalArgumentException.class,
+                () -> new MultiMultistepScoreBuilder("a b", Collections.singletonMap("*", 1f)));
+        assertTrue(iae.getMessage(), iae.getMessage().contains("field patterns"));
+    }
+
+    public void testRejectTieBreaker() {
+        ParsingException e = expectThrows(ParsingException.class,
+                () -> parse("{\"query\": \"a b\", \"fields\": [\"title\", \"body\"], \"tie_breaker\": 0.3}"));
+        assertTrue(e.getMessage(), e.getMessage().contains("tie_breaker"));
+    }
+
+    public void testSingleFieldMatchesMultistepScore() {
+        createIndex("test", Settings.builder().put("index.number_of_shards", 1).build(), "_doc",
+                "title", "type=text,analyzer=whitespace", "body", "type=text,analyzer=whitespace");
+        final int numDocs = randomIntBetween(20, 100);
+        for (int i = 0; i < numDocs; i++) {
+            client().prepareIndex("test", "_doc", Integer.toString(i))
+                    .setSource("title", randomText(), "body", randomText()).get();
+        }
+        client().admin().indices().prepareRefresh("test").get();
+        for (int iter = 0; iter < 10; iter++) {
+            final String text = randomText();
+            final double base = randomFrom(1.002, 1.5, Math.E);
+            final float boost = randomFrom(1f, 2f, 3f, 1.5f);
+            final Operator operator = randomFrom(Operator.values());
+            final MultistepScoreBuilder single = new MultistepScoreBuilder("title", text).base(base).operator(operator);
+            single.boost(boost);
+            final MultiMultistepScoreBuilder multi = new MultiMultistepScoreBuilder(text, Collections.singletonMap("title", boost))
+                    .base(base).operator(operator);
+            final SearchResponse expected = client().prepareSearch("test").setQuery(single).setSize(numDocs).get();
+            final SearchResponse actual = client().prepareSearch("test").setQuery(multi).setSize(numDocs).get();
+            assertEquals(expected.getHits().getTotalHits().value, actual.getHits().getTotalHits().value);
+            final SearchHit[] expectedHits = expected.getHits().getHits();
+            final SearchHit[] actualHits = actual.getHits().getHits();
+            assertEquals(expectedHits.length, actualHits.length);
+            for (int i = 0; i < expectedHits.length; i++) {
+                assertEquals(text + " rank " + i, expectedHits[i].getId(), actualHits[i].getId());
+                assertEquals(text + " rank " + i, expectedHits[i].getScore(), actualHits[i].getScore(), 0f);
+            }
+        }
+    }
+
+    private MultiMultistepScoreBuilder parse(String json) throws IOException {
+        try (XContentParser parser = createParser(JsonXContent.jsonXContent, json)) {
+            assertEquals(XContentParser.Token.START_OBJECT, parser.nextToken());
+            return MultiMultistepScoreBuilder.fromXContent(parser);
+        }
+    }
+
+    private static String randomText() {
+        final int length = randomIntBetween(1, 8);
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            if (i > 0) {
+                text.append(' ');
+            }
+            text.append(randomFrom(VOCABULARY));
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,171 @@
+package org.elasticsearch.myterm;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.index.RandomIndexWriter;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreMode;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopScoreDocCollector;
+import org.apache.lucene.search.TotalHits;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.search.similarities.BM25Similarity;
+import org.apache.lucene.store.Directory;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.tasks.TaskCancelledException;
+import org.elasticsearch.test.ESTestCase;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @Classname ConcurrentLeafSearchTests
+ * @Description {@link ConcurrentLeafSearch} 在收集时才并行搜索，结果和 total hits 都和串行搜索一致，窗口超过 top_n 时串行搜索，
+ * 每个 slice 都检查取消
+ */
+public class ConcurrentLeafSearchTests extends ESTestCase {
+
+    private static final String FIELD = "body";
+    private static final int TOP_N = 20;
+    /** 每个 slice 最多 5 个 segment，至少切分出 3 个 slice */
+    private static final int SEGMENTS = 12;
+
+    public void testCollectsInParallelAtSearchTime() throws IOException, InterruptedException {
+        final AtomicInteger tasks = new AtomicInteger();
+        final ExecutorService pool = Executors.newFixedThreadPool(2);
+        try (Directory dir = newDirectory(); IndexReader reader = index(dir)) {
+            final ConcurrentLeafSearch concurrent = concurrentSearch(command -> {
+                tasks.incrementAndGet();
+                pool.execute(command);
+            });
+            assertTrue(concurrent.applies(reader));
+            IndexSearcher searcher = new IndexSearcher(reader);
+            searcher.setQueryCache(null);
+            for (int iter = 0; iter < 20; iter++) {
+                final MultistepTermsQuery.Builder builder = MultistepTermsQueryTests.randomQuery();
+                final Query plain = builder.build();
+                final Query parallel = builder.concurrentSearch(concurrent).build();
+                // track_total_hits 为 false 或者小于 N
+                final int k = randomIntBetween(1, TOP_N);
+                final int trackTotalHitsUpTo = randomBoolean() ? -1 : randomIntBetween(0, TOP_N - 1);
+                final TopDocs expected = search(searcher, plain, k, trackTotalHitsUpTo);
+
+                // 创建 weight 和 explain 都不会触发并行收集
+                tasks.set(0);
+                SearchWindow.enter(parallel, k, trackTotalHitsUpTo);
+                try {
+                    final Weight weight = searcher.createWeight(searcher.rewrite(parallel), ScoreMode.TOP_SCORES, 1f);
+                    final LeafReaderContext leaf = randomFrom(reader.leaves());
+                    weight.explain(leaf, randomIntBetween(0, leaf.reader().maxDoc() - 1));
+                } finally {
+                    SearchWindow.exit();
+                }
+                assertEquals(0, tasks.get());
+
+                assertSameHits(parallel.toString(), expected, search(searcher, parallel, k, trackTotalHitsUpTo), trackTotalHitsUpTo);
+                assertTrue(tasks.get() > 0);
+
+                // from + size 或者 track_total_hits 超过 top_n 时串行搜索，结果和 total hits 仍然一致
+                final int deep = randomBoolean() ? TOP_N + randomIntBetween(1, 50) : k;
+                final int tracked = deep > TOP_N ? randomFrom(-1, deep) : randomIntBetween(TOP_N, 2 * TOP_N);
+                tasks.set(0);
+                assertSameHits(parallel.toString(), search(searcher, plain, deep, tracked),
+                        search(searcher, parallel, deep, tracked), tracked);
+                assertEquals(0, tasks.get());
+            }
+        } finally {
+            assertTrue(terminate(pool));
+        }
+    }
+
+    public void testSlicesCheckCancellation() throws IOException, InterruptedException {
+        final AtomicBoolean cancelled = new AtomicBoolean();
+        final ExecutorService pool = Executors.newFixedThreadPool(2);
+        try (Directory dir = newDirectory(); IndexReader reader = index(dir)) {
+            // 搜索开始之后(提交 slice 时)取消，搜索线程和线程池中的 slice 都要检查到
+            final ConcurrentLeafSearch concurrent = concurrentSearch(command -> {
+                cancelled.set(true);
+                pool.execute(command);
+            });
+            IndexSearcher searcher = new IndexSearcher(reader) {
+                @Override
+                protected void search(List<LeafReaderContext> leaves, Weight weight, Collector collector) throws IOException {
+                    // 和 ContextIndexSearcher 一样，收集之前检查取消
+                    if (cancelled.get()) {
+                        throw new TaskCancelledException("cancelled");
+                    }
+                    super.search(leaves, weight, collector);
+                }
+            };
+            searcher.setQueryCache(null);
+            final Query parallel = MultistepTermsQueryTests.randomQuery().concurrentSearch(concurrent).build();
+            expectThrows(TaskCancelledException.class, () -> search(searcher, parallel, randomIntBetween(1, TOP_N), -1));
+            assertTrue(cancelled.get());
+        } finally {
+            assertTrue(terminate(pool));
+        }
+    }
+
+    private static ConcurrentLeafSearch concurrentSearch(Executor executor) {
+        return new ConcurrentLeafSearch(Settings.builder()
+                .put(ConcurrentLeafSearch.MIN_DOCS_SETTING.getKey(), 0)
+                .put(ConcurrentLeafSearch.TOP_N_SETTING.getKey(), TOP_N)
+                .build(), executor);
+    }
+
+    /** 不合并 segment，每次 commit 生成至少一个 segment */
+    private static IndexReader index(Directory dir) throws IOException {
+        try (RandomIndexWriter writer = new RandomIndexWriter(random(), dir,
+                newIndexWriterConfig().setSimilarity(new BM25Similarity()).setMergePolicy(NoMergePolicy.INSTANCE))) {
+            for (int segment = 0; segment < SEGMENTS; segment++) {
+                final int numDocs = randomIntBetween(20, 100);
+                for (int i = 0; i < numDocs; i++) {
+                    Document doc = new Document();
+                    doc.add(new TextField(FIELD, MultistepTermsQueryTests.randomText(), Field.Store.NO));
+                    writer.addDocument(doc);
+                }
+                writer.commit();
+            }
+            return writer.getReader();
+        }
+    }
+
+    /**
+     * 作为查询阶段的顶层 query 收集前 k 个结果，track_total_hits 为 false 时 trackTotalHitsUpTo 为 -1
+     */
+    private static TopDocs search(IndexSearcher searcher, Query query, int k, int trackTotalHitsUpTo) throws IOException {
+        TopScoreDocCollector collector = TopScoreDocCollector.create(k, trackTotalHitsUpTo < 0 ? 1 : trackTotalHitsUpTo);
+        SearchWindow.enter(query, k, trackTotalHitsUpTo);
+        try {
+            searcher.search(query, collector);
+        } finally {
+            SearchWindow.exit();
+        }
+        return collector.topDocs();
+    }
+
+    /** 结果相同，total hits 准确时相同，否则都超过 trackTotalHitsUpTo；track_total_hits 为 false 时 ES 不使用 collector 的 total hits */
+    private static void assertSameHits(String message, TopDocs expected, TopDocs actual, int trackTotalHitsUpTo) {
+        MultistepTermsQueryTests.assertSameScoreDocs(message, expected, actual);
+        if (trackTotalHitsUpTo < 0) {
+            return;
+        }
+        assertEquals(message, expected.totalHits.relation, actual.totalHits.relation);
+        if (expected.totalHits.relation == TotalHits.Relation.EQUAL_TO) {
+            assertEquals(message, expected.totalHits.value, actual.totalHits.value);
+        } else {
+            assertTrue(message, actual.totalHits.value > trackTotalHitsUpTo);
+        }
+    }
+}
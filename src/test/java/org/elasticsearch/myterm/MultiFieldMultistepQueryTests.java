@@ -0,0 +1,129 @@
+package org.elasticsearch.myterm;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.RandomIndexWriter;
+import org.apache.lucene.index.ReaderUtil;
+import org.apache.lucene.search.Explanation;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.ScoreMode;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.search.similarities.BM25Similarity;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.test.ESTestCase;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * @Classname MultiFieldMultistepQueryTests
+ * @Description {@link MultiFieldMultistepQuery} 整数得分模式和 float 得分模式的排序一致，并发 explain 的得分和搜索时一致
+ */
+public class MultiFieldMultistepQueryTests extends ESTestCase {
+
+    private static final String[] FIELDS = {"title", "body"};
+    private static final String[] VOCABULARY = {"a", "b", "c", "d", "e", "f"};
+
+    public void testIntegerBoostsRankLikeFloatBoosts() throws Exception {
+        try (Directory dir = newDirectory()) {
+            try (RandomIndexWriter writer = new RandomIndexWriter(random(), dir,
+                    newIndexWriterConfig().setSimilarity(new BM25Similarity()))) {
+                final int numDocs = randomIntBetween(100, 500);
+                for (int i = 0; i < numDocs; i++) {
+                    Document doc = new Document();
+                    for (String field : FIELDS) {
+                        if (randomIntBetween(0, 4) > 0) {
+                            doc.add(new TextField(field, MultistepTermsQueryTests.randomText(), Field.Store.NO));
+                        }
+                    }
+                    writer.addDocument(doc);
+                }
+                try (IndexReader reader = writer.getReader()) {
+                    IndexSearcher searcher = new IndexSearcher(reader);
+                    searcher.setQueryCache(null);
+                    for (int iter = 0; iter < 20; iter++) {
+                        final BytesRef[] terms = randomTerms();
+                        final double base = randomFrom(1.1, 1.5, Math.E);
+                        final MultiFieldMultistepQuery.Combine combine = randomFrom(MultiFieldMultistepQuery.Combine.values());
+                        // 整数 boost 正好是 float boost 的两倍，float 的 x.5 倍数可以精确表示，两者的排序和 score 比例都是精确的
+                        final int[] integerBoosts = {randomIntBetween(1, 5) * 2 + 1, randomIntBetween(1, 5) * 2 + 1};
+                        final MultiFieldMultistepQuery integerQuery = query(terms, base, combine,
+                                integerBoosts[0], integerBoosts[1]);
+                        final MultiFieldMultistepQuery floatQuery = query(terms, base, combine,
+                                integerBoosts[0] / 2f, integerBoosts[1] / 2f);
+                        final TopDocs integerTopDocs = searcher.search(integerQuery, numDocs);
+                        final TopDocs floatTopDocs = searcher.search(floatQuery, numDocs);
+                        assertEquals(floatTopDocs.scoreDocs.length, integerTopDocs.scoreDocs.length);
+                        for (int i = 0; i < integerTopDocs.scoreDocs.length; i++) {
+                            assertEquals(integerQuery + " rank " + i, floatTopDocs.scoreDocs[i].doc, integerTopDocs.scoreDocs[i].doc);
+                            assertEquals(integerQuery + " rank " + i, floatTopDocs.scoreDocs[i].score * 2,
+                                    integerTopDocs.scoreDocs[i].score, 0f);
+                        }
+                        assertExplainMatchesScores(searcher, integerQuery, integerTopDocs);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * 多个线程同时用同一个 weight 依次 explain 多个 doc(先按 doc 递增，再按得分顺序，会出现 doc 变小和跨 segment)，得分和搜索时一致
+     */
+    private static void assertExplainMatchesScores(IndexSearcher searcher, MultiFieldMultistepQuery query, TopDocs topDocs)
+            throws Exception {
+        final Weight weight = searcher.createWeight(searcher.rewrite(query), ScoreMode.COMPLETE, 1f);
+        final ScoreDoc[] byDoc = topDocs.scoreDocs.clone();
+        Arrays.sort(byDoc, Comparator.comparingInt(scoreDoc -> scoreDoc.doc));
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final Thread[] threads = new Thread[randomIntBetween(2, 4)];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                try {
+                    for (ScoreDoc[] scoreDocs : new ScoreDoc[][] {byDoc, topDocs.scoreDocs}) {
+                        for (ScoreDoc scoreDoc : scoreDocs) {
+                            final LeafReaderContext leaf = searcher.getIndexReader().leaves()
+                                    .get(ReaderUtil.subIndex(scoreDoc.doc, searcher.getIndexReader().leaves()));
+                            final Explanation explanation = weight.explain(leaf, scoreDoc.doc - leaf.docBase);
+                            assertTrue(explanation.isMatch());
+                            assertEquals(explanation.toString(), scoreDoc.score, explanation.getValue().floatValue(), 0f);
+                        }
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+    }
+
+    private static MultiFieldMultistepQuery query(BytesRef[] terms, double base, MultiFieldMultistepQuery.Combine combine,
+                                                  float titleBoost, float bodyBoost) {
+        final MultistepTermsQuery[] queries = new MultistepTermsQuery[FIELDS.length];
+        for (int i = 0; i < FIELDS.length; i++) {
+            queries[i] = new MultistepTermsQuery.Builder(FIELDS[i], terms, new boolean[terms.length], base).build();
+        }
+        return new MultiFieldMultistepQuery(queries, new float[] {titleBoost, bodyBoost}, combine);
+    }
+
+    private static BytesRef[] randomTerms() {
+        final BytesRef[] terms = new BytesRef[randomIntBetween(1, 3)];
+        final int start = randomIntBetween(0, VOCABULARY.length - 1);
+        for (int i = 0; i < terms.length; i++) {
+            terms[i] = new BytesRef(VOCABULARY[(start + i) % VOCABULARY.length]);
+        }
+        return terms;
+    }
+}
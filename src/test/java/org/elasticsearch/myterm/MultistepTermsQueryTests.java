@@ -0,0 +1,291 @@
+package org.elasticsearch.myterm;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.SortedNumericDocValuesField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.RandomIndexWriter;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.BoostQuery;
+import org.apache.lucene.search.Explanation;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.SortedNumericSelector;
+import org.apache.lucene.search.SortedNumericSortField;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopScoreDocCollector;
+import org.apache.lucene.search.similarities.BM25Similarity;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.similarity.MultistepSimilarity;
+import org.elasticsearch.test.ESTestCase;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * @Classname MultistepTermsQueryTests
+ * @Description {@link MultistepTermsQuery} 和原来的 BooleanQuery(每个 term 一个 {@link TermQuery_V1}) 的结果一致，
+ * 在提前终止(TOP_SCORES)时和完整收集(COMPLETE)的结果一致
+ */
+public class MultistepTermsQueryTests extends ESTestCase {
+
+    private static final String FIELD = "body";
+    private static final String TIEBREAK_FIELD = "read_num";
+    private static final String[] VOCABULARY = {"a", "b", "c", "d", "e", "f"};
+
+    public void testMatchesBooleanOfTermQueries() throws IOException {
+        try (Directory dir = newDirectory()) {
+            try (RandomIndexWriter writer = new RandomIndexWriter(random(), dir,
+                    newIndexWriterConfig().setSimilarity(new BM25Similarity()))) {
+                final int numDocs = randomIntBetween(200, 1000);
+                for (int i = 0; i < numDocs; i++) {
+                    Document doc = new Document();
+                    doc.add(new TextField(FIELD, randomText(), Field.Store.NO));
+                    writer.addDocument(doc);
+                }
+                try (IndexReader reader = writer.getReader()) {
+                    IndexSearcher searcher = new IndexSearcher(reader);
+                    searcher.setQueryCache(null);
+                    for (int iter = 0; iter < 20; iter++) {
+                        final BytesRef[] terms = randomTerms();
+                        // 第一个 term 之后的 term 有一定概率是同义词，只召回不打分
+                        final boolean[] synonyms = new boolean[terms.length];
+                        boolean hasSynonyms = false;
+                        for (int i = 1; i < synonyms.length; i++) {
+                            synonyms[i] = randomIntBetween(0, 3) == 0;
+                            hasSynonyms |= synonyms[i];
+                        }
+                        final double base = randomBase();
+                        final Query fused = new MultistepTermsQuery.Builder(FIELD, terms, synonyms, base).build();
+                        final Query baseline = baseline(terms, synonyms, base);
+                        final TopDocs expected = searcher.search(baseline, numDocs);
+                        final TopDocs actual = searcher.search(fused, numDocs);
+                        assertEquals(expected.totalHits.value, actual.totalHits.value);
+                        assertSameScoreDocs(fused.toString(), expected, actual);
+                        for (int i = 0; i < Math.min(20, expected.scoreDocs.length); i++) {
+                            final int doc = expected.scoreDocs[i].doc;
+                            final Explanation expectedExplanation = searcher.explain(baseline, doc);
+                            final Explanation actualExplanation = searcher.explain(fused, doc);
+                            assertTrue(expectedExplanation.isMatch());
+                            assertTrue(actualExplanation.isMatch());
+                            assertEquals(expectedExplanation.getValue().floatValue(), actualExplanation.getValue().floatValue(), 0f);
+                            assertEquals(expected.scoreDocs[i].score, actualExplanation.getValue().floatValue(), 0f);
+                            if (hasSynonyms == false) {
+                                // 每个 term 的解释完全一致，只有最外层的描述不同
+                                final List<Explanation> expectedTerms = baseline instanceof BooleanQuery
+                                        ? Arrays.asList(expectedExplanation.getDetails()) : Collections.singletonList(expectedExplanation);
+                                assertEquals(expectedTerms.toString(), Arrays.asList(actualExplanation.getDetails()).toString());
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * 原来的实现：每个 term 一个使用 {@link MultistepSimilarity} 的 {@link TermQuery_V1}，同义词为 boost 0 的 {@link TermQuery}
+     */
+    private static Query baseline(BytesRef[] terms, boolean[] synonyms, double base) {
+        if (terms.length == 1) {
+            return termQuery(terms[0], base);
+        }
+        BooleanQuery.Builder builder = new BooleanQuery.Builder();
+        for (int i = 0; i < terms.length; i++) {
+            if (synonyms[i]) {
+                builder.add(new BoostQuery(new TermQuery(new Term(FIELD, terms[i])), 0f), BooleanClause.Occur.SHOULD);
+            } else {
+                builder.add(termQuery(terms[i], base), BooleanClause.Occur.SHOULD);
+            }
+        }
+        return builder.build();
+    }
+
+    private static Query termQuery(BytesRef term, double base) {
+        TermQuery_V1 query = new TermQuery_V1(new Term(FIELD, term));
+        query.setSimilarity(new MultistepSimilarity(base));
+        return query;
+    }
+
+    public void testMinStepOnBoundary() {
+        for (int i = 0; i < 10000; i++) {
+            final float boost = randomFrom(1f, 0.1f, 1.3f, 3f, 1e-3f, 7.7f, randomFloat() * 10 + 1e-4f);
+            final long step = randomIntBetween(0, 1 << 20);
+            // 阶梯为 step 的 doc 的得分正好等于 minScore，仍然有竞争力
+            final float score = boost * step;
+            assertEquals(boost + " * " + step, step, MultistepScorer.minStep(score, boost));
+            // minScore 比某个阶梯的得分稍大(collector 用 nextUp 排除相同得分的 doc)，结果是满足 boost * step >= minScore 的最小阶梯
+            final float minScore = Math.nextUp(score);
+            final long minStep = MultistepScorer.minStep(minScore, boost);
+            assertTrue(boost + " * " + minStep, boost * minStep >= minScore);
+            assertTrue(boost + " * " + (minStep - 1), minStep == 0 || boost * (minStep - 1) < minScore);
+        }
+    }
+
+    public void testTopScoresMatchComplete() throws IOException {
+        try (Directory dir = newDirectory()) {
+            try (RandomIndexWriter writer = new RandomIndexWriter(random(), dir,
+                    newIndexWriterConfig().setSimilarity(new BM25Similarity()))) {
+                // 足够多的 doc，postings 有多个 block 和多层 impacts
+                final int numDocs = randomIntBetween(2000, 6000);
+                for (int i = 0; i < numDocs; i++) {
+                    Document doc = new Document();
+                    doc.add(new TextField(FIELD, randomText(), Field.Store.NO));
+                    writer.addDocument(doc);
+                }
+                if (randomBoolean()) {
+                    writer.forceMerge(1);
+                }
+                try (IndexReader reader = writer.getReader()) {
+                    IndexSearcher searcher = new IndexSearcher(reader);
+                    searcher.setQueryCache(null);
+                    for (int iter = 0; iter < 30; iter++) {
+                        MultistepTermsQuery.Builder builder = randomQuery();
+                        if (rarely()) {
+                            builder.minShouldMatch(2);
+                        }
+                        if (rarely()) {
+                            builder.cutoffFrequency(0.5f);
+                        }
+                        Query query = builder.build();
+                        // 阶梯得分是小整数，大量 doc 的得分相同；boost 不能精确表示时，min competitive score 换算阶梯需要正确处理舍入
+                        final float boost = randomFrom(1f, 0.1f, 1.3f, 3f, 7.7f);
+                        if (boost != 1f) {
+                            query = new BoostQuery(query, boost);
+                        }
+                        assertSameTopDocs(searcher, query, randomFrom(1, 10, 100, randomIntBetween(1, 500)));
+                    }
+                }
+            }
+        }
+    }
+
+    public void testSortedByTiebreak() {
+        assertFalse(MultistepTermsQuery.sortedByTiebreak(null, TIEBREAK_FIELD));
+        assertTrue(MultistepTermsQuery.sortedByTiebreak(new Sort(tiebreakSort(null)), TIEBREAK_FIELD));
+        assertTrue(MultistepTermsQuery.sortedByTiebreak(new Sort(tiebreakSort(Long.MIN_VALUE)), TIEBREAK_FIELD));
+        assertTrue(MultistepTermsQuery.sortedByTiebreak(new Sort(tiebreakSort(0L)), TIEBREAK_FIELD));
+        // 缺失值排在正数热度之前，scorer 把缺失值当作 0，后面还有热度更高的 doc
+        assertFalse(MultistepTermsQuery.sortedByTiebreak(new Sort(tiebreakSort(Long.MAX_VALUE)), TIEBREAK_FIELD));
+        assertFalse(MultistepTermsQuery.sortedByTiebreak(new Sort(tiebreakSort(5L)), TIEBREAK_FIELD));
+        assertFalse(MultistepTermsQuery.sortedByTiebreak(new Sort(tiebreakSort(null)), "other"));
+        assertFalse(MultistepTermsQuery.sortedByTiebreak(new Sort(
+                new SortedNumericSortField(TIEBREAK_FIELD, SortField.Type.LONG, false, SortedNumericSelector.Type.MAX)), TIEBREAK_FIELD));
+        assertFalse(MultistepTermsQuery.sortedByTiebreak(new Sort(
+                new SortedNumericSortField(TIEBREAK_FIELD, SortField.Type.LONG, true, SortedNumericSelector.Type.MIN)), TIEBREAK_FIELD));
+    }
+
+    public void testTiebreakWithMissingValuesFirst() throws IOException {
+        assertTiebreakTopScores(Long.MAX_VALUE, false);
+    }
+
+    public void testTiebreakWithMissingValuesLast() throws IOException {
+        assertTiebreakTopScores(Long.MIN_VALUE, true);
+    }
+
+    private void assertTiebreakTopScores(Long missingValue, boolean expectSorted) throws IOException {
+        IndexWriterConfig config = newIndexWriterConfig().setSimilarity(new BM25Similarity());
+        config.setIndexSort(new Sort(tiebreakSort(missingValue)));
+        try (Directory dir = newDirectory()) {
+            try (RandomIndexWriter writer = new RandomIndexWriter(random(), dir, config)) {
+                final int numDocs = randomIntBetween(200, 1000);
+                for (int i = 0; i < numDocs; i++) {
+                    Document doc = new Document();
+                    doc.add(new TextField(FIELD, randomText(), Field.Store.NO));
+                    // 大约三分之一的 doc 没有热度
+                    if (randomIntBetween(0, 2) > 0) {
+                        doc.add(new SortedNumericDocValuesField(TIEBREAK_FIELD, randomIntBetween(0, 3000)));
+                        if (rarely()) {
+                            doc.add(new SortedNumericDocValuesField(TIEBREAK_FIELD, randomIntBetween(0, 3000)));
+                        }
+                    }
+                    writer.addDocument(doc);
+                }
+                try (IndexReader reader = writer.getReader()) {
+                    for (LeafReaderContext leaf : reader.leaves()) {
+                        assertEquals(expectSorted,
+                                MultistepTermsQuery.sortedByTiebreak(leaf.reader().getMetaData().getSort(), TIEBREAK_FIELD));
+                    }
+                    IndexSearcher searcher = new IndexSearcher(reader);
+                    searcher.setQueryCache(null);
+                    for (int iter = 0; iter < 20; iter++) {
+                        Query query = randomQuery().tiebreakField(TIEBREAK_FIELD).build();
+                        assertSameTopDocs(searcher, query, randomIntBetween(1, 50));
+                    }
+                }
+            }
+        }
+    }
+
+    /** 提前终止(TOP_SCORES)和完整收集(COMPLETE)的 top-k 完全一致，包括 score 相同时的 doc 顺序 */
+    static void assertSameTopDocs(IndexSearcher searcher, Query query, int k) throws IOException {
+        TopScoreDocCollector topScores = TopScoreDocCollector.create(k, 1);
+        searcher.search(query, topScores);
+        TopScoreDocCollector complete = TopScoreDocCollector.create(k, Integer.MAX_VALUE);
+        searcher.search(query, complete);
+        assertSameScoreDocs(query.toString(), complete.topDocs(), topScores.topDocs());
+    }
+
+    static void assertSameScoreDocs(String message, TopDocs expected, TopDocs actual) {
+        assertEquals(message, expected.scoreDocs.length, actual.scoreDocs.length);
+        for (int i = 0; i < expected.scoreDocs.length; i++) {
+            ScoreDoc e = expected.scoreDocs[i];
+            ScoreDoc a = actual.scoreDocs[i];
+            assertEquals(message + " rank " + i, e.doc, a.doc);
+            assertEquals(message + " rank " + i, e.score, a.score, 0f);
+        }
+    }
+
+    static MultistepTermsQuery.Builder randomQuery() {
+        final BytesRef[] terms = randomTerms();
+        return new MultistepTermsQuery.Builder(FIELD, terms, new boolean[terms.length], randomBase());
+    }
+
+    /** 1 到 4 个不重复的 term，每个 term 一个 position */
+    private static BytesRef[] randomTerms() {
+        final BytesRef[] terms = new BytesRef[randomIntBetween(1, 4)];
+        final int start = randomIntBetween(0, VOCABULARY.length - 1);
+        for (int i = 0; i < terms.length; i++) {
+            terms[i] = new BytesRef(VOCABULARY[(start + i) % VOCABULARY.length]);
+        }
+        return terms;
+    }
+
+    private static double randomBase() {
+        return randomFrom(1.1, 1.5, Math.E, 10.0);
+    }
+
+    static String randomText() {
+        final int length = randomIntBetween(1, 12);
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < length; i++) {
+            if (i > 0) {
+                text.append(' ');
+            }
+            // 偏向前几个词，让 freq 和 norm 有足够的变化
+            text.append(VOCABULARY[Math.min(randomIntBetween(0, VOCABULARY.length - 1), randomIntBetween(0, VOCABULARY.length - 1))]);
+        }
+        return text.toString();
+    }
+
+    private static SortedNumericSortField tiebreakSort(Long missingValue) {
+        SortedNumericSortField sortField = new SortedNumericSortField(TIEBREAK_FIELD, SortField.Type.LONG, true,
+                SortedNumericSelector.Type.MAX);
+        if (missingValue != null) {
+            sortField.setMissingValue(missingValue);
+        }
+        return sortField;
+    }
+}
@@ -0,0 +1,70 @@
+package org.elasticsearch.myterm;
+
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.io.stream.NamedWriteableRegistry;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.common.xcontent.json.JsonXContent;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.similarity.SimilarityRegistry;
+import org.elasticsearch.test.ESTestCase;
+
+import java.io.IOException;
+import java.util.Collections;
+
+/**
+ * @Classname MyTermQueryBuilderTests
+ * @Description {@link MyTermQueryBuilder} 的序列化和 similarity 类型校验
+ */
+public class MyTermQueryBuilderTests extends ESTestCase {
+
+    private static final NamedWriteableRegistry REGISTRY = new NamedWriteableRegistry(Collections.singletonList(
+            new NamedWriteableRegistry.Entry(QueryBuilder.class, MyTermQueryBuilder.NAME, MyTermQueryBuilder::new)));
+
+    private static MyTermQueryBuilder randomBuilder() {
+        final String similarity = randomBoolean() ? null
+                : randomFrom("BM25", "class", "custom", "bucket-e", "bucket-" + randomIntBetween(2, 10));
+        final MyTermQueryBuilder builder = new MyTermQueryBuilder(randomAlphaOfLengthBetween(1, 10),
+                randomAlphaOfLengthBetween(1, 10), similarity);
+        if (randomBoolean()) {
+            builder.boost(randomIntBetween(1, 10));
+        }
+        return builder;
+    }
+
+    public void testWireRoundTrip() throws IOException {
+        for (int i = 0; i < 20; i++) {
+            final MyTermQueryBuilder original = randomBuilder();
+            final MyTermQueryBuilder copy = copyWriteable(original, REGISTRY, MyTermQueryBuilder::new);
+            assertEquals(original, copy);
+            assertEquals(original.hashCode(), copy.hashCode());
+            assertEquals(original.value(), copy.value());
+            assertEquals(original.similarityType(), copy.similarityType());
+        }
+    }
+
+    public void testXContentRoundTrip() throws IOException {
+        for (int i = 0; i < 20; i++) {
+            final MyTermQueryBuilder original = randomBuilder();
+            try (XContentParser parser = createParser(JsonXContent.jsonXContent, Strings.toString(original))) {
+                assertEquals(XContentParser.Token.START_OBJECT, parser.nextToken());
+                assertEquals(XContentParser.Token.FIELD_NAME, parser.nextToken());
+                assertEquals(MyTermQueryBuilder.NAME, parser.currentName());
+                assertEquals(XContentParser.Token.START_OBJECT, parser.nextToken());
+                final QueryBuilder parsed = MyTermQueryBuilder.fromXContent(parser);
+                assertEquals(original, parsed);
+                assertEquals(original.hashCode(), parsed.hashCode());
+            }
+        }
+    }
+
+    public void testUnknownSimilarity() {
+        IllegalArgumentException e = expectThrows(IllegalArgumentException.class, () -> SimilarityRegistry.get("bm52"));
+        assertTrue(e.getMessage(), e.getMessage().contains("bm52"));
+        e = expectThrows(IllegalArgumentException.class, () -> new MyTermQueryBuilder("field", "value", "bm52"));
+        assertTrue(e.getMessage(), e.getMessage().contains("bm52"));
+        expectThrows(IllegalArgumentException.class, () -> new MyTermQueryBuilder("field", "value", "bucket-x"));
+        // 大小写不敏感，null 使用 BM25
+        assertSame(SimilarityRegistry.get("BM25"), SimilarityRegistry.get("bm25"));
+        assertSame(SimilarityRegistry.get(null), SimilarityRegistry.get("bm25"));
+    }
+}
@@ -0,0 +1,138 @@
+package org.elasticsearch.myterm;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.SortedDocValuesField;
+import org.apache.lucene.document.SortedNumericDocValuesField;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.RandomIndexWriter;
+import org.apache.lucene.search.FieldDoc;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.SortedNumericSelector;
+import org.apache.lucene.search.SortedNumericSortField;
+import org.apache.lucene.search.TopFieldDocs;
+import org.apache.lucene.search.similarities.BM25Similarity;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.index.mapper.IdFieldMapper;
+import org.elasticsearch.index.mapper.Uid;
+import org.elasticsearch.test.ESTestCase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * @Classname StepBucketQueryTests
+ * @Description 用 {@link StepCursor} 逐页导出的结果和一次按 (_score, read_num, _id) 排序的完整结果一致，
+ * 包括 read_num 相同、缺失、多值以及按 read_num 做了 index sorting 的 segment
+ */
+public class StepBucketQueryTests extends ESTestCase {
+
+    private static final String FIELD = "body";
+    private static final String READ_NUM = "read_num";
+    /** _id 的 doc values，只用于 Lucene 中按 _id 排序 */
+    private static final String ID_SORT = "id_sort";
+
+    public void testExportMatchesSortedSearch() throws IOException {
+        try (Directory dir = newDirectory()) {
+            IndexWriterConfig config = newIndexWriterConfig().setSimilarity(new BM25Similarity());
+            if (randomBoolean()) {
+                config.setIndexSort(new Sort(readNumSort(randomBoolean() ? null : Long.MIN_VALUE)));
+            }
+            try (RandomIndexWriter writer = new RandomIndexWriter(random(), dir, config)) {
+                final int numDocs = randomIntBetween(100, 500);
+                for (int i = 0; i < numDocs; i++) {
+                    final String id = randomAlphaOfLengthBetween(1, 3) + i;
+                    Document doc = new Document();
+                    doc.add(new TextField(FIELD, MultistepTermsQueryTests.randomText(), Field.Store.NO));
+                    doc.add(new StoredField(IdFieldMapper.NAME, Uid.encodeId(id)));
+                    doc.add(new SortedDocValuesField(ID_SORT, new BytesRef(id)));
+                    // 取值范围很小，read_num 相同的 doc 按 _id 排序；部分 doc 缺失或者有多个值
+                    final int values = randomIntBetween(0, 2);
+                    for (int v = 0; v < values; v++) {
+                        doc.add(new SortedNumericDocValuesField(READ_NUM, randomIntBetween(-2, 5)));
+                    }
+                    writer.addDocument(doc);
+                }
+                try (IndexReader reader = writer.getReader()) {
+                    IndexSearcher searcher = new IndexSearcher(reader);
+                    searcher.setQueryCache(null);
+                    final Sort sort = new Sort(SortField.FIELD_SCORE, readNumSort(Long.MIN_VALUE),
+                            new SortField(ID_SORT, SortField.Type.STRING));
+                    for (int iter = 0; iter < 10; iter++) {
+                        final MultistepTermsQuery query = MultistepTermsQueryTests.randomQuery().build();
+                        final TopFieldDocs sorted = searcher.search(query, numDocs, sort, true);
+                        final List<String> expected = ids(sorted);
+                        final List<String> actual = export(searcher, query, sort, randomIntBetween(1, 20));
+                        assertEquals(query.toString(), expected, actual);
+                        if (sorted.scoreDocs.length > 0) {
+                            // 不打分的收集(count)同样按阶梯过滤
+                            final int step = (int) randomFrom(sorted.scoreDocs).score;
+                            int inStep = 0;
+                            int belowStep = 0;
+                            for (ScoreDoc hit : sorted.scoreDocs) {
+                                if ((int) hit.score == step) {
+                                    inStep++;
+                                } else if ((int) hit.score < step) {
+                                    belowStep++;
+                                }
+                            }
+                            assertEquals(inStep, searcher.count(new StepBucketQuery(query, StepCursor.within(step, READ_NUM))));
+                            if (step > 0) {
+                                assertEquals(belowStep, searcher.count(new StepBucketQuery(query, StepCursor.below(step))));
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * 第一页是普通查询；取满一页之后在最后一个 hit 的阶梯内继续，阶梯内不足一页时导出更低的阶梯，更低的阶梯不足一页时结束
+     */
+    private static List<String> export(IndexSearcher searcher, MultistepTermsQuery query, Sort sort, int size) throws IOException {
+        final List<String> ids = new ArrayList<>();
+        Query page = query;
+        while (true) {
+            final TopFieldDocs topDocs = searcher.search(page, size, sort, true);
+            ids.addAll(ids(topDocs));
+            final boolean within = page instanceof StepBucketQuery && ((StepBucketQuery) page).getCursor().isBelow() == false;
+            if (topDocs.scoreDocs.length == size) {
+                final FieldDoc last = (FieldDoc) topDocs.scoreDocs[size - 1];
+                page = new StepBucketQuery(query, StepCursor.within((int) last.score, READ_NUM, (Long) last.fields[1],
+                        ((BytesRef) last.fields[2]).utf8ToString()));
+            } else if (within && ((StepBucketQuery) page).getCursor().getStep() > 0) {
+                page = new StepBucketQuery(query, StepCursor.below(((StepBucketQuery) page).getCursor().getStep()));
+            } else {
+                return ids;
+            }
+        }
+    }
+
+    private static List<String> ids(TopFieldDocs topDocs) {
+        final List<String> ids = new ArrayList<>();
+        for (ScoreDoc scoreDoc : topDocs.scoreDocs) {
+            ids.add(((BytesRef) ((FieldDoc) scoreDoc).fields[2]).utf8ToString());
+        }
+        return ids;
+    }
+
+    /** read_num 降序，多值取最大值 */
+    private static SortedNumericSortField readNumSort(Long missingValue) {
+        SortedNumericSortField sortField = new SortedNumericSortField(READ_NUM, SortField.Type.LONG, true,
+                SortedNumericSelector.Type.MAX);
+        if (missingValue != null) {
+            sortField.setMissingValue(missingValue);
+        }
+        return sortField;
+    }
+}
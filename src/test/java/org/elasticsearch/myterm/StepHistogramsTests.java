@@ -0,0 +1,29 @@
+package org.elasticsearch.myterm;
+
+import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.test.ESTestCase;
+
+/**
+ * @Classname StepHistogramsTests
+ * @Description 每个 shard 上的 (field, base) 个数有上限，已有的直方图继续统计，shard 关闭之后可以重新创建
+ */
+public class StepHistogramsTests extends ESTestCase {
+
+    public void testMaxKeysPerShard() {
+        final StepHistograms histograms = new StepHistograms();
+        final ShardId shard = new ShardId("test", "_na_", 0);
+        final ShardId other = new ShardId("test", "_na_", 1);
+        for (int i = 0; i < StepHistograms.MAX_KEYS_PER_SHARD; i++) {
+            assertNotNull(histograms.get(shard, "field", 1 + i / 1000.0));
+        }
+        assertNull(histograms.get(shard, "field", 2.5));
+        assertNull(histograms.get(shard, "other", 1.0));
+        assertSame(histograms.get(shard, "field", 1.0), histograms.get(shard, "field", 1.0));
+        assertNotNull(histograms.get(other, "field", 2.5));
+        assertEquals(StepHistograms.MAX_KEYS_PER_SHARD + 1, histograms.stats().size());
+
+        histograms.removeShard(shard);
+        assertEquals(1, histograms.stats().size());
+        assertNotNull(histograms.get(shard, "field", 2.5));
+    }
+}
@@ -0,0 +1,72 @@
+package org.elasticsearch.myterm;
+
+import org.elasticsearch.test.ESTestCase;
+
+/**
+ * @Classname StepTiebreakTests
+ * @Description {@link StepTiebreak} 打包之后的 score 和 (阶梯得分, 热度) 排序的一致性，以及排序不再精确的边界
+ */
+public class StepTiebreakTests extends ESTestCase {
+
+    public void testPackedOrderMatchesStepThenPopularity() {
+        for (int i = 0; i < 10000; i++) {
+            final int step1 = randomIntBetween(0, StepTiebreak.MAX_STEP);
+            final int step2 = randomBoolean() ? step1 : randomIntBetween(0, StepTiebreak.MAX_STEP);
+            final long popularity1 = randomPopularity();
+            final long popularity2 = randomBoolean() ? popularity1 + randomIntBetween(-3, 3) : randomPopularity();
+            final int code1 = StepTiebreak.encodePopularity(popularity1);
+            final int code2 = StepTiebreak.encodePopularity(popularity2);
+            final float score1 = StepTiebreak.pack(step1, code1);
+            final float score2 = StepTiebreak.pack(step2, code2);
+            assertTrue(Float.isFinite(score1));
+            assertEquals(step1, StepTiebreak.step(score1));
+            assertEquals(code1, StepTiebreak.popularityCode(score1));
+            if (step1 != step2) {
+                assertEquals(Integer.compare(step1, step2), Float.compare(score1, score2));
+            } else {
+                // 编码是单调的，但不一定严格单调
+                final int expected = Long.compare(Math.max(0, popularity1), Math.max(0, popularity2));
+                final int actual = Float.compare(score1, score2);
+                assertTrue(popularity1 + " vs " + popularity2, actual == expected || actual == 0);
+            }
+        }
+    }
+
+    public void testPopularityExactBelow2048() {
+        for (long popularity = 0; popularity < 2047; popularity++) {
+            assertTrue(String.valueOf(popularity),
+                    StepTiebreak.encodePopularity(popularity) < StepTiebreak.encodePopularity(popularity + 1));
+        }
+        assertTrue(StepTiebreak.encodePopularity(2047) < StepTiebreak.encodePopularity(2048));
+    }
+
+    public void testWhereOrderBreaks() {
+        // 2048 以上相对差距小于 1/1024 的热度值编码相同，这些 doc 之间按 doc id 排列
+        assertEquals(StepTiebreak.encodePopularity(2048), StepTiebreak.encodePopularity(2049));
+        assertEquals(StepTiebreak.pack(7, StepTiebreak.encodePopularity(2048)),
+                StepTiebreak.pack(7, StepTiebreak.encodePopularity(2049)), 0f);
+        assertTrue(StepTiebreak.encodePopularity(2049) < StepTiebreak.encodePopularity(2050));
+        assertEquals(StepTiebreak.encodePopularity(1_000_000_000L), StepTiebreak.encodePopularity(1_000_000_001L));
+        // 阶梯得分超过 MAX_STEP 之后饱和
+        assertEquals(StepTiebreak.pack(StepTiebreak.MAX_STEP, 5), StepTiebreak.pack(StepTiebreak.MAX_STEP + 1, 5), 0f);
+        assertEquals(StepTiebreak.pack(StepTiebreak.MAX_STEP, 5), StepTiebreak.pack(Long.MAX_VALUE, 5), 0f);
+        assertTrue(Float.isFinite(StepTiebreak.pack(Long.MAX_VALUE, StepTiebreak.MAX_POPULARITY_CODE)));
+        // 负数和缺失值都按 0 处理
+        assertEquals(StepTiebreak.encodePopularity(0), StepTiebreak.encodePopularity(-5));
+        assertEquals(StepTiebreak.encodePopularity(0), StepTiebreak.encodePopularity(Long.MIN_VALUE));
+        assertTrue(StepTiebreak.encodePopularity(Long.MAX_VALUE) <= StepTiebreak.MAX_POPULARITY_CODE);
+    }
+
+    private static long randomPopularity() {
+        switch (randomIntBetween(0, 3)) {
+            case 0:
+                return randomIntBetween(-10, 2047);
+            case 1:
+                return randomIntBetween(2048, 1 << 20);
+            case 2:
+                return randomLongBetween(0, Long.MAX_VALUE - 3);
+            default:
+                return 0;
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package org.elasticsearch.myterm;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.FilterDirectoryReader;
+import org.apache.lucene.index.FilterLeafReader;
+import org.apache.lucene.index.ImpactsEnum;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.RandomIndexWriter;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopScoreDocCollector;
+import org.apache.lucene.search.TotalHits;
+import org.apache.lucene.search.similarities.BM25Similarity;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.test.ESTestCase;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @Classname TopDocsCacheTests
+ * @Description {@link TopDocsCache} 命中时只遍历缓存的 doc，不读取 postings，结果和不使用缓存时一致；
+ * 不完整的缓存只用于窗口不超过 N 的顶层 query
+ */
+public class TopDocsCacheTests extends ESTestCase {
+
+    private static final String FIELD = "body";
+    private static final int TOP_N = 20;
+
+    public void testHitDoesNotReadPostings() throws IOException {
+        final AtomicInteger postings = new AtomicInteger();
+        try (Directory dir = newDirectory()) {
+            try (RandomIndexWriter writer = new RandomIndexWriter(random(), dir,
+                    newIndexWriterConfig().setSimilarity(new BM25Similarity()))) {
+                final int numDocs = randomIntBetween(200, 1000);
+                // 少量 doc 包含 z，命中总数不超过 N，缓存是完整的
+                final int rareDocs = randomIntBetween(1, TOP_N);
+                for (int i = 0; i < numDocs; i++) {
+                    final String text = MultistepTermsQueryTests.randomText();
+                    Document doc = new Document();
+                    doc.add(new TextField(FIELD, i < rareDocs ? text + " z" : text, Field.Store.NO));
+                    writer.addDocument(doc);
+                }
+                try (DirectoryReader reader = new CountingDirectoryReader(writer.getReader(), postings)) {
+                    IndexSearcher searcher = new IndexSearcher(reader);
+                    searcher.setQueryCache(null);
+                    final TopDocsCache cache = new TopDocsCache(Settings.builder()
+                            .put(TopDocsCache.CACHE_SIZE_SETTING.getKey(), "10mb")
+                            .put(TopDocsCache.TOP_N_SETTING.getKey(), TOP_N).build());
+                    for (int iter = 0; iter < 10; iter++) {
+                        final MultistepTermsQuery.Builder builder = MultistepTermsQueryTests.randomQuery();
+                        assertHitDoesNotReadPostings(searcher, cache, builder.build(), builder.resultCache(cache).build(), postings);
+                    }
+                    final MultistepTermsQuery.Builder rare = new MultistepTermsQuery.Builder(FIELD,
+                            new BytesRef[] {new BytesRef("z")}, new boolean[1], randomFrom(1.1, 1.5, Math.E));
+                    assertHitDoesNotReadPostings(searcher, cache, rare.build(), rare.resultCache(cache).build(), postings);
+                }
+            }
+        }
+    }
+
+    private static void assertHitDoesNotReadPostings(IndexSearcher searcher, TopDocsCache cache, Query plain, Query cached,
+                                                     AtomicInteger postings) throws IOException {
+        // 命中总数不超过 N 时缓存是完整的
+        final TopDocs expectedComplete = search(searcher, plain, TOP_N, Integer.MAX_VALUE, false);
+        final boolean complete = expectedComplete.totalHits.value <= TOP_N;
+
+        final int k = randomIntBetween(1, TOP_N);
+        final TopDocs expected = search(searcher, plain, k, -1, false);
+        // 第一次只记录 query，第二次填充缓存(之前的迭代中出现过同样的 query 时已经缓存)
+        MultistepTermsQueryTests.assertSameScoreDocs(cached.toString(), expected, search(searcher, cached, k, -1, true));
+        MultistepTermsQueryTests.assertSameScoreDocs(cached.toString(), expected, search(searcher, cached, k, -1, true));
+        final long hits = cache.stats().getHits();
+        postings.set(0);
+        MultistepTermsQueryTests.assertSameScoreDocs(cached.toString(), expected, search(searcher, cached, k, -1, true));
+        assertEquals(cached.toString(), 0, postings.get());
+        assertEquals(hits + 1, cache.stats().getHits());
+
+        // 不是顶层 query 时只能使用完整的缓存
+        postings.set(0);
+        MultistepTermsQueryTests.assertSameScoreDocs(cached.toString(), expected, search(searcher, cached, k, -1, false));
+        assertEquals(cached.toString(), complete, postings.get() == 0);
+
+        // from + size 超过 N 时只能使用完整的缓存
+        final int deep = TOP_N + randomIntBetween(1, 10);
+        final TopDocs expectedDeep = search(searcher, plain, deep, -1, false);
+        postings.set(0);
+        MultistepTermsQueryTests.assertSameScoreDocs(cached.toString(), expectedDeep, search(searcher, cached, deep, -1, true));
+        assertEquals(cached.toString(), complete, postings.get() == 0);
+
+        // track_total_hits 为 n 时缓存中至少要有 n + 1 个 doc，total hits 和不使用缓存时一致
+        final int trackTotalHitsUpTo = randomIntBetween(0, 2 * TOP_N);
+        final TopDocs expectedTracked = search(searcher, plain, k, trackTotalHitsUpTo, false);
+        postings.set(0);
+        final TopDocs actualTracked = search(searcher, cached, k, trackTotalHitsUpTo, true);
+        assertEquals(cached.toString(), complete || trackTotalHitsUpTo < TOP_N, postings.get() == 0);
+        MultistepTermsQueryTests.assertSameScoreDocs(cached.toString(), expectedTracked, actualTracked);
+        assertEquals(expectedTracked.totalHits.relation, actualTracked.totalHits.relation);
+        if (expectedTracked.totalHits.relation == TotalHits.Relation.EQUAL_TO) {
+            assertEquals(expectedTracked.totalHits.value, actualTracked.totalHits.value);
+        } else {
+            assertTrue(actualTracked.totalHits.value > trackTotalHitsUpTo);
+        }
+
+        // 完整收集只能使用完整的缓存，total hits 和不使用缓存时一致
+        postings.set(0);
+        final TopDocs actualComplete = search(searcher, cached, TOP_N, Integer.MAX_VALUE, false);
+        assertEquals(cached.toString(), complete, postings.get() == 0);
+        assertEquals(expectedComplete.totalHits, actualComplete.totalHits);
+        MultistepTermsQueryTests.assertSameScoreDocs(cached.toString(), expectedComplete, actualComplete);
+    }
+
+    /**
+     * 和 ES 一样收集前 k 个结果，track_total_hits 为 false 时 trackTotalHitsUpTo 为 -1
+     *
+     * @param topLevel 是否作为查询阶段的顶层 query
+     */
+    private static TopDocs search(IndexSearcher searcher, Query query, int k, int trackTotalHitsUpTo,
+                                  boolean topLevel) throws IOException {
+        TopScoreDocCollector collector = TopScoreDocCollector.create(k, trackTotalHitsUpTo < 0 ? 1 : trackTotalHitsUpTo);
+        if (topLevel) {
+            SearchWindow.enter(query, k, trackTotalHitsUpTo);
+        }
+        try {
+            searcher.search(query, collector);
+        } finally {
+            SearchWindow.exit();
+        }
+        return collector.topDocs();
+    }
+
+    /**
+     * 统计 postings 和 impacts 的读取次数，cache helper 和原来的 reader 相同
+     */
+    private static final class CountingDirectoryReader extends FilterDirectoryReader {
+        private final AtomicInteger postings;
+
+        CountingDirectoryReader(DirectoryReader in, AtomicInteger postings) throws IOException {
+            super(in, new CountingSubReaderWrapper(postings));
+            this.postings = postings;
+        }
+
+        @Override
+        protected DirectoryReader doWrapDirectoryReader(DirectoryReader in) throws IOException {
+            return new CountingDirectoryReader(in, postings);
+        }
+
+        @Override
+        public CacheHelper getReaderCacheHelper() {
+            return in.getReaderCacheHelper();
+        }
+    }
+
+    private static final class CountingSubReaderWrapper extends FilterDirectoryReader.SubReaderWrapper {
+        private final AtomicInteger postings;
+
+        CountingSubReaderWrapper(AtomicInteger postings) {
+            this.postings = postings;
+        }
+
+        @Override
+        public LeafReader wrap(LeafReader reader) {
+            return new FilterLeafReader(reader) {
+                @Override
+                public Terms terms(String field) throws IOException {
+                    final Terms terms = super.terms(field);
+                    return terms == null ? null : new CountingTerms(terms, postings);
+                }
+
+                @Override
+                public CacheHelper getCoreCacheHelper() {
+                    return in.getCoreCacheHelper();
+                }
+
+                @Override
+                public CacheHelper getReaderCacheHelper() {
+                    return in.getReaderCacheHelper();
+                }
+            };
+        }
+    }
+
+    private static final class CountingTerms extends FilterLeafReader.FilterTerms {
+        private final AtomicInteger postings;
+
+        CountingTerms(Terms in, AtomicInteger postings) {
+            super(in);
+            this.postings = postings;
+        }
+
+        @Override
+        public TermsEnum iterator() throws IOException {
+            return new FilterLeafReader.FilterTermsEnum(in.iterator()) {
+                @Override
+                public PostingsEnum postings(PostingsEnum reuse, int flags) throws IOException {
+                    postings.incrementAndGet();
+                    return in.postings(reuse, flags);
+                }
+
+                @Override
+                public ImpactsEnum impacts(int flags) throws IOException {
+                    postings.incrementAndGet();
+                    return in.impacts(flags);
+                }
+            };
+        }
+    }
+}
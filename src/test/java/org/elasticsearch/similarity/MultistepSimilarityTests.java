@@ -0,0 +1,68 @@
+package org.elasticsearch.similarity;
+
+import org.elasticsearch.test.ESTestCase;
+
+/**
+ * @Classname MultistepSimilarityTests
+ * @Description {@link MultistepSimilarity.StepTf#tf} 的查表和整数除法与参考实现 {@link MultistepSimilarity#stepTf} 完全一致
+ */
+public class MultistepSimilarityTests extends ESTestCase {
+
+    private static final int LIMIT = MultistepSimilarity.StepTf.EXACT_LIMIT;
+
+    public void testStepTfMatchesReference() {
+        final float[] avgdls = new float[12];
+        avgdls[0] = 1f;
+        avgdls[1] = 0.3f;
+        avgdls[2] = 1e7f;
+        for (int i = 3; i < avgdls.length; i++) {
+            avgdls[i] = randomBoolean() ? randomIntBetween(1, 200) : 0.1f + randomFloat() * randomFrom(10f, 1000f, 100000f);
+        }
+        for (float avgdl : avgdls) {
+            final MultistepSimilarity.StepTf stepTf = new MultistepSimilarity.StepTf(avgdl);
+            assertEquals(avgdl, stepTf.avgdl(), 0f);
+            assertFalse(stepTf.precomputed());
+            for (int norm = 0; norm < 256; norm++) {
+                final long encodedNorm = (byte) norm;
+                for (int freq = 0; freq <= 1000; freq++) {
+                    assertTf(stepTf, freq, encodedNorm, avgdl);
+                }
+                // 快速路径的上限附近
+                for (int freq = LIMIT - 64; freq <= LIMIT + 64; freq++) {
+                    assertTf(stepTf, freq, encodedNorm, avgdl);
+                }
+                for (int i = 0; i < 20; i++) {
+                    assertTf(stepTf, randomIntBetween(0, LIMIT * 4), encodedNorm, avgdl);
+                    // 非整数 freq 走参考实现
+                    assertTf(stepTf, randomFloat() * 100, encodedNorm, avgdl);
+                }
+            }
+        }
+    }
+
+    public void testUnsignedNormByte() {
+        // norm 可以是带符号扩展的 long，也可以是 0-255 的正数，结果一样
+        final MultistepSimilarity.StepTf stepTf = new MultistepSimilarity.StepTf(randomIntBetween(1, 100));
+        for (int norm = 0; norm < 256; norm++) {
+            for (int freq = 0; freq < 100; freq++) {
+                assertEquals(stepTf.tf(freq, (byte) norm), stepTf.tf(freq, norm));
+            }
+        }
+    }
+
+    public void testPrecomputed() {
+        final MultistepSimilarity.StepTf stepTf = MultistepSimilarity.StepTf.PRECOMPUTED;
+        assertTrue(stepTf.precomputed());
+        assertEquals(0, stepTf.tf(0, randomLong()));
+        assertEquals(0, stepTf.tf(1, randomLong()));
+        for (int i = 0; i < 100; i++) {
+            final int freq = randomIntBetween(1, LIMIT * 2);
+            assertEquals(freq - 1, stepTf.tf(freq, randomLong()));
+        }
+    }
+
+    private static void assertTf(MultistepSimilarity.StepTf stepTf, float freq, long encodedNorm, float avgdl) {
+        assertEquals("freq=" + freq + ", norm=" + (encodedNorm & 0xFF) + ", avgdl=" + avgdl,
+                MultistepSimilarity.stepTf(freq, encodedNorm, avgdl), stepTf.tf(freq, encodedNorm));
+    }
+}
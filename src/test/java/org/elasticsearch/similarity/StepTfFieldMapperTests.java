@@ -0,0 +1,80 @@
+package org.elasticsearch.similarity;
+
+import org.elasticsearch.action.search.SearchPhaseExecutionException;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.mapper.MapperParsingException;
+import org.elasticsearch.mysynonym.MultiMultistepScoreBuilder;
+import org.elasticsearch.mysynonym.MultistepScoreBuilder;
+import org.elasticsearch.plugin.ESQueryPlugin;
+import org.elasticsearch.plugins.Plugin;
+import org.elasticsearch.test.ESSingleNodeTestCase;
+
+import java.util.Collection;
+import java.util.Collections;
+
+/**
+ * @Classname StepTfFieldMapperTests
+ * @Description multistep_tf 字段出现多个值时索引失败，search analyzer 中包含 multistep_tf 时查询失败
+ */
+public class StepTfFieldMapperTests extends ESSingleNodeTestCase {
+
+    private static final String MAPPING = "{\"properties\": {"
+            + "\"name\": {\"type\": \"text\", \"analyzer\": \"whitespace\", \"fields\": {"
+            + "\"step\": {\"type\": \"text\", \"analyzer\": \"step_index\", \"search_analyzer\": \"whitespace\","
+            + " \"index_options\": \"freqs\", \"norms\": false},"
+            + "\"raw_step\": {\"type\": \"text\", \"analyzer\": \"step_index\", \"index_options\": \"freqs\", \"norms\": false}}},"
+            + "\"tags\": {\"type\": \"text\", \"analyzer\": \"whitespace\"}}}";
+
+    @Override
+    protected Collection<Class<? extends Plugin>> getPlugins() {
+        return Collections.singletonList(ESQueryPlugin.class);
+    }
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        client().admin().indices().prepareCreate("test")
+                .setSettings(Settings.builder()
+                        .put("index.number_of_shards", 1)
+                        .put("analysis.filter.step_tf.type", StepTfTokenFilterFactory.NAME)
+                        .put("analysis.filter.step_tf.avgdl", 4)
+                        .put("analysis.analyzer.step_index.type", "custom")
+                        .put("analysis.analyzer.step_index.tokenizer", "standard")
+                        .putList("analysis.analyzer.step_index.filter", "step_tf"))
+                .addMapping("_doc", MAPPING, XContentType.JSON)
+                .get();
+    }
+
+    public void testRejectMultiValued() {
+        client().prepareIndex("test", "_doc", "1").setSource("name", "a b a", "tags", new String[]{"a", "b"}).get();
+        MapperParsingException e = expectThrows(MapperParsingException.class,
+                () -> client().prepareIndex("test", "_doc", "2").setSource("name", new String[]{"a b", "a"}).get());
+        assertTrue(e.getCause().getMessage(), e.getCause().getMessage().contains("can not have more than one value"));
+        client().admin().indices().prepareRefresh("test").get();
+
+        SearchResponse response = client().prepareSearch("test").setQuery(new MultistepScoreBuilder("name.step", "a")).get();
+        assertEquals(1, response.getHits().getTotalHits().value);
+        assertEquals("1", response.getHits().getAt(0).getId());
+    }
+
+    public void testRejectStepTfSearchAnalyzer() {
+        client().prepareIndex("test", "_doc", "1").setSource("name", "a b a").setRefreshPolicy("true").get();
+
+        SearchPhaseExecutionException e = expectThrows(SearchPhaseExecutionException.class,
+                () -> client().prepareSearch("test").setQuery(new MultistepScoreBuilder("name.raw_step", "a")).get());
+        assertTrue(e.shardFailures()[0].reason(), e.shardFailures()[0].reason().contains("search_analyzer"));
+        e = expectThrows(SearchPhaseExecutionException.class, () -> client().prepareSearch("test")
+                .setQuery(new MultiMultistepScoreBuilder("a", Collections.singletonMap("name.raw_step", 1f))).get());
+        assertTrue(e.shardFailures()[0].reason(), e.shardFailures()[0].reason().contains("search_analyzer"));
+
+        // 查询中指定的 analyzer 不包含 multistep_tf
+        SearchResponse response = client().prepareSearch("test")
+                .setQuery(new MultistepScoreBuilder("name.raw_step", "a").analyzer("whitespace")).get();
+        assertEquals(1, response.getHits().getTotalHits().value);
+        response = client().prepareSearch("test")
+                .setQuery(new MultiMultistepScoreBuilder("a", Collections.singletonMap("name.step", 1f))).get();
+        assertEquals(1, response.getHits().getTotalHits().value);
+    }
+}